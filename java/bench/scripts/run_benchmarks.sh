@@ -0,0 +1,12 @@
+#!/bin/bash
+# Builds the JMH benchmarks and runs them against the database loaded by
+# setup_bench_db.sh.  Extra arguments go to JMH, e.g. a benchmark name
+# pattern or "-prof gc".  Run with postgres started.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DB=${CAFE_BENCH_DB:-$USER"_BENCH"}
+
+(cd $DIR/.. && mvn -B -q package) || exit 1
+
+# the forked benchmark JVMs inherit these properties
+java -Dcafe.db=$DB -Dcafe.port=$PGPORT -Dcafe.user=$USER \
+     -jar $DIR/../target/benchmarks.jar "$@"
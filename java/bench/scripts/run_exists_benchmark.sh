@@ -0,0 +1,11 @@
+#!/bin/bash
+# Compares row-counting membership checks with the exists/lookup probes.
+# Run from the main project folder with postgres started and the database
+# loaded (see README.md).
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+JAVA_DIR=$DIR/../..
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $JAVA_DIR/src/*.java $DIR/../src/main/java/ExistsBenchmark.java
+
+java -cp $DIR/../classes:$JAVA_DIR/lib/pg73jdbc3.jar ExistsBenchmark $USER"_DB" $PGPORT $USER data/users.csv "$@"
@@ -0,0 +1,23 @@
+#!/bin/bash
+# Starts a Cafe server on the benchmark database and measures how command
+# throughput scales with the number of concurrent client sessions.  Extra
+# arguments go to ServerLoadTest, e.g. --sessions 1,8,64 --orders.
+# Run from the main project folder with postgres started and the database
+# loaded by setup_bench_db.sh.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+JAVA_DIR=$DIR/../..
+DB=${CAFE_BENCH_DB:-$USER"_BENCH"}
+PORT=${CAFE_SERVER_PORT:-7070}
+POOL=${CAFE_SERVER_POOL:-16}
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $JAVA_DIR/src/*.java $DIR/../src/main/java/ServerLoadTest.java
+
+java -cp $DIR/../classes:$JAVA_DIR/lib/pg73jdbc3.jar Cafe $DB $PGPORT $USER \
+     --serve $PORT --pool $POOL --cache 16 < /dev/null > $DIR/../classes/server.log 2>&1 &
+SERVER=$!
+sleep 3
+
+java -cp $DIR/../classes ServerLoadTest $PORT Admin admin "$@"
+
+kill $SERVER
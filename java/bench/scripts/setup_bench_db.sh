@@ -0,0 +1,29 @@
+#!/bin/bash
+# Creates and loads the database the JMH benchmarks run against, so that
+# benchmark runs never touch the $USER"_DB" project database.  Run from the
+# main project folder with postgres started.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SQL_DIR=$DIR/../../../sql/src
+DATA_DIR=$DIR/../../../data
+DB=${CAFE_BENCH_DB:-$USER"_BENCH"}
+
+echo "creating db named ... "$DB
+dropdb -h localhost -p $PGPORT --if-exists $DB
+createdb -h localhost -p $PGPORT $DB
+
+psql -h localhost -p $PGPORT $DB < $SQL_DIR/create_tables.sql
+psql -h localhost -p $PGPORT $DB < $SQL_DIR/create_indexes.sql
+
+# \copy reads the files on the client side, so no absolute paths are needed
+psql -h localhost -p $PGPORT $DB -c "\copy Menu FROM '$DATA_DIR/menu.csv' WITH DELIMITER ';'"
+psql -h localhost -p $PGPORT $DB -c "\copy Users FROM '$DATA_DIR/users.csv' WITH DELIMITER ';'"
+if [ -f $DATA_DIR/orders.csv ]; then
+   psql -h localhost -p $PGPORT $DB -c "\copy Orders FROM '$DATA_DIR/orders.csv' WITH DELIMITER ';'"
+   psql -h localhost -p $PGPORT $DB -c "SELECT setval('orders_orderid_seq', (SELECT max(orderid) FROM Orders))"
+fi
+if [ -f $DATA_DIR/itemStatus.csv ]; then
+   psql -h localhost -p $PGPORT $DB -c "\copy ItemStatus FROM '$DATA_DIR/itemStatus.csv' WITH DELIMITER ';'"
+fi
+psql -h localhost -p $PGPORT $DB < $SQL_DIR/create_triggers.sql
+psql -h localhost -p $PGPORT $DB < $SQL_DIR/create_rollups.sql
+psql -h localhost -p $PGPORT $DB -c "ANALYZE"
@@ -0,0 +1,94 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cafe.bench.CafeTarget;
+
+/**
+ * Runs the benchmark operations against Cafe, see cafe.bench.CafeTarget.
+ * While open, System.out discards what is written to it, so printed results
+ * measure the rendering and not the terminal.
+ */
+public class CafeBenchTarget implements CafeTarget {
+
+   private Cafe _esql;
+   private PrintStream _stdout;
+
+   public void open (String dbname, String dbport, String user) throws Exception {
+      Class.forName("org.postgresql.Driver");
+      // Cafe prints to System.out; JMH reports through its own channel
+      this._stdout = System.out;
+      System.setOut(new PrintStream(new OutputStream() {
+         public void write(int b) {
+         }
+
+         public void write(byte[] b, int off, int len) {
+         }
+      }));
+      this._esql = new Cafe(dbname, dbport, user, "");
+      this._esql.setOutputFormat(TableRenderer.Format.TSV);
+   }//end open
+
+   public void close () throws SQLException {
+      try {
+         if (this._esql != null)
+            this._esql.cleanup();
+      }finally {
+         if (this._stdout != null)
+            System.setOut(this._stdout);
+      }//end try
+   }//end close
+
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      if (params.length == 0) {
+         this._esql.executeUpdate(sql);
+         return 0;
+      }//end if
+      return this._esql.executeUpdate(sql, params);
+   }
+
+   public int executeQuery (String sql, Object... params) throws SQLException {
+      return params.length == 0 ? this._esql.executeQuery(sql)
+                                : this._esql.executeQuery(sql, params);
+   }
+
+   public List<List<String>> executeQueryAndReturnResult (String sql, Object... params)
+      throws SQLException {
+      return params.length == 0 ? this._esql.executeQueryAndReturnResult(sql)
+                                : this._esql.executeQueryAndReturnResult(sql, params);
+   }
+
+   public int executeQueryAndPrintResult (String sql) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(sql);
+   }
+
+   public boolean exists (String sql, Object... params) throws SQLException {
+      return this._esql.exists(sql, params);
+   }
+
+   public Object authenticate (String login, String password) throws SQLException {
+      return this._esql.authenticate(login, password);
+   }
+
+   public List<String> menuItemNames () throws SQLException {
+      List<String> names = new ArrayList<String>();
+      for (MenuItem item : this._esql.getMenu().getItems())
+         names.add(item.getItemName());
+      return names;
+   }
+
+   public Object findMenuItem (String itemName) throws SQLException {
+      return this._esql.getMenu().findByName(itemName);
+   }
+
+   public List<?> searchMenu (String query) throws SQLException {
+      return this._esql.getMenu().search(query, MenuSearchIndex.DEFAULT_LIMIT);
+   }
+
+   public int placeOrder (String login, boolean paid, List<String> itemNames)
+      throws SQLException {
+      return this._esql.placeOrder(login, paid, itemNames).getOrderid();
+   }
+}//end CafeBenchTarget
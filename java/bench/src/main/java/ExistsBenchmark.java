@@ -0,0 +1,118 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the row-counting membership checks Cafe used to run through
+ * executeQuery with the short-circuit exists/lookup probes, against a
+ * database loaded with data/users.csv.
+ *
+ * Usage: java ExistsBenchmark <dbname> <port> <user> [users.csv] [iterations]
+ */
+public class ExistsBenchmark {
+
+   private interface Probe {
+      boolean run(String login) throws Exception;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java ExistsBenchmark <dbname> <port> <user> "
+                            + "[users.csv] [iterations]");
+         return;
+      }//end if
+      String usersFile = args.length > 3 ? args[3] : "data/users.csv";
+      int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 2000;
+
+      Class.forName("org.postgresql.Driver");
+      final Cafe esql = new Cafe(args[0], args[1], args[2], "");
+      try {
+         List<String[]> users = readUsers(usersFile);
+         Collections.shuffle(users, new Random(42));
+         final List<String[]> sample = users.subList(0, Math.min(iterations, users.size()));
+         System.out.printf("%d users in %s, %d probes per case%n%n",
+                           users.size(), usersFile, sample.size());
+         System.out.printf("%-40s %10s %10s %10s%n", "case", "mean us", "p50 us", "p99 us");
+
+         run("login: count rows of SELECT *", sample, new Probe() {
+            public boolean run(String login) throws Exception {
+               return esql.executeQuery("SELECT * FROM Users U WHERE U.login = ?", login) > 0;
+            }
+         });
+         run("login: exists", sample, new Probe() {
+            public boolean run(String login) throws Exception {
+               return esql.userExists(login);
+            }
+         });
+         run("type=Customer: count rows of SELECT *", sample.subList(0, Math.min(50, sample.size())),
+             new Probe() {
+            public boolean run(String login) throws Exception {
+               return esql.executeQuery("SELECT * FROM Users WHERE type = ?", "Customer") > 0;
+            }
+         });
+         run("type=Customer: exists", sample, new Probe() {
+            public boolean run(String login) throws Exception {
+               return esql.exists("SELECT 1 FROM Users WHERE type = ? LIMIT 1", "Customer");
+            }
+         });
+         final List<String[]> credentials = sample;
+         run("credentials: count rows of SELECT *", sample, new Probe() {
+            int next = 0;
+            public boolean run(String login) throws Exception {
+               String[] u = credentials.get(next++ % credentials.size());
+               return esql.executeQuery("SELECT * FROM USERS WHERE login = ? AND password = ?",
+                                        u[0], u[2]) > 0;
+            }
+         });
+         run("credentials: lookup session", sample, new Probe() {
+            int next = 0;
+            public boolean run(String login) throws Exception {
+               String[] u = credentials.get(next++ % credentials.size());
+               return esql.authenticate(u[0], u[2]) != null;
+            }
+         });
+      }finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static void run(String name, List<String[]> sample, Probe probe) throws Exception {
+      // warm up the statement caches and the server's buffers
+      for (int i = 0; i < Math.min(100, sample.size()); ++i)
+         probe.run(sample.get(i)[0]);
+
+      long[] nanos = new long[sample.size()];
+      for (int i = 0; i < nanos.length; ++i) {
+         long start = System.nanoTime();
+         if (!probe.run(sample.get(i)[0]))
+            throw new IllegalStateException(name + ": probe found no row for " + sample.get(i)[0]);
+         nanos[i] = System.nanoTime() - start;
+      }//end for
+      Arrays.sort(nanos);
+      long total = 0;
+      for (long n : nanos)
+         total += n;
+      System.out.printf("%-40s %10.1f %10.1f %10.1f%n", name,
+                        total / 1e3 / nanos.length,
+                        nanos[nanos.length / 2] / 1e3,
+                        nanos[(int) Math.min(nanos.length - 1, nanos.length * 0.99)] / 1e3);
+   }//end run
+
+   private static List<String[]> readUsers(String file) throws IOException {
+      List<String[]> users = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null)
+            users.add(line.split(";", -1));
+      }finally {
+         reader.close();
+      }//end try
+      return users;
+   }//end readUsers
+}//end ExistsBenchmark
@@ -0,0 +1,151 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running Cafe server (Cafe ... --serve &lt;port&gt;) with a growing
+ * number of concurrent client sessions and prints, for each count, the
+ * command throughput, the latency percentiles and the speed-up over one
+ * session.  Every session logs in and loops over a mix of menu, search,
+ * history and profile commands; with --orders every tenth command places
+ * an unpaid order as well.
+ *
+ * Usage: java ServerLoadTest &lt;port&gt; &lt;login&gt; &lt;password&gt;
+ *        [--sessions 1,2,4,...] [--seconds s] [--item name] [--orders]
+ */
+public class ServerLoadTest {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java ServerLoadTest <port> <login> <password>"
+                            + " [--sessions 1,2,4,...] [--seconds s] [--item name] [--orders]");
+         return;
+      }//end if
+      int port = Integer.parseInt(args[0]);
+      String login = args[1];
+      String password = args[2];
+      String sessions = "1,2,4,8,16,32,64";
+      int seconds = 10;
+      String item = "Coffee";
+      boolean orders = false;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("--sessions") && i + 1 < args.length)
+            sessions = args[++i];
+         else if (args[i].equals("--seconds") && i + 1 < args.length)
+            seconds = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--item") && i + 1 < args.length)
+            item = args[++i];
+         else if (args[i].equals("--orders"))
+            orders = true;
+         else
+            throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }//end for
+
+      List<String> mix = new ArrayList<String>();
+      for (int i = 0; i < 10; ++i)
+         mix.add(i % 5 == 0 ? "history" : i % 5 == 1 ? "profile"
+                 : i % 2 == 0 ? "menu" : "search " + item);
+      if (orders)
+         mix.set(9, "order unpaid " + item);
+
+      System.out.printf("%d s per step, commands: %s%n%n", seconds, mix);
+      System.out.printf("%8s %12s %9s %9s %9s %8s %8s%n", "sessions", "commands/s", "p50 ms",
+                        "p99 ms", "max ms", "errors", "speed-up");
+      double single = 0;
+      for (String count : sessions.split(",")) {
+         int n = Integer.parseInt(count.trim());
+         LatencyHistogram latency = new LatencyHistogram();
+         AtomicLong errors = new AtomicLong();
+         long elapsed = step(port, login, password, mix, n, seconds * 1000L, latency, errors);
+         LatencyHistogram.Snapshot s = latency.snapshot();
+         double rate = s.getCount() * 1e9 / elapsed;
+         if (single == 0)
+            single = rate / n;
+         System.out.printf("%8d %12.0f %9.3f %9.3f %9.3f %8d %7.1fx%n", n, rate,
+                           s.getPercentileNanos(0.50) / 1e6, s.getPercentileNanos(0.99) / 1e6,
+                           s.getMaxNanos() / 1e6, errors.get(), single == 0 ? 0 : rate / single);
+      }//end for
+   }//end main
+
+   /*
+    * Runs n sessions for the given time and returns the nanoseconds the
+    * step took from the first command to the last.
+    **/
+   private static long step(final int port, final String login, final String password,
+                            final List<String> mix, int n, final long millis,
+                            final LatencyHistogram latency, final AtomicLong errors)
+      throws InterruptedException {
+      final CountDownLatch ready = new CountDownLatch(n);
+      final CountDownLatch go = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(n);
+      for (int i = 0; i < n; ++i) {
+         final long seed = i;
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               Socket socket = null;
+               try {
+                  socket = new Socket("localhost", port);
+                  socket.setTcpNoDelay(true);
+                  BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                  Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                  in.readLine();  // greeting
+                  if (!send(in, out, "login " + login + " " + password).startsWith("ok"))
+                     throw new IOException("login failed");
+                  ready.countDown();
+                  go.await();
+                  Random random = new Random(seed);
+                  long end = System.currentTimeMillis() + millis;
+                  while (System.currentTimeMillis() < end) {
+                     String command = mix.get(random.nextInt(mix.size()));
+                     long start = System.nanoTime();
+                     String reply = send(in, out, command);
+                     latency.record(System.nanoTime() - start);
+                     if (!reply.startsWith("ok"))
+                        errors.incrementAndGet();
+                  }//end while
+                  send(in, out, "logout");
+               }catch (Exception e) {
+                  errors.incrementAndGet();
+                  System.err.println("session " + seed + ": " + e.getMessage());
+                  ready.countDown();
+               }finally {
+                  if (socket != null) {
+                     try {
+                        socket.close();
+                     }catch (IOException e) {
+                        // ignored.
+                     }//end try
+                  }//end if
+                  done.countDown();
+               }//end try
+            }
+         }, "load-session-" + i);
+         t.setDaemon(true);
+         t.start();
+      }//end for
+      ready.await();
+      long start = System.nanoTime();
+      go.countDown();
+      done.await();
+      return System.nanoTime() - start;
+   }//end step
+
+   private static String send(BufferedReader in, Writer out, String command) throws IOException {
+      out.write(command);
+      out.write('\n');
+      out.flush();
+      String reply = in.readLine();
+      if (reply == null)
+         throw new IOException("server closed the session");
+      return reply;
+   }//end send
+}//end ServerLoadTest
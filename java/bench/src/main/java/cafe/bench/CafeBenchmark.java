@@ -0,0 +1,194 @@
+package cafe.bench;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for Cafe's executor methods and its login, menu search and
+ * order placement flows, run against a local PostgreSQL database loaded by
+ * scripts/setup_bench_db.sh.
+ *
+ * The database is chosen with -Dcafe.db, -Dcafe.port and -Dcafe.user, which
+ * default to $USER_BENCH, $PGPORT and $USER.  Benchmarks that write use a
+ * scratch table or remove the orders they placed when the trial ends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CafeBenchmark {
+
+   private static final String SCRATCH_TABLE = "cafe_bench_scratch";
+   private static final int SCRATCH_ROWS = 1000;
+
+   private CafeTarget cafe;
+   private String[][] users;
+   private String[] itemNames;
+   private String[] typedNames;
+   private final List<Integer> placedOrders = new ArrayList<Integer>();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      String user = System.getProperty("cafe.user", System.getenv("USER"));
+      String db = System.getProperty("cafe.db", user + "_BENCH");
+      String port = System.getProperty("cafe.port", System.getenv("PGPORT"));
+
+      cafe = (CafeTarget) Class.forName("CafeBenchTarget").newInstance();
+      cafe.open(db, port, user);
+
+      List<List<String>> rows = cafe.executeQueryAndReturnResult(
+         "SELECT login, password FROM Users ORDER BY login LIMIT ?", 1000);
+      users = new String[rows.size()][];
+      for (int i = 0; i < users.length; ++i)
+         users[i] = new String[] { rows.get(i).get(0).trim(), rows.get(i).get(1).trim() };
+      itemNames = cafe.menuItemNames().toArray(new String[0]);
+      // what a hurried typist enters: the first letters, lower case, one dropped
+      typedNames = new String[itemNames.length];
+      for (int i = 0; i < itemNames.length; ++i) {
+         String typed = itemNames[i].toLowerCase();
+         typed = typed.substring(0, Math.min(typed.length(), 7));
+         typedNames[i] = typed.length() > 4 ? typed.substring(0, 2) + typed.substring(3) : typed;
+      }//end for
+
+      cafe.executeUpdate("DROP TABLE IF EXISTS " + SCRATCH_TABLE);
+      cafe.executeUpdate("CREATE TABLE " + SCRATCH_TABLE + " (id integer PRIMARY KEY, hits integer)");
+      cafe.executeUpdate("INSERT INTO " + SCRATCH_TABLE
+                         + " SELECT g, 0 FROM generate_series(1, " + SCRATCH_ROWS + ") g");
+   }//end setUp
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws SQLException {
+      try {
+         cafe.executeUpdate("DROP TABLE IF EXISTS " + SCRATCH_TABLE);
+         for (Integer orderid : placedOrders) {
+            cafe.executeUpdate("DELETE FROM placesOrder WHERE orderid = ?", orderid);
+            cafe.executeUpdate("DELETE FROM ItemStatus WHERE orderid = ?", orderid);
+            cafe.executeUpdate("DELETE FROM Orders WHERE orderid = ?", orderid);
+         }//end for
+      }finally {
+         cafe.close();
+      }//end try
+   }//end tearDown
+
+   private String randomLogin() {
+      return randomUser()[0];
+   }
+
+   private String[] randomUser() {
+      return users[ThreadLocalRandom.current().nextInt(users.length)];
+   }
+
+   private String randomItem() {
+      return itemNames[ThreadLocalRandom.current().nextInt(itemNames.length)];
+   }
+
+   private int randomScratchId() {
+      return 1 + ThreadLocalRandom.current().nextInt(SCRATCH_ROWS);
+   }
+
+   // ---- executor methods -------------------------------------------------
+
+   @Benchmark
+   public int executeUpdateLiteral() throws SQLException {
+      return cafe.executeUpdate("UPDATE " + SCRATCH_TABLE + " SET hits = hits + 1 WHERE id = "
+                                + randomScratchId());
+   }
+
+   @Benchmark
+   public int executeUpdateParameterized() throws SQLException {
+      return cafe.executeUpdate("UPDATE " + SCRATCH_TABLE + " SET hits = hits + 1 WHERE id = ?",
+                                randomScratchId());
+   }
+
+   @Benchmark
+   public int executeQueryLiteral() throws SQLException {
+      return cafe.executeQuery("SELECT * FROM Users WHERE login = '" + randomLogin() + "'");
+   }
+
+   @Benchmark
+   public int executeQueryParameterized() throws SQLException {
+      return cafe.executeQuery("SELECT * FROM Users WHERE login = ?", randomLogin());
+   }
+
+   @Benchmark
+   public boolean existsParameterized() throws SQLException {
+      return cafe.exists("SELECT 1 FROM Users WHERE login = ?", randomLogin());
+   }
+
+   @Benchmark
+   public List<List<String>> executeQueryAndReturnResultLiteral() throws SQLException {
+      return cafe.executeQueryAndReturnResult("SELECT * FROM Users WHERE login = '"
+                                              + randomLogin() + "'");
+   }
+
+   @Benchmark
+   public List<List<String>> executeQueryAndReturnResultParameterized() throws SQLException {
+      return cafe.executeQueryAndReturnResult("SELECT * FROM Users WHERE login = ?",
+                                              randomLogin());
+   }
+
+   @Benchmark
+   public int executeQueryAndPrintResultMenu() throws SQLException {
+      return cafe.executeQueryAndPrintResult("SELECT * FROM Menu");
+   }
+
+   @Benchmark
+   @OutputTimeUnit(TimeUnit.MILLISECONDS)
+   public int executeQueryAndPrintResultUsers() throws SQLException {
+      return cafe.executeQueryAndPrintResult("SELECT * FROM Users");
+   }
+
+   // ---- flows ------------------------------------------------------------
+
+   @Benchmark
+   public Object loginFlow() throws SQLException {
+      String[] user = randomUser();
+      return cafe.authenticate(user[0], user[1]);
+   }
+
+   @Benchmark
+   public Object menuSearchCatalog() throws SQLException {
+      return cafe.findMenuItem(randomItem());
+   }
+
+   @Benchmark
+   public List<?> menuSearchTypeahead() throws SQLException {
+      return cafe.searchMenu(typedNames[ThreadLocalRandom.current().nextInt(typedNames.length)]);
+   }
+
+   @Benchmark
+   public List<List<String>> menuSearchDatabase() throws SQLException {
+      return cafe.executeQueryAndReturnResult("SELECT * FROM Menu WHERE itemName = ?",
+                                              randomItem());
+   }
+
+   @Benchmark
+   public int placeOrderFlow() throws SQLException {
+      String first = randomItem();
+      String second = randomItem();
+      int orderid = cafe.placeOrder(randomLogin(), false, Arrays.asList(first, second));
+      synchronized (placedOrders) {
+         placedOrders.add(orderid);
+      }
+      return orderid;
+   }
+}//end CafeBenchmark
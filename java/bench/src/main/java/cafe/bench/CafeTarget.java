@@ -0,0 +1,62 @@
+package cafe.bench;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The Cafe operations the benchmarks measure.  Cafe lives in the default
+ * package, which JMH benchmarks cannot import, so the default package class
+ * CafeBenchTarget implements this interface by delegating to Cafe.
+ */
+public interface CafeTarget {
+
+   /**
+    * Method to connect to the benchmark database.
+    *
+    * @param dbname the database name
+    * @param dbport the port, may be null for the default
+    * @param user the database user
+    * @throws Exception when the driver is missing or the connection fails
+    */
+   void open (String dbname, String dbport, String user) throws Exception;
+
+   void close () throws SQLException;
+
+   /**
+    * The executor methods: with no params the plain String overload of Cafe
+    * is called, otherwise the parameterized one.  The plain executeUpdate
+    * does not report a row count, so 0 is returned for it.
+    */
+   int executeUpdate (String sql, Object... params) throws SQLException;
+
+   int executeQuery (String sql, Object... params) throws SQLException;
+
+   List<List<String>> executeQueryAndReturnResult (String sql, Object... params)
+      throws SQLException;
+
+   int executeQueryAndPrintResult (String sql) throws SQLException;
+
+   boolean exists (String sql, Object... params) throws SQLException;
+
+   /**
+    * @return the session, or null when the login or password is wrong
+    */
+   Object authenticate (String login, String password) throws SQLException;
+
+   List<String> menuItemNames () throws SQLException;
+
+   /**
+    * @return the cached menu item, or null when there is none by that name
+    */
+   Object findMenuItem (String itemName) throws SQLException;
+
+   /**
+    * @return the menu items matching a typed prefix, typos allowed
+    */
+   List<?> searchMenu (String query) throws SQLException;
+
+   /**
+    * @return the id of the new order
+    */
+   int placeOrder (String login, boolean paid, List<String> itemNames) throws SQLException;
+}//end CafeTarget
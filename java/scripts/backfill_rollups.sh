@@ -0,0 +1,11 @@
+#!/bin/bash
+# Rebuilds the sales rollups from the orders in the database (see
+# java/src/SalesRollup.java for the options), e.g.
+#    source ./java/scripts/backfill_rollups.sh --from 2024-01-01
+# Run from the main project folder.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/*.java
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SalesRollup $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+# Exports the orders and item status rows of a date range to data/export,
+# a file pair per day (see java/src/OrderExporter.java for the options), e.g.
+#    source ./java/scripts/export_orders.sh 2024-01-01 2024-01-31 --format columnar
+# Run from the main project folder.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/*.java
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderExporter $USER"_DB" $PGPORT $USER "$@"
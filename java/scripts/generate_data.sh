@@ -0,0 +1,11 @@
+#!/bin/bash
+# Writes a synthetic dataset to data/generated (see java/src/DataGenerator.java
+# for the options), e.g.
+#    source ./java/scripts/generate_data.sh --users 1000000 --orders 20000000
+# Run from the main project folder.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/*.java
+
+java -cp $DIR/../classes DataGenerator "$@"
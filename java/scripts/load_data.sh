@@ -0,0 +1,11 @@
+#!/bin/bash
+# Loads the ';' delimited data files into the database (see
+# java/src/BulkLoader.java for the options), e.g.
+#    source ./java/scripts/load_data.sh --data data/generated --threads 8
+# Run from the main project folder.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/*.java
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,12 @@
+#!/bin/bash
+# Creates the coming monthly partitions of Orders and archives the old ones
+# to data/archive (see java/src/PartitionMaintenance.java for the options),
+# e.g. once a day in the background:
+#    source ./java/scripts/maintain_partitions.sh --keep 6 --every 24 &
+# Run from the main project folder.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/*.java
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PartitionMaintenance $USER"_DB" $PGPORT $USER "$@"
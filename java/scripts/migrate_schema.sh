@@ -0,0 +1,12 @@
+#!/bin/bash
+# Converts an existing database to the compact schema of create_tables.sql
+# (see java/src/SchemaMigration.java for the options), e.g.
+#    source ./java/scripts/migrate_schema.sh --batch 5000
+# Safe to run again: finished steps are skipped, an interrupted one resumes.
+# Run from the main project folder.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/*.java
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SchemaMigration $USER"_DB" $PGPORT $USER "$@"
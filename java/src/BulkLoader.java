@@ -0,0 +1,635 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class loads the ';' delimited data files (data/menu.csv,
+ * data/users.csv, and the orders, itemStatus and placesOrder files
+ * DataGenerator writes) from the client, so no absolute server paths are
+ * needed.
+ *
+ * Rows are sent with COPY ... FROM STDIN when the JDBC driver offers the
+ * copy API (getCopyAPI, PostgreSQL drivers 8.4 and later); the bundled 7.3
+ * driver has none, so there rows are sent as multi-row INSERTs of
+ * BATCH_ROWS rows each, committed every COMMIT_ROWS rows.
+ *
+ * Tables are loaded in foreign key order, one level at a time, and every
+ * file of a level (shards such as orders.003.csv included) on a connection
+ * of its own in parallel.  Secondary indexes and user triggers (the order
+ * change feed) are dropped and disabled for the load and rebuilt, in
+ * parallel, afterwards, whether or not the load succeeded.  The dropped
+ * index definitions are kept in the bulk_load_indexes table until rebuilt,
+ * so a run that died midway has them restored by the next one.  Serial
+ * sequences are then moved past the largest id loaded.  Progress and rows per second are printed as the load runs.
+ *
+ * Usage: java BulkLoader &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [--data dir]
+ *        [--threads n] [--inserts] [--truncate]
+ */
+public class BulkLoader {
+
+   public static final String DEFAULT_DATA_DIR = "data";
+
+   // the tables in load order; tables of the same level load together
+   private static final String[][] LEVELS = {
+      { "Menu", "Users" },
+      { "Orders" },
+      { "ItemStatus", "placesOrder" }
+   };
+
+   // rows per INSERT and per commit when COPY is not available
+   private static final int BATCH_ROWS = 500;
+   private static final int COMMIT_ROWS = 20000;
+
+   private static final long PROGRESS_MILLIS = 2000;
+
+   private final Cafe _esql;
+   private final File _dataDir;
+   private final int _threads;
+   private final boolean _forceInserts;
+
+   private final AtomicLong _rows = new AtomicLong();
+   private final List<Load> _loads = new ArrayList<Load>();
+
+   /*
+    * One file being loaded into a table.
+    **/
+   private static class Load {
+      private final String _table;
+      private final File _file;
+      private final AtomicLong _rows = new AtomicLong();
+      private volatile long _started = 0;
+      private volatile long _finished = 0;
+      private volatile String _method = "";
+
+      Load(String table, File file) {
+         this._table = table;
+         this._file = file;
+      }
+   }//end Load
+
+   /**
+    * Creates a new loader
+    *
+    * @param esql the database to load into
+    * @param dataDir the directory holding the data files
+    * @param threads the most files loaded, or indexes built, at once
+    * @param forceInserts whether to use INSERTs even if COPY is available
+    */
+   public BulkLoader(Cafe esql, File dataDir, int threads, boolean forceInserts) {
+      if (threads < 1)
+         throw new IllegalArgumentException("threads must be positive: " + threads);
+      this._esql = esql;
+      this._dataDir = dataDir;
+      this._threads = threads;
+      this._forceInserts = forceInserts;
+   }//end BulkLoader
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println("Usage: java BulkLoader <dbname> <port> <user> [--data dir]"
+                            + " [--threads n] [--inserts] [--truncate]");
+         System.exit(1);
+      }//end if
+      File data = new File(DEFAULT_DATA_DIR);
+      int threads = Math.min(8, Runtime.getRuntime().availableProcessors());
+      boolean inserts = false;
+      boolean truncate = false;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("--data") && i + 1 < args.length)
+            data = new File(args[++i]);
+         else if (args[i].equals("--threads") && i + 1 < args.length)
+            threads = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--inserts"))
+            inserts = true;
+         else if (args[i].equals("--truncate"))
+            truncate = true;
+         else {
+            System.err.println("Unknown option: " + args[i]);
+            System.exit(1);
+         }//end if
+      }//end for
+
+      Cafe esql = null;
+      try {
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1], args[2], "", ConnectionPool.DEFAULT_MIN_SIZE,
+                         threads + 1);
+         BulkLoader loader = new BulkLoader(esql, data, threads, inserts);
+         if (truncate)
+            loader.truncate();
+         loader.load();
+      }catch (Exception e) {
+         System.err.println("Load failed: " + e.getMessage());
+         System.exit(1);
+      }finally {
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Method to empty every table the loader fills, and the tables that
+    * reference them.
+    *
+    * @throws java.sql.SQLException when the tables cannot be truncated
+    */
+   public void truncate() throws SQLException {
+      StringBuilder tables = new StringBuilder();
+      for (String[] level : LEVELS)
+         for (String table : level)
+            tables.append(tables.length() == 0 ? "" : ", ").append(table);
+      this._esql.executeUpdate("TRUNCATE " + tables + " CASCADE");
+   }//end truncate
+
+   /**
+    * Method to load every data file found, then rebuild the indexes and
+    * move the sequences.
+    *
+    * @throws java.sql.SQLException when a file cannot be loaded
+    * @throws java.io.IOException when a file cannot be read
+    * @throws InterruptedException when interrupted while loading
+    */
+   public void load() throws SQLException, IOException, InterruptedException {
+      List<String> tables = new ArrayList<String>();
+      for (String[] level : LEVELS)
+         tables.addAll(Arrays.asList(level));
+
+      ExecutorService workers = Executors.newFixedThreadPool(this._threads, daemons("cafe-load"));
+      try {
+         this._esql.executeUpdate("CREATE TABLE IF NOT EXISTS bulk_load_indexes("
+                                  + "indexName text PRIMARY KEY, definition text NOT NULL)");
+         // left over by a load that did not get to rebuild them
+         int restored = rebuildIndexes(workers);
+         if (restored > 0)
+            System.out.println("restored " + restored + " indexes dropped by an earlier load");
+         load(tables, workers);
+      }finally {
+         workers.shutdownNow();
+      }//end try
+   }//end load
+
+   private void load(List<String> tables, ExecutorService workers)
+      throws SQLException, IOException, InterruptedException {
+      dropIndexes(tables);
+      ScheduledExecutorService progress =
+         Executors.newSingleThreadScheduledExecutor(daemons("cafe-load-progress"));
+      final long start = System.nanoTime();
+      progress.scheduleAtFixedRate(new Runnable() {
+         public void run() {
+            printProgress(start);
+         }
+      }, PROGRESS_MILLIS, PROGRESS_MILLIS, TimeUnit.MILLISECONDS);
+      boolean loadedAll = false;
+      long loaded = 0;
+      int rebuilt = 0;
+      try {
+         setUserTriggers(tables, false);
+         for (String[] level : LEVELS) {
+            List<Callable<Void>> level_loads = new ArrayList<Callable<Void>>();
+            for (String table : level) {
+               List<File> files = files(table);
+               if (files.isEmpty())
+                  System.out.println(table + ": no data file in " + this._dataDir);
+               for (File file : files) {
+                  final Load load = new Load(table, file);
+                  synchronized (this._loads) {
+                     this._loads.add(load);
+                  }//end synchronized
+                  level_loads.add(new Callable<Void>() {
+                     public Void call() throws Exception {
+                        loadFile(load);
+                        return null;
+                     }
+                  });
+               }//end for
+            }//end for
+            // a level starts only after the tables it references are loaded
+            runAll(workers, level_loads);
+         }//end for
+         loadedAll = true;
+      }finally {
+         progress.shutdownNow();
+         printProgress(start);
+         loaded = System.nanoTime();
+         // the tables get their triggers and indexes back even if the load failed
+         try {
+            setUserTriggers(tables, true);
+            rebuilt = rebuildIndexes(workers);
+         }catch (Exception e) {
+            if (loadedAll)
+               throw e;
+            // keep the load's own error; the definitions stay saved for a rerun
+            System.err.println("Could not restore the tables after the failed load: "
+                               + e.getMessage());
+         }//end try
+      }//end try
+      System.out.printf("rebuilt %d indexes in %.1f s%n", rebuilt,
+                        (System.nanoTime() - loaded) / 1e9);
+
+      resetSequences(tables);
+      for (String table : tables)
+         this._esql.executeUpdate("ANALYZE " + table);
+      System.out.printf("loaded %d rows in %.1f s%n", this._rows.get(),
+                        (System.nanoTime() - start) / 1e9);
+   }//end load
+
+   /*
+    * Streams one file into its table, with COPY if the driver can.
+    **/
+   private void loadFile(Load load) throws SQLException, IOException {
+      load._started = System.nanoTime();
+      Connection connection = this._esql.getPool().openDedicated();
+      Reader reader = new CountingReader(new BufferedReader(new InputStreamReader(
+         new FileInputStream(load._file), "UTF-8"), 1 << 16), load._rows, this._rows);
+      try {
+         Object copier = this._forceInserts ? null : copyManager(connection);
+         if (copier != null) {
+            load._method = "copy";
+            copy(copier, "COPY " + load._table + " FROM STDIN WITH DELIMITER ';'", reader);
+         }else {
+            load._method = "insert";
+            insert(connection, load._table, new BufferedReader(reader));
+         }//end if
+      }finally {
+         reader.close();
+         connection.close();
+         load._finished = System.nanoTime();
+      }//end try
+   }//end loadFile
+
+   /*
+    * The fallback: multi-row INSERTs.  Values are bound as strings, which
+    * the 7.3 driver sends as untyped literals and newer ones as text, and
+    * cast to the column types in the SQL, so the server converts them as
+    * COPY would.
+    **/
+   private static void insert(Connection connection, String table, BufferedReader in)
+      throws SQLException, IOException {
+      List<String> types = columnTypes(connection, table);
+      connection.setAutoCommit(false);
+      PreparedStatement full = null;
+      try {
+         List<String[]> rows = new ArrayList<String[]>(BATCH_ROWS);
+         int uncommitted = 0;
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (line.isEmpty())
+               continue;
+            String[] values = parseLine(line);
+            if (values.length != types.size())
+               throw new SQLException(table + ": expected " + types.size() + " values in " + line);
+            rows.add(values);
+            if (rows.size() == BATCH_ROWS) {
+               if (full == null)
+                  full = connection.prepareStatement(insertSql(table, types, BATCH_ROWS));
+               bindAndRun(full, rows);
+               uncommitted += rows.size();
+               rows.clear();
+               if (uncommitted >= COMMIT_ROWS) {
+                  connection.commit();
+                  uncommitted = 0;
+               }//end if
+            }//end if
+         }//end while
+         if (!rows.isEmpty()) {
+            PreparedStatement tail =
+               connection.prepareStatement(insertSql(table, types, rows.size()));
+            try {
+               bindAndRun(tail, rows);
+            }finally {
+               tail.close();
+            }//end try
+         }//end if
+         connection.commit();
+      }finally {
+         if (full != null)
+            full.close();
+      }//end try
+   }//end insert
+
+   /*
+    * The types of the columns of a table, in table order, which is the
+    * order of the values in its data files.
+    **/
+   private static List<String> columnTypes(Connection connection, String table)
+      throws SQLException {
+      List<String> types = new ArrayList<String>();
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT format_type(atttypid, atttypmod) FROM pg_attribute"
+            + " WHERE attrelid = '" + table.toLowerCase() + "'::regclass"
+            + " AND attnum > 0 AND NOT attisdropped ORDER BY attnum");
+         while (rs.next())
+            types.add(rs.getString(1));
+         rs.close();
+      }finally {
+         stmt.close();
+      }//end try
+      return types;
+   }//end columnTypes
+
+   private static String insertSql(String table, List<String> types, int rows) {
+      StringBuilder row = new StringBuilder("(");
+      for (int i = 0; i < types.size(); ++i)
+         row.append(i == 0 ? "" : ",").append("?::").append(types.get(i));
+      row.append(')');
+      StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES ");
+      for (int i = 0; i < rows; ++i)
+         sql.append(i == 0 ? "" : ",").append(row);
+      return sql.toString();
+   }//end insertSql
+
+   private static void bindAndRun(PreparedStatement stmt, List<String[]> rows)
+      throws SQLException {
+      int index = 1;
+      for (String[] values : rows) {
+         for (String value : values) {
+            if (value == null)
+               stmt.setNull(index++, Types.VARCHAR);
+            else
+               stmt.setString(index++, value);
+         }//end for
+      }//end for
+      stmt.executeUpdate();
+   }//end bindAndRun
+
+   /*
+    * Splits a line of COPY text format on the unescaped delimiters and
+    * undoes the backslash escapes; a value of just \N is NULL.
+    **/
+   static String[] parseLine(String line) {
+      List<String> values = new ArrayList<String>();
+      StringBuilder value = new StringBuilder();
+      boolean isNull = false;
+      for (int i = 0; i <= line.length(); ++i) {
+         char ch = i < line.length() ? line.charAt(i) : ';';
+         if (ch == ';') {
+            values.add(isNull && value.length() == 0 ? null : value.toString());
+            value.setLength(0);
+            isNull = false;
+         }else if (ch == '\\' && i + 1 < line.length()) {
+            char next = line.charAt(++i);
+            if (next == 'N' && value.length() == 0)
+               isNull = true;
+            else
+               value.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next == 't' ? '\t' : next);
+         }else {
+            value.append(ch);
+         }//end if
+      }//end for
+      return values.toArray(new String[values.size()]);
+   }//end parseLine
+
+   /*
+    * The driver's CopyManager, looked up at run time as the bundled driver
+    * has none; null when not available.
+    **/
+   private static Object copyManager(Connection connection) {
+      try {
+         Class<?> pg = Class.forName("org.postgresql.PGConnection", true,
+                                     connection.getClass().getClassLoader());
+         Object pgConnection = connection.isWrapperFor(pg) ? connection.unwrap(pg) : connection;
+         return pg.getMethod("getCopyAPI").invoke(pgConnection);
+      }catch (Throwable e) {
+         // no copy API; AbstractMethodError for drivers older than JDBC 4
+         return null;
+      }//end try
+   }//end copyManager
+
+   private static void copy(Object copier, String sql, Reader reader)
+      throws SQLException, IOException {
+      try {
+         Method copyIn = copier.getClass().getMethod("copyIn", String.class, Reader.class);
+         copyIn.invoke(copier, sql, reader);
+      }catch (InvocationTargetException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         throw new SQLException("COPY failed: " + e.getCause());
+      }catch (ReflectiveOperationException e) {
+         throw new SQLException("COPY failed: " + e);
+      }//end try
+   }//end copy
+
+   /*
+    * Drops the indexes that back no constraint, saving each definition in
+    * bulk_load_indexes first.
+    **/
+   private void dropIndexes(List<String> tables) throws SQLException {
+      List<String[]> indexes = new ArrayList<String[]>();
+      for (String table : tables) {
+         for (List<String> row : this._esql.executeQueryAndReturnResult(
+                 "SELECT c.relname, pg_get_indexdef(i.indexrelid) FROM pg_index i"
+                 + " JOIN pg_class c ON c.oid = i.indexrelid"
+                 + " WHERE i.indrelid = ?::regclass"
+                 + " AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid)",
+                 table.toLowerCase()))
+            indexes.add(new String[] { row.get(0), row.get(1) });
+      }//end for
+      for (String[] index : indexes) {
+         this._esql.executeUpdate("INSERT INTO bulk_load_indexes (indexName, definition)"
+                                  + " VALUES (?, ?) ON CONFLICT (indexName) DO NOTHING",
+                                  index[0], index[1]);
+         this._esql.executeUpdate("DROP INDEX " + index[0]);
+      }//end for
+      System.out.println("dropped " + indexes.size() + " indexes for the load");
+   }//end dropIndexes
+
+   /*
+    * Builds the saved indexes in parallel, forgetting each one once it is
+    * built, and returns how many there were.  IF NOT EXISTS makes a
+    * definition saved for an index that was never dropped harmless.
+    **/
+   private int rebuildIndexes(ExecutorService workers)
+      throws SQLException, IOException, InterruptedException {
+      List<Callable<Void>> builds = new ArrayList<Callable<Void>>();
+      for (final List<String> index : this._esql.executeQueryAndReturnResult(
+              "SELECT indexName, definition FROM bulk_load_indexes")) {
+         builds.add(new Callable<Void>() {
+            public Void call() throws Exception {
+               executeDedicated(index.get(1).replaceFirst("^CREATE (UNIQUE )?INDEX ",
+                                                          "CREATE $1INDEX IF NOT EXISTS "));
+               BulkLoader.this._esql.executeUpdate(
+                  "DELETE FROM bulk_load_indexes WHERE indexName = ?", index.get(0));
+               return null;
+            }
+         });
+      }//end for
+      runAll(workers, builds);
+      return builds.size();
+   }//end rebuildIndexes
+
+   private void setUserTriggers(List<String> tables, boolean enabled) throws SQLException {
+      for (String table : tables)
+         this._esql.executeUpdate("ALTER TABLE " + table
+                                  + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER USER");
+   }//end setUserTriggers
+
+   /*
+    * Moves every serial sequence of the tables past the largest id in
+    * them, so ids handed out next do not collide with loaded ones.
+    **/
+   private void resetSequences(List<String> tables) throws SQLException {
+      for (String table : tables) {
+         for (List<String> row : this._esql.executeQueryAndReturnResult(
+                 "SELECT column_name, pg_get_serial_sequence(?, column_name)"
+                 + " FROM information_schema.columns WHERE table_schema = current_schema()"
+                 + " AND table_name = ? AND column_default LIKE 'nextval(%'",
+                 table.toLowerCase(), table.toLowerCase())) {
+            if (row.get(1) == null)
+               continue;
+            List<List<String>> next = this._esql.executeQueryAndReturnResult(
+               "SELECT setval('" + row.get(1) + "', coalesce(max(" + row.get(0) + "), 0) + 1,"
+               + " false) FROM " + table);
+            System.out.println(row.get(1) + " restarts at " + next.get(0).get(0));
+         }//end for
+      }//end for
+   }//end resetSequences
+
+   private void executeDedicated(String sql) throws SQLException {
+      Connection connection = this._esql.getPool().openDedicated();
+      try {
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.execute(sql);
+         }finally {
+            stmt.close();
+         }//end try
+      }finally {
+         connection.close();
+      }//end try
+   }//end executeDedicated
+
+   /*
+    * The files of a table: <name>.csv, or the shards <name>.NNN.csv, where
+    * name is the table name with a lower case first letter.
+    **/
+   private List<File> files(String table) {
+      final String name = Character.toLowerCase(table.charAt(0)) + table.substring(1);
+      List<File> files = new ArrayList<File>();
+      File single = new File(this._dataDir, name + ".csv");
+      if (single.isFile())
+         files.add(single);
+      File[] shards = this._dataDir.listFiles();
+      if (shards != null) {
+         Arrays.sort(shards);
+         for (File shard : shards)
+            if (shard.getName().matches(java.util.regex.Pattern.quote(name) + "\\.[0-9]+\\.csv"))
+               files.add(shard);
+      }//end if
+      return files;
+   }//end files
+
+   private void printProgress(long start) {
+      List<Load> loads;
+      synchronized (this._loads) {
+         loads = new ArrayList<Load>(this._loads);
+      }//end synchronized
+      long now = System.nanoTime();
+      StringBuilder line = new StringBuilder();
+      for (Load load : loads) {
+         if (load._started == 0)
+            continue;
+         long end = load._finished == 0 ? now : load._finished;
+         double seconds = Math.max(1e-9, (end - load._started) / 1e9);
+         line.append(String.format("  %s %s %d rows %.0f/s%s%n", load._file.getName(),
+                                   load._method, load._rows.get(), load._rows.get() / seconds,
+                                   load._finished == 0 ? "" : " done"));
+      }//end for
+      double seconds = Math.max(1e-9, (now - start) / 1e9);
+      System.out.printf("%.0f s: %d rows, %.0f rows/s%n%s", seconds, this._rows.get(),
+                        this._rows.get() / seconds, line);
+   }//end printProgress
+
+   private static void runAll(ExecutorService workers, List<Callable<Void>> tasks)
+      throws SQLException, IOException, InterruptedException {
+      List<Future<Void>> futures = workers.invokeAll(tasks);
+      for (Future<Void> future : futures) {
+         try {
+            future.get();
+         }catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            if (e.getCause() instanceof IOException)
+               throw (IOException) e.getCause();
+            throw new SQLException("Load failed: " + e.getCause());
+         }//end try
+      }//end for
+   }//end runAll
+
+   private static ThreadFactory daemons(final String name) {
+      return new ThreadFactory() {
+         private final AtomicInteger _next = new AtomicInteger();
+
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + this._next.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      };
+   }//end daemons
+
+   /*
+    * Counts the lines read, which are the rows of a data file.
+    **/
+   private static class CountingReader extends FilterReader {
+      private final AtomicLong _fileRows;
+      private final AtomicLong _allRows;
+
+      CountingReader(Reader in, AtomicLong fileRows, AtomicLong allRows) {
+         super(in);
+         this._fileRows = fileRows;
+         this._allRows = allRows;
+      }
+
+      public int read() throws IOException {
+         int ch = super.read();
+         if (ch == '\n')
+            count(1);
+         return ch;
+      }
+
+      public int read(char[] buffer, int offset, int length) throws IOException {
+         int n = super.read(buffer, offset, length);
+         int lines = 0;
+         for (int i = offset; i < offset + n; ++i)
+            if (buffer[i] == '\n')
+               ++lines;
+         if (lines > 0)
+            count(lines);
+         return n;
+      }
+
+      private void count(int lines) {
+         this._fileRows.addAndGet(lines);
+         this._allRows.addAndGet(lines);
+      }
+   }//end CountingReader
+}//end BulkLoader
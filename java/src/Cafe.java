@@ -11,19 +11,28 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,8 +41,63 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+
+   // default number of rows fetched per round trip when streaming results.
+   public static final int DEFAULT_FETCH_SIZE = 500;
+
+   // ItemStatus.status of an item that was just ordered.
+   public static final String ITEM_STATUS_NEW = "Hasn't started";
+
+   // order ids per UPDATE when marking orders paid in bulk; shorter id
+   // lists are padded to one of these sizes to keep the statement shapes few.
+   private static final int[] MARK_PAID_BATCH_SIZES = { 1, 16, 128, 1024 };
+
+   // the most order ids one range such as 5-9 may name.
+   public static final int MAX_ORDER_ID_RANGE = 100000;
+
+   // rows per page when printing results to the terminal.
+   public static final int DEFAULT_PAGE_ROWS = 50;
+
+   // name of the explicit cursor used when the driver cannot stream itself.
+   private static final String STREAM_CURSOR = "cafe_stream";
+
+   // fetch size used by executeQuery and executeQueryAndPrintResult.
+   private volatile int _fetchSize = DEFAULT_FETCH_SIZE;
+
+   // whether the driver supports setFetchSize, null until first tried.
+   private volatile Boolean _driverCursors = null;
+
+   // how executeQueryAndPrintResult formats and pages its output.
+   private volatile TableRenderer.Format _outputFormat = TableRenderer.Format.TABLE;
+   private volatile int _pageRows = 0;
+   private volatile TableRenderer.Pager _pager = null;
+
+   // snapshot of the Menu table, null until first used or after a failed reload.
+   private volatile MenuCatalog _menu = null;
+
+   // pages through the orders of a customer.
+   private final OrderHistory _history = new OrderHistory (this);
+
+   // reads the sales rollups for the manager reports.
+   private final SalesRollup _sales = new SalesRollup (this);
+
+   // unpaid orders of the last day, null until first used or after a failed load.
+   private volatile UnpaidOrderWindow _unpaidOrders = null;
+
+   // held while the menu or the unpaid orders are (re)loaded; a lock rather
+   // than a monitor, so sessions on virtual threads waiting for it do not pin.
+   private final ReentrantLock _loadLock = new ReentrantLock ();
+
+   // hands out order ids from blocks reserved on orders_orderid_seq.
+   private OrderIdAllocator _orderIds = null;
+
+   // latency, row and error counts per query shape.
+   private final QueryMetrics _metrics = new QueryMetrics ();
+
+   // results of repeated reads, null while result caching is off.
+   private volatile ResultCache _resultCache = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -50,6 +114,24 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd,
+           ConnectionPool.DEFAULT_MIN_SIZE, ConnectionPool.DEFAULT_MAX_SIZE);
+   }//end Cafe
+
+   /**
+    * Creates a new instance of Cafe backed by a connection pool of the
+    * given size
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minPoolSize the number of connections kept open at all times
+    * @param maxPoolSize the maximum number of connections open at once
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe(String dbname, String dbport, String user, String passwd,
+               int minPoolSize, int maxPoolSize) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -57,8 +139,9 @@ public class Cafe {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // obtain the physical connections
+         this._pool = new ConnectionPool(url, user, passwd, minPoolSize, maxPoolSize);
+         this._orderIds = new OrderIdAllocator(this, OrderIdAllocator.ORDER_SEQUENCE);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -75,152 +158,1356 @@ public class Cafe {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         // creates a statement object
+         Statement stmt = c.getConnection ().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         rowCount = stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+         invalidateResults (sql);
+      }catch (SQLException e){
+         error = e;
+         c.markSuspect ();
+         throw e;
+      }finally{
+         this._pool.release (c);
+         this._metrics.record (sql, System.nanoTime () - start, rowCount, 0, error);
+      }//end try
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out in the current output format.  Rows are streamed, so
+    * large results are not held in memory.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
+      ResultPrinter printer = new ResultPrinter ();
+      int rowCount = stream (query, null, this._fetchSize, printer);
+      printer.finish ();
       return rowCount;
    }//end executeQuery
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * a list of records. Each record in turn is a list of attribute values.
+    * The whole result is held in memory; use executeQueryStreaming for
+    * results that can grow large.  With result caching on, a repeated
+    * query is answered from the cache and the lists are read only.
     *
     * @param query the input query string
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      ResultCache cache = cacheFor (query);
+      if (cache == null)
+         return fetchResult (query);
+      List<List<String>> rows = cache.get (ResultCache.ALL_ROWS, query, null);
+      if (rows == null){
+         long epoch = cache.epoch ();
+         rows = cache.put (ResultCache.ALL_ROWS, query, null, fetchResult (query), epoch);
+      }//end if
+      return rows;
    }//end executeQueryAndReturnResult
 
+   private List<List<String>> fetchResult (String query) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         // creates a statement object
+         Statement stmt = c.getConnection ().createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         result = collectResult (rs);
+         stmt.close ();
+         return result;
+      }catch (SQLException e){
+         error = e;
+         c.markSuspect ();
+         throw e;
+      }finally{
+         this._pool.release (c);
+         recordResult (query, start, result, error);
+      }//end try
+   }//end fetchResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * method issues the query to the DBMS and returns the number of results.
+    * Rows are streamed and counted without being held in memory.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      return stream (query, null, this._fetchSize, new RowCounter ());
+   }//end executeQuery
+
+   /**
+    * Method to execute a parameterized update SQL statement.  The statement
+    * is taken from the statement cache of the borrowed connection, so
+    * repeated calls with the same SQL string are not parsed again.
+    *
+    * @param sql the SQL string with a '?' placeholder per parameter
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         rowCount = prepare (c, sql, params).executeUpdate ();
+         invalidateResults (sql);
+         return rowCount;
+      }catch (SQLException e){
+         error = e;
+         discardStatement (c, sql);
+         throw e;
+      }finally{
+         this._pool.release (c);
+         this._metrics.record (sql, System.nanoTime () - start, rowCount, 0, error);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Method to execute a parameterized query and output the results to
+    * standard out.
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      ResultPrinter printer = new ResultPrinter ();
+      int rowCount = stream (query, params, this._fetchSize, printer);
+      printer.finish ();
+      return rowCount;
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records. Each record in turn is a list of attribute values.
+    * With result caching on, a query repeated with the same parameters is
+    * answered from the cache and the lists are read only.
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ResultCache cache = cacheFor (query);
+      if (cache == null)
+         return fetchResult (query, params);
+      List<List<String>> rows = cache.get (ResultCache.ALL_ROWS, query, params);
+      if (rows == null){
+         long epoch = cache.epoch ();
+         rows = cache.put (ResultCache.ALL_ROWS, query, params, fetchResult (query, params),
+                           epoch);
+      }//end if
+      return rows;
+   }//end executeQueryAndReturnResult
+
+   private List<List<String>> fetchResult (String query, Object[] params) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         result = collectResult (prepare (c, query, params).executeQuery ());
+         return result;
+      }catch (SQLException e){
+         error = e;
+         discardStatement (c, query);
+         throw e;
+      }finally{
+         this._pool.release (c);
+         recordResult (query, start, result, error);
+      }//end try
+   }//end fetchResult
+
+   /**
+    * Method to execute a parameterized query and return the number of
+    * results
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      return stream (query, params, this._fetchSize, new RowCounter ());
+   }//end executeQuery
+
+   /**
+    * Method to test whether a query returns any row.  The driver is told to
+    * stop after one row and only the first row is looked at, so write the
+    * query as a probe, e.g. SELECT 1 FROM ... WHERE ... LIMIT 1.
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param params the values bound to the placeholders, in order
+    * @return true if the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      return firstRow (query, params, 0) != null;
+   }//end exists
+
+   /**
+    * Method to fetch the first row of a query, for lookups by key.  The
+    * driver is told to stop after one row.  With result caching on, a
+    * repeated lookup is answered from the cache and the list is read only.
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param params the values bound to the placeholders, in order
+    * @return the attribute values of the first row, or null if there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> lookup (String query, Object... params) throws SQLException {
+      ResultCache cache = cacheFor (query);
+      if (cache == null)
+         return firstRow (query, params, -1);
+      List<List<String>> rows = cache.get (ResultCache.FIRST_ROW, query, params);
+      if (rows == null){
+         long epoch = cache.epoch ();
+         List<String> row = firstRow (query, params, -1);
+         rows = cache.put (ResultCache.FIRST_ROW, query, params,
+                           row == null ? Collections.<List<String>>emptyList ()
+                                       : Collections.singletonList (row), epoch);
+      }//end if
+      return rows.isEmpty () ? null : rows.get (0);
+   }//end lookup
+
+   /*
+    * Runs a query limited to one row and returns its first numCol columns
+    * (all of them for -1), or null when there is no row.
+    **/
+   private List<String> firstRow (String query, Object[] params, int numCol) throws SQLException {
+      long start = System.nanoTime ();
+      List<String> record = null;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         PreparedStatement stmt = prepare (c, query, params);
+         stmt.setMaxRows (1);
+         ResultSet rs = null;
+         try{
+            rs = stmt.executeQuery ();
+            if (!rs.next ())
+               return null;
+            if (numCol < 0)
+               numCol = rs.getMetaData ().getColumnCount ();
+            record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; ++i)
+               record.add (rs.getString (i));
+            return record;
+         }finally{
+            closeQuietly (rs);
+            stmt.setMaxRows (0);
+         }//end try
+      }catch (SQLException e){
+         error = e;
+         discardStatement (c, query);
+         throw e;
+      }finally{
+         this._pool.release (c);
+         this._metrics.record (query, System.nanoTime () - start, record == null ? 0 : 1,
+                               record == null ? 0 : charCount (record), error);
+      }//end try
+   }//end firstRow
+
+   /**
+    * Method to execute a query and hand its rows to a visitor one at a time.
+    * The query runs inside a transaction with a fetch size, so PostgreSQL
+    * returns the rows through a server side cursor and at most fetchSize
+    * rows are held in memory no matter how large the result is.  The
+    * cursor costs round trips of its own; use executeQueryAndVisit for
+    * results known to be small.
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param fetchSize the number of rows fetched per round trip
+    * @param visitor the callback that consumes the rows
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows handed to the visitor
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryStreaming (String query, int fetchSize, RowVisitor visitor,
+                                     Object... params) throws SQLException {
+      return stream (query, params, fetchSize, visitor);
+   }//end executeQueryStreaming
+
+   /**
+    * Method to execute a query whose result is small, such as a page or a
+    * single row, and hand its rows to a visitor one at a time.  The query
+    * runs directly, without the transaction and cursor of
+    * executeQueryStreaming, and the driver reads the whole result at once.
+    * Like executeQueryStreaming it never uses the result cache.
+    *
+    * @param query the query string with a '?' placeholder per parameter
+    * @param visitor the callback that consumes the rows
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows handed to the visitor
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndVisit (String query, RowVisitor visitor, Object... params)
+      throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         ResultSet rs = prepare (c, query, params).executeQuery ();
+         try{
+            rowCount = visitRows (rs, visitor);
+            return rowCount;
+         }finally{
+            closeQuietly (rs);
+         }//end try
+      }catch (SQLException e){
+         error = e;
+         discardStatement (c, query);
+         throw e;
+      }finally{
+         this._pool.release (c);
+         this._metrics.record (query, System.nanoTime () - start, rowCount, 0, error);
+      }//end try
+   }//end executeQueryAndVisit
+
+   /**
+    * Method to change the fetch size used when executeQuery and
+    * executeQueryAndPrintResult stream their rows.
+    *
+    * @param fetchSize the number of rows fetched per round trip
+    */
+   public void setFetchSize (int fetchSize) {
+      if (fetchSize < 1)
+         throw new IllegalArgumentException ("fetch size must be positive: " + fetchSize);
+      this._fetchSize = fetchSize;
+   }//end setFetchSize
+
+   public int getFetchSize () {
+      return this._fetchSize;
+   }
+
+   /**
+    * Method to choose how executeQueryAndPrintResult writes rows: an
+    * aligned TABLE for people, or TSV/CSV for piping to other tools.
+    *
+    * @param format the output format
+    */
+   public void setOutputFormat (TableRenderer.Format format) {
+      this._outputFormat = format;
+   }//end setOutputFormat
+
+   public TableRenderer.Format getOutputFormat () {
+      return this._outputFormat;
+   }
+
+   /**
+    * Method to page the output of executeQueryAndPrintResult.
+    *
+    * @param pageRows the number of rows per page, 0 for no paging
+    * @param pager asked after every page whether to go on
+    */
+   public void setPaging (int pageRows, TableRenderer.Pager pager) {
+      this._pageRows = pageRows;
+      this._pager = pager;
+   }//end setPaging
+
+   /*
+    * Streams the rows of a query to a visitor on a borrowed connection.
+    * Parameterized queries (params != null) use the statement cache, plain
+    * queries a throwaway statement.
+    **/
+   private int stream (String query, Object[] params, int fetchSize, RowVisitor visitor)
+      throws SQLException {
+      if (fetchSize < 1)
+         throw new IllegalArgumentException ("fetch size must be positive: " + fetchSize);
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         Connection conn = c.getConnection ();
+         conn.setAutoCommit (false);
+         if (this._driverCursors != Boolean.FALSE)
+            rowCount = streamWithFetchSize (c, query, params, fetchSize, visitor);
+         else
+            rowCount = -1;
+         if (rowCount < 0)
+            rowCount = streamWithCursor (c, query, params, fetchSize, visitor);
+         conn.commit ();
+         conn.setAutoCommit (true);
+         return rowCount;
+      }catch (SQLException e){
+         error = e;
+         if (params != null)
+            discardStatement (c, query);
+         else
+            c.markSuspect ();
+         throw e;
+      }finally{
+         // release rolls back the transaction if it is still open
+         this._pool.release (c);
+         long chars = visitor instanceof ResultPrinter ? ((ResultPrinter) visitor).chars : 0;
+         this._metrics.record (query, System.nanoTime () - start, Math.max (rowCount, 0), chars,
+                               error);
+      }//end try
+   }//end stream
+
+   /*
+    * Streams through the driver's own cursor support.  Returns -1 without
+    * running the query when the driver does not support a fetch size, as
+    * the bundled 7.3 driver does.
+    **/
+   private int streamWithFetchSize (ConnectionPool.PooledConnection c, String query,
+                                    Object[] params, int fetchSize, RowVisitor visitor)
+      throws SQLException {
+      Statement stmt = params == null
+         ? c.getConnection ().createStatement ()
+         : prepare (c, query, params);
+      try{
+         try{
+            stmt.setFetchSize (fetchSize);
+            this._driverCursors = Boolean.TRUE;
+         }catch (SQLException e){
+            this._driverCursors = Boolean.FALSE;
+            return -1;
+         }//end try
+         ResultSet rs = params == null
+            ? stmt.executeQuery (query)
+            : ((PreparedStatement) stmt).executeQuery ();
+         try{
+            return visitRows (rs, visitor);
+         }finally{
+            closeQuietly (rs);
+         }//end try
+      }finally{
+         if (params == null)
+            stmt.close ();
+      }//end try
+   }//end streamWithFetchSize
+
+   /*
+    * Hands the rows of a result to a visitor until it asks to stop, and
+    * returns how many it was given.
+    **/
+   private static int visitRows (ResultSet rs, RowVisitor visitor) throws SQLException {
+      visitor.start (rs.getMetaData ());
+      int rowCount = 0;
+      while (rs.next ()){
+         ++rowCount;
+         if (!visitor.visit (rs))
+            break;
+      }//end while
+      return rowCount;
+   }//end visitRows
+
+   /*
+    * Streams through an explicit DECLARE/FETCH cursor, for drivers without
+    * fetch size support.  These statements are never server prepared, so
+    * they bypass the statement cache.
+    **/
+   private static int streamWithCursor (ConnectionPool.PooledConnection c, String query,
+                                        Object[] params, int fetchSize, RowVisitor visitor)
+      throws SQLException {
+      Connection conn = c.getConnection ();
+      String declare = "DECLARE " + STREAM_CURSOR + " CURSOR FOR " + query;
+      if (params == null){
+         Statement stmt = conn.createStatement ();
+         try{
+            stmt.execute (declare);
+         }finally{
+            stmt.close ();
+         }//end try
+      }else{
+         PreparedStatement stmt = conn.prepareStatement (declare);
+         try{
+            for (int i = 0; i < params.length; ++i)
+               bind (stmt, i + 1, params[i]);
+            stmt.execute ();
+         }finally{
+            stmt.close ();
+         }//end try
+      }//end if
+
+      Statement fetch = conn.createStatement ();
+      try{
+         String fetchSql = "FETCH FORWARD " + fetchSize + " FROM " + STREAM_CURSOR;
+         int rowCount = 0;
+         boolean started = false;
+         boolean more = true;
+         while (more){
+            ResultSet rs = fetch.executeQuery (fetchSql);
+            try{
+               if (!started){
+                  visitor.start (rs.getMetaData ());
+                  started = true;
+               }//end if
+               int fetched = 0;
+               while (rs.next ()){
+                  ++fetched;
+                  ++rowCount;
+                  if (!visitor.visit (rs)){
+                     more = false;
+                     break;
+                  }//end if
+               }//end while
+               if (fetched < fetchSize)
+                  more = false;
+            }finally{
+               closeQuietly (rs);
+            }//end try
+         }//end while
+         fetch.execute ("CLOSE " + STREAM_CURSOR);
+         return rowCount;
+      }finally{
+         fetch.close ();
+      }//end try
+   }//end streamWithCursor
+
+   /*
+    * Outputs rows to standard out through a TableRenderer in the current
+    * output format. The blank padding of char(n) columns is trimmed.
+    **/
+   private class ResultPrinter implements RowVisitor {
+      private TableRenderer renderer;
+      private boolean[] trim;
+      private int numCol;
+      private long chars = 0;
+
+      public void start (ResultSetMetaData rsmd) throws SQLException {
+         numCol = rsmd.getColumnCount ();
+         String[] header = new String[numCol];
+         trim = new boolean[numCol];
+         for (int i = 1; i <= numCol; ++i){
+            header[i - 1] = rsmd.getColumnName (i);
+            trim[i - 1] = rsmd.getColumnType (i) == Types.CHAR;
+         }//end for
+         renderer = new TableRenderer (System.out, _outputFormat,
+                                       TableRenderer.DEFAULT_SAMPLE_ROWS, _pageRows, _pager);
+         try{
+            renderer.header (header);
+         }catch (IOException e){
+            throw new SQLException ("Unable to write result: " + e.getMessage ());
+         }//end try
+      }
+
+      public boolean visit (ResultSet rs) throws SQLException {
+         String[] values = new String[numCol];
+         for (int i = 0; i < numCol; ++i){
+            String value = rs.getString (i + 1);
+            if (value != null)
+               chars += value.length ();
+            values[i] = trim[i] ? TableRenderer.trimPadding (value) : value;
+         }//end for
+         try{
+            return renderer.row (values);
+         }catch (IOException e){
+            throw new SQLException ("Unable to write result: " + e.getMessage ());
+         }//end try
+      }
+
+      void finish () throws SQLException {
+         if (renderer == null)
+            return;
+         try{
+            renderer.finish ();
+         }catch (IOException e){
+            throw new SQLException ("Unable to write result: " + e.getMessage ());
+         }//end try
+      }
+   }//end ResultPrinter
+
+   /*
+    * Reads rows without looking at them; the caller uses the row count.
+    **/
+   private static class RowCounter implements RowVisitor {
+      public void start (ResultSetMetaData rsmd) {
+      }
+
+      public boolean visit (ResultSet rs) {
+         return true;
+      }
+   }//end RowCounter
+
+   /**
+    * Method to return the in-memory menu.  The Menu table is read on first
+    * use only; views and searches are then served without a round trip.
+    *
+    * @return the current menu snapshot
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public MenuCatalog getMenu() throws SQLException {
+      MenuCatalog menu = this._menu;
+      if (menu == null)
+         menu = reloadMenu (false);
+      return menu;
+   }//end getMenu
+
+   /**
+    * Method to reload the in-memory menu after an item was added, deleted
+    * or modified.  The new snapshot replaces the old one in one step.
+    *
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public void invalidateMenu() throws SQLException {
+      reloadMenu (true);
+   }//end invalidateMenu
+
+   private MenuCatalog reloadMenu (boolean force) throws SQLException {
+      this._loadLock.lock ();
+      try{
+         if (!force && this._menu != null)
+            return this._menu;
+         try{
+            this._menu = MenuCatalog.load (this);
+            return this._menu;
+         }catch (SQLException e){
+            // the next getMenu tries again
+            this._menu = null;
+            throw e;
+         }//end try
+      }finally{
+         this._loadLock.unlock ();
+      }//end try
+   }//end reloadMenu
+
+   /**
+    * Method to output menu items to standard out in the current output
+    * format, like executeQueryAndPrintResult does for query results.
+    *
+    * @param items the items to output
+    * @return the number of items written
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public int printMenuItems (List<MenuItem> items) throws IOException {
+      if (items.isEmpty ())
+         return 0;
+      TableRenderer renderer = new TableRenderer (System.out, this._outputFormat,
+                                                  TableRenderer.DEFAULT_SAMPLE_ROWS,
+                                                  this._pageRows, this._pager);
+      renderer.header (MenuCatalog.COLUMNS);
+      for (MenuItem item : items)
+         if (!renderer.row (item.toRow ()))
+            break;
+      return renderer.finish ();
+   }//end printMenuItems
+
+   /**
+    * Method to check log in credentials.  The role and profile fields are
+    * read by the same query, so the session answers later permission checks
+    * without another round trip.  The query bypasses the result cache,
+    * which would otherwise keep credentials in memory keyed by password.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return the session of the user, or null if the credentials are wrong
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public UserSession authenticate(String login, String password) throws SQLException {
+      List<String> row = firstRow (
+         "SELECT " + UserSession.COLUMNS + " FROM Users WHERE login = ? AND password = ?",
+         new Object[] { login, password }, -1);
+      return row == null ? null : UserSession.fromRow (row);
+   }//end authenticate
+
+   /**
+    * Method to open a session for a user without checking a password, as
+    * the developer login bypass does.
+    *
+    * @param login the user login
+    * @return the session of the user, or null if the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public UserSession loadSession(String login) throws SQLException {
+      List<String> row = lookup (
+         "SELECT " + UserSession.COLUMNS + " FROM Users WHERE login = ?", login);
+      return row == null ? null : UserSession.fromRow (row);
+   }//end loadSession
+
+   /**
+    * Work run by inTransaction on a single borrowed connection.
+    */
+   public interface Transaction<T> {
+      T run (ConnectionPool.PooledConnection c) throws SQLException;
+   }//end Transaction
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to run several statements as one transaction on one pooled
+    * connection.  The work is committed if it returns normally and rolled
+    * back if it throws.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when a statement or the commit failed
+    */
+   public <T> T inTransaction (Transaction<T> work) throws SQLException {
+      return inTransaction ("transaction", work);
+   }//end inTransaction
 
-       int rowCount = 0;
+   /**
+    * Method to run several statements as one transaction, counted in the
+    * query metrics under a name of its own.
+    *
+    * @param name the name the transaction is counted under
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when a statement or the commit failed
+    */
+   public <T> T inTransaction (String name, Transaction<T> work) throws SQLException {
+      return inTransaction (name, null, work);
+   }//end inTransaction
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
+   /**
+    * Method to run several statements as one transaction that writes known
+    * tables.  Once it commits only the cached results that read those
+    * tables are dropped, instead of all of them.
+    *
+    * @param name the name the transaction is counted under
+    * @param writes the tables the work changes, null if not known
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when a statement or the commit failed
+    */
+   public <T> T inTransaction (String name, String[] writes, Transaction<T> work)
+      throws SQLException {
+      long start = System.nanoTime ();
+      SQLException error = null;
+      ConnectionPool.PooledConnection c = this._pool.borrow ();
+      try{
+         c.getConnection ().setAutoCommit (false);
+         T result = work.run (c);
+         c.getConnection ().commit ();
+         c.getConnection ().setAutoCommit (true);
+         ResultCache cache = this._resultCache;
+         if (cache != null){
+            if (writes == null)
+               cache.clear ();
+            else
+               cache.invalidate (writes);
+         }//end if
+         return result;
+      }catch (SQLException e){
+         error = e;
+         c.markSuspect ();
+         throw e;
+      }finally{
+         // release rolls back the transaction if it is still open
+         this._pool.release (c);
+         this._metrics.record (name, System.nanoTime () - start, 0, 0, error);
+      }//end try
+   }//end inTransaction
 
-       stmt.close ();
-       return rowCount;
+   /**
+    * Method to place an order for several menu items.  The total is
+    * computed from the menu prices, and the Orders row together with one
+    * ItemStatus and one placesOrder row per item are written in a single
+    * transaction, the item rows as one multi-row INSERT per table.  An
+    * item named twice is ordered once, as ItemStatus holds one row per
+    * order and item.  The sales rollups of the hour and day are updated in
+    * the same transaction.
+    *
+    * @param login the login of the customer
+    * @param paid whether the order is paid already
+    * @param itemNames the names of the ordered items
+    * @return the order that was placed
+    * @throws java.sql.SQLException when the order could not be written
+    * @throws IllegalArgumentException when no item or an unknown item is given
+    */
+   public Order placeOrder (final String login, final boolean paid, List<String> itemNames)
+      throws SQLException {
+      MenuCatalog menu = getMenu ();
+      Map<String, MenuItem> items = new LinkedHashMap<String, MenuItem>();
+      for (String itemName : itemNames){
+         MenuItem item = menu.findByName (itemName);
+         if (item == null)
+            throw new IllegalArgumentException ("No item named " + itemName);
+         items.put (item.getItemName (), item);
+      }//end for
+      if (items.isEmpty ())
+         throw new IllegalArgumentException ("An order needs at least one item");
+
+      double sum = 0;
+      for (MenuItem item : items.values ())
+         sum += item.getPrice ();
+      final Order order = new Order (nextOrderId (), login, paid,
+                                     new Timestamp (System.currentTimeMillis ()), (float) sum,
+                                     new ArrayList<MenuItem>(items.values ()));
+      String[] writes = { "Orders", "ItemStatus", "placesOrder",
+                          "sales_rollup", "item_sales_rollup" };
+      inTransaction ("transaction placeOrder", writes, new Transaction<Order>() {
+         public Order run (ConnectionPool.PooledConnection c) throws SQLException {
+            prepare (c, "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (?,?,?,?,?)",
+                     new Object[] { order.getOrderid (), login, paid,
+                                    order.getTimeStampRecieved (), order.getTotal () })
+               .executeUpdate ();
+
+            int n = order.getItems ().size ();
+            List<Object> status = new ArrayList<Object>(n * 5);
+            List<Object> places = new ArrayList<Object>(n * 2);
+            for (MenuItem item : order.getItems ()){
+               status.add (order.getOrderid ());
+               status.add (item.getItemName ());
+               status.add (order.getTimeStampRecieved ());
+               status.add (ITEM_STATUS_NEW);
+               status.add ("");
+               places.add (order.getOrderid ());
+               places.add (item.getItemName ());
+            }//end for
+            prepare (c, "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES "
+                     + valueRows (n, 5), status.toArray ()).executeUpdate ();
+            prepare (c, "INSERT INTO placesOrder (orderid, itemName) VALUES " + valueRows (n, 2),
+                     places.toArray ()).executeUpdate ();
+            SalesRollup.orderPlaced (c, order);
+            return order;
+         }
+      });
+      UnpaidOrderWindow unpaid = this._unpaidOrders;
+      if (unpaid != null)
+         unpaid.add (order);
+      return order;
+   }//end placeOrder
+
+   /**
+    * Method to look up whether an order is paid.
+    *
+    * @param orderid the id of the order
+    * @return the paid flag, or null if the order does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Boolean isOrderPaid (int orderid) throws SQLException {
+      List<String> row = lookup ("SELECT paid FROM Orders WHERE orderid = ?", orderid);
+      if (row == null)
+         return null;
+      return row.get (0) != null && row.get (0).startsWith ("t");
+   }//end isOrderPaid
+
+   /**
+    * Method to mark an order as paid or unpaid.  The order is locked while
+    * its old flag is read, and the sales rollups are updated in the same
+    * transaction if the flag changes.
+    *
+    * @param orderid the id of the order
+    * @param paid the new paid flag
+    * @return the number of orders updated, 0 if the order does not exist
+    * @throws java.sql.SQLException when update failed
+    */
+   public int updateOrderPaid (final int orderid, final boolean paid) throws SQLException {
+      int rows = inTransaction ("transaction updateOrderPaid",
+                                new String[] { "Orders", "sales_rollup" },
+                                new Transaction<Integer>() {
+         public Integer run (ConnectionPool.PooledConnection c) throws SQLException {
+            SalesRollup.PaidChanges changes = new SalesRollup.PaidChanges (paid);
+            ResultSet rs = prepare (c, "SELECT paid, timeStampRecieved, total FROM Orders"
+                                    + " WHERE orderid = ? FOR UPDATE", new Object[] { orderid })
+               .executeQuery ();
+            try{
+               if (!rs.next ())
+                  return 0;
+               if (rs.getBoolean (1) != paid)
+                  changes.add (rs.getTimestamp (2), rs.getFloat (3));
+            }finally{
+               closeQuietly (rs);
+            }//end try
+            int updated = prepare (c, "UPDATE Orders SET paid = ? WHERE orderid = ?",
+                                   new Object[] { paid, orderid }).executeUpdate ();
+            changes.apply (c);
+            return updated;
+         }
+      });
+      UnpaidOrderWindow unpaid = this._unpaidOrders;
+      if (unpaid != null){
+         if (paid)
+            unpaid.remove (orderid);
+         else if (rows > 0)
+            unpaid.refresh (orderid);
+      }//end if
+      return rows;
+   }//end updateOrderPaid
+
+   /**
+    * Method to mark many orders as paid at once, e.g. when reconciling at
+    * the end of a shift.
+    *
+    * @param orderids the ids of the orders
+    * @return the number of orders that changed from unpaid to paid
+    * @throws java.sql.SQLException when update failed; no order is changed then
+    */
+   public int markOrdersPaid (Collection<Integer> orderids) throws SQLException {
+      List<int[]> ranges = new ArrayList<int[]>(orderids.size ());
+      for (int orderid : orderids)
+         ranges.add (new int[] { orderid, orderid });
+      return markOrdersPaid (ranges);
+   }//end markOrdersPaid
+
+   /**
+    * Method to mark the orders of ranges of ids as paid at once, such as
+    * those parseOrderIds reads.  The ranges are merged; each range of more
+    * than one id is sent as an UPDATE ... BETWEEN, and the single ids as a
+    * few UPDATE ... IN (...), all in one transaction with the sales
+    * rollups.  Orders that are already paid are left alone and not counted.
+    *
+    * @param ranges the first and last id of each range, inclusive
+    * @return the number of orders that changed from unpaid to paid
+    * @throws java.sql.SQLException when update failed; no order is changed then
+    */
+   public int markOrdersPaid (List<int[]> ranges) throws SQLException {
+      final List<int[]> spans = new ArrayList<int[]>();
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (int[] range : mergeRanges (ranges)){
+         if (range[0] == range[1])
+            ids.add (range[0]);
+         else
+            spans.add (range);
+      }//end for
+      if (spans.isEmpty () && ids.isEmpty ())
+         return 0;
+      int updated = inTransaction ("transaction markOrdersPaid",
+                                   new String[] { "Orders", "sales_rollup" },
+                                   new Transaction<Integer>() {
+         public Integer run (ConnectionPool.PooledConnection c) throws SQLException {
+            SalesRollup.PaidChanges changes = new SalesRollup.PaidChanges (true);
+            int rows = 0;
+            for (int[] span : spans)
+               rows += markPaid (c, "orderid BETWEEN ? AND ?",
+                                 new Object[] { span[0], span[1] }, changes);
+            int done = 0;
+            while (done < ids.size ()){
+               int size = MARK_PAID_BATCH_SIZES[MARK_PAID_BATCH_SIZES.length - 1];
+               for (int s : MARK_PAID_BATCH_SIZES){
+                  if (s >= ids.size () - done){
+                     size = s;
+                     break;
+                  }//end if
+               }//end for
+               Object[] params = new Object[size];
+               StringBuilder in = new StringBuilder ();
+               for (int i = 0; i < size; ++i){
+                  // pad by repeating the last id, which IN ignores
+                  params[i] = ids.get (Math.min (done + i, ids.size () - 1));
+                  in.append (i == 0 ? "?" : ",?");
+               }//end for
+               rows += markPaid (c, "orderid IN (" + in + ")", params, changes);
+               done = Math.min (done + size, ids.size ());
+            }//end while
+            changes.apply (c);
+            return rows;
+         }
+      });
+      UnpaidOrderWindow unpaid = this._unpaidOrders;
+      if (unpaid != null){
+         for (int[] span : spans)
+            unpaid.removeRange (span[0], span[1]);
+         for (int orderid : ids)
+            unpaid.remove (orderid);
+      }//end if
+      return updated;
+   }//end markOrdersPaid
+
+   /*
+    * Sorts ranges of ids and joins those that overlap or touch.
+    **/
+   private static List<int[]> mergeRanges (List<int[]> ranges) {
+      List<int[]> sorted = new ArrayList<int[]>(ranges);
+      Collections.sort (sorted, new Comparator<int[]>() {
+         public int compare (int[] a, int[] b) {
+            return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+         }
+      });
+      List<int[]> merged = new ArrayList<int[]>();
+      int[] last = null;
+      for (int[] range : sorted){
+         if (last != null && range[0] <= (long) last[1] + 1){
+            last[1] = Math.max (last[1], range[1]);
+         }else{
+            last = new int[] { range[0], range[1] };
+            merged.add (last);
+         }//end if
+      }//end for
+      return merged;
+   }//end mergeRanges
+
+   /**
+    * Method to mark all unpaid orders of a customer received since a given
+    * time as paid, with a single UPDATE and the sales rollups in one
+    * transaction.
+    *
+    * @param login the login of the customer
+    * @param since the earliest time an order was received
+    * @return the number of orders that changed from unpaid to paid
+    * @throws java.sql.SQLException when update failed
+    */
+   public int markOrdersPaid (final String login, final Timestamp since) throws SQLException {
+      int updated = inTransaction ("transaction markOrdersPaid",
+                                   new String[] { "Orders", "sales_rollup" },
+                                   new Transaction<Integer>() {
+         public Integer run (ConnectionPool.PooledConnection c) throws SQLException {
+            SalesRollup.PaidChanges changes = new SalesRollup.PaidChanges (true);
+            int rows = markPaid (c, "login = ? AND timeStampRecieved >= ?",
+                                 new Object[] { login, since }, changes);
+            changes.apply (c);
+            return rows;
+         }
+      });
+      UnpaidOrderWindow unpaid = this._unpaidOrders;
+      if (unpaid != null && updated > 0)
+         unpaid.removeAll (login, since.getTime ());
+      return updated;
+   }//end markOrdersPaid
+
+   /*
+    * Marks the unpaid orders matching the condition as paid and adds them
+    * to the rollup changes.
+    **/
+   private static int markPaid (ConnectionPool.PooledConnection c, String condition,
+                                Object[] params, SalesRollup.PaidChanges changes)
+      throws SQLException {
+      ResultSet rs = prepare (c, "UPDATE Orders SET paid = true WHERE (paid = false OR paid IS NULL)"
+                              + " AND " + condition + " RETURNING timeStampRecieved, total", params)
+         .executeQuery ();
+      int rows = 0;
+      try{
+         while (rs.next ()){
+            changes.add (rs.getTimestamp (1), rs.getFloat (2));
+            ++rows;
+         }//end while
+      }finally{
+         closeQuietly (rs);
+      }//end try
+      return rows;
+   }//end markPaid
+
+   /**
+    * Method to read the sales per hour or day of a time range from the
+    * rollups.
+    *
+    * @param grain SalesRollup.HOUR or SalesRollup.DAY
+    * @param from the start of the range
+    * @param to the end of the range, exclusive
+    * @return the hours or days that had orders, oldest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<SalesRollup.Row> salesReport (String grain, Timestamp from, Timestamp to)
+      throws SQLException {
+      return this._sales.report (grain, from, to);
+   }//end salesReport
+
+   /**
+    * Method to read the items ordered most often in a time range from the
+    * rollups.
+    *
+    * @param from the start of the range
+    * @param to the end of the range, exclusive
+    * @param limit the most items returned
+    * @return the items, most popular first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<SalesRollup.ItemRow> popularItems (Timestamp from, Timestamp to, int limit)
+      throws SQLException {
+      return this._sales.popularItems (from, to, limit);
+   }//end popularItems
+
+   /**
+    * Method to read a page of a customer's orders, newest first.  Every
+    * page, however deep, is one range scan of the (login,
+    * timeStampRecieved, orderid) index.
+    *
+    * @param login the login of the customer
+    * @param after the cursor of the previous page, null for the newest orders
+    * @param pageSize the most orders on the page
+    * @return the page, with the cursor of the next one
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderHistory.Page orderHistory (String login, OrderHistory.Cursor after, int pageSize)
+      throws SQLException {
+      return this._history.page (login, after, pageSize);
+   }//end orderHistory
+
+   /**
+    * Method to get the unpaid orders of the last 24 hours.  They are read
+    * once, through the (paid, timeStampRecieved) index, and kept current by
+    * placeOrder and updateOrderPaid afterwards.
+    *
+    * @return the window of unpaid orders
+    * @throws java.sql.SQLException when the orders cannot be loaded
+    */
+   public UnpaidOrderWindow getUnpaidOrders() throws SQLException {
+      UnpaidOrderWindow unpaid = this._unpaidOrders;
+      if (unpaid == null)
+         unpaid = loadUnpaidOrders ();
+      return unpaid;
+   }//end getUnpaidOrders
+
+   private UnpaidOrderWindow loadUnpaidOrders () throws SQLException {
+      this._loadLock.lock ();
+      try{
+         if (this._unpaidOrders != null)
+            return this._unpaidOrders;
+         // published before loading, so orders changed meanwhile wait for the
+         // load instead of being missed
+         UnpaidOrderWindow unpaid =
+            new UnpaidOrderWindow (this, UnpaidOrderWindow.DEFAULT_WINDOW_MILLIS);
+         this._unpaidOrders = unpaid;
+         try{
+            unpaid.load ();
+            return unpaid;
+         }catch (SQLException e){
+            // the next getUnpaidOrders tries again
+            this._unpaidOrders = null;
+            throw e;
+         }//end try
+      }finally{
+         this._loadLock.unlock ();
+      }//end try
+   }//end loadUnpaidOrders
+
+   /**
+    * Method to allocate the id of a new order.  Ids come from blocks
+    * reserved on orders_orderid_seq, so most calls need no round trip.
+    *
+    * @return an order id no other session has received
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public int nextOrderId() throws SQLException {
+      return this._orderIds.nextId ();
+   }//end nextOrderId
+
+   /**
+    * Method to check whether an order exists.  The probe goes through
+    * the primary key index of Orders and stops at the first row.
+    *
+    * @param orderid the id of the order
+    * @return true if the order exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean orderExists(int orderid) throws SQLException {
+      return exists ("SELECT 1 FROM Orders WHERE orderid = ? LIMIT 1", orderid);
+   }//end orderExists
+
+   /**
+    * Method to check whether a user exists.
+    *
+    * @param login the user login
+    * @return true if the user exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean userExists(String login) throws SQLException {
+      return exists ("SELECT 1 FROM Users WHERE login = ? LIMIT 1", login);
+   }//end userExists
+
+   /**
+    * Method to check whether an order was placed for a given customer.
+    *
+    * @param orderid the id of the order
+    * @param login the login of the customer
+    * @return true if the order exists and belongs to the customer
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean orderBelongsTo(int orderid, String login) throws SQLException {
+      return exists ("SELECT 1 FROM Orders WHERE orderid = ? AND login = ? LIMIT 1", orderid, login);
+   }//end orderBelongsTo
+
+   /**
+    * Method to report the connection pool, including its borrow wait and
+    * timeout metrics and the statement cache hit/miss counters of its
+    * connections.
+    *
+    * @return the connection pool used by this instance
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
    }
 
+   /**
+    * Method to report the latency, row, byte and error counts of the
+    * statements run so far, per query shape.
+    *
+    * @return the query metrics of this instance
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }
+
+   /**
+    * Method to turn result caching on or off.  Results of
+    * executeQueryAndReturnResult and lookup are then kept until a write
+    * through this instance touches a table they read, or their time to
+    * live runs out.
+    *
+    * @param cache the cache to use, null to turn caching off
+    */
+   public void setResultCache (ResultCache cache) {
+      this._resultCache = cache;
+   }//end setResultCache
+
+   public ResultCache getResultCache () {
+      return this._resultCache;
+   }
+
+   /**
+    * Method to print the query metrics, the connection pool and the result
+    * cache counters.
+    *
+    * @param out where to print
+    */
+   public void printStatistics (PrintStream out) {
+      this._metrics.print (out);
+      out.println ("pool: " + this._pool);
+      ResultCache cache = this._resultCache;
+      if (cache != null)
+         out.println ("result cache: " + cache);
+   }//end printStatistics
+
+   private ResultCache cacheFor (String query) {
+      ResultCache cache = this._resultCache;
+      return cache != null && ResultCache.isCacheable (query) ? cache : null;
+   }//end cacheFor
+
+   private void invalidateResults (String sql) {
+      ResultCache cache = this._resultCache;
+      if (cache != null)
+         cache.invalidateWrite (sql);
+   }//end invalidateResults
+
+   private void recordResult (String query, long start, List<List<String>> result,
+                              SQLException error) {
+      long chars = 0;
+      if (result != null)
+         for (int i = 0; i < result.size (); ++i)
+            chars += charCount (result.get (i));
+      this._metrics.record (query, System.nanoTime () - start,
+                            result == null ? 0 : result.size (), chars, error);
+   }//end recordResult
+
+   private static long charCount (List<String> record) {
+      long chars = 0;
+      for (int i = 0; i < record.size (); ++i)
+         if (record.get (i) != null)
+            chars += record.get (i).length ();
+      return chars;
+   }//end charCount
+
+   /*
+    * Saves the rows of the result set as a list of records and closes it.
+    **/
+   private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
+      try{
+         int numCol = rs.getMetaData ().getColumnCount ();
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      }finally{
+         closeQuietly (rs);
+      }//end try
+   }//end collectResult
+
+   /*
+    * Takes the statement for the SQL string from the statement cache of the
+    * connection and binds the parameters to it. A null parameter is bound
+    * as a SQL NULL.
+    **/
+   private static PreparedStatement prepare (ConnectionPool.PooledConnection c, String sql,
+                                             Object[] params) throws SQLException {
+      PreparedStatement stmt = c.getStatements ().prepare (sql);
+      stmt.clearParameters ();
+      for (int i = 0; i < params.length; ++i)
+         bind (stmt, i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
+   /*
+    * The VALUES rows of a multi-row INSERT: rows groups of columns
+    * placeholders, such as "(?,?),(?,?)".
+    **/
+   static String valueRows (int rows, int columns) {
+      StringBuilder row = new StringBuilder ("(");
+      for (int i = 0; i < columns; ++i)
+         row.append (i == 0 ? "?" : ",?");
+      row.append (')');
+      StringBuilder sql = new StringBuilder ();
+      for (int i = 0; i < rows; ++i)
+         sql.append (i == 0 ? "" : ",").append (row);
+      return sql.toString ();
+   }//end valueRows
+
+   private static void bind (PreparedStatement stmt, int index, Object value) throws SQLException {
+      if (value == null)
+         stmt.setNull (index, Types.VARCHAR);
+      else
+         stmt.setObject (index, value);
+   }//end bind
+
+   /*
+    * Drops a statement that failed from the connection's cache and has the
+    * connection validated before it is handed out again.
+    **/
+   private static void discardStatement (ConnectionPool.PooledConnection c, String sql) {
+      c.getStatements ().invalidate (sql);
+      c.markSuspect ();
+   }//end discardStatement
+
+   private static void closeQuietly (ResultSet rs) {
+      if (rs == null)
+         return;
+      try{
+         rs.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is tracked per
+    * database session, so this only sees a nextval issued on the same
+    * pooled connection.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+      List<String> row = lookup ("Select currval(?)", sequence);
+      return row == null ? -1 : Integer.parseInt (row.get (0));
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the physical connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      this._metrics.stopLogging ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -229,16 +1516,64 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--format table|tsv|csv] [--page <rows>]" +
+            " [--pool <max connections>] [--metrics <log interval seconds>]" +
+            " [--cache <result cache MB>] [--serve <port>]" +
+            " [--script <file> ... [--streams <per script>] [--verbose]]");
+         System.err.println ("Script commands: " + CafeCommands.OPERATIONS);
+         return;
+      }//end if
+
+      TableRenderer.Format format = TableRenderer.Format.TABLE;
+      int pageRows = -1;
+      int poolSize = ConnectionPool.DEFAULT_MAX_SIZE;
+      List<String> scripts = new ArrayList<String>();
+      int streams = 1;
+      boolean verbose = false;
+      int metricsInterval = 0;
+      int cacheMegabytes = 0;
+      int servePort = -1;
+      try{
+         for (int i = 3; i < args.length; ++i){
+            if (args[i].equals("--format") && i + 1 < args.length)
+               format = TableRenderer.Format.valueOf (args[++i].toUpperCase ());
+            else if (args[i].equals("--page") && i + 1 < args.length)
+               pageRows = Integer.parseInt (args[++i]);
+            else if (args[i].equals("--pool") && i + 1 < args.length)
+               poolSize = Integer.parseInt (args[++i]);
+            else if (args[i].equals("--script") && i + 1 < args.length)
+               scripts.add (args[++i]);
+            else if (args[i].equals("--streams") && i + 1 < args.length)
+               streams = Integer.parseInt (args[++i]);
+            else if (args[i].equals("--verbose"))
+               verbose = true;
+            else if (args[i].equals("--metrics") && i + 1 < args.length)
+               metricsInterval = Integer.parseInt (args[++i]);
+            else if (args[i].equals("--cache") && i + 1 < args.length)
+               cacheMegabytes = Integer.parseInt (args[++i]);
+            else if (args[i].equals("--serve") && i + 1 < args.length)
+               servePort = Integer.parseInt (args[++i]);
+            else
+               throw new IllegalArgumentException ("Unknown option: " + args[i]);
+         }//end for
+      }catch (IllegalArgumentException e){
+         System.err.println (e.getMessage ());
          return;
+      }//end try
+      if (pageRows < 0)
+         pageRows = format == TableRenderer.Format.TABLE ? DEFAULT_PAGE_ROWS : 0;
+      if (!scripts.isEmpty ()){
+         // one connection per concurrent script stream
+         poolSize = Math.max (poolSize, scripts.size () * streams);
       }//end if
 
-      Greeting();
+      if (scripts.isEmpty () && servePort < 0)
+         Greeting();
       Cafe esql = null;
       try{
          // use postgres JDBC driver.
@@ -248,7 +1583,34 @@ public class Cafe {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new Cafe (dbname, dbport, user, "");
+         esql = new Cafe (dbname, dbport, user, "", ConnectionPool.DEFAULT_MIN_SIZE, poolSize);
+         esql.setOutputFormat (format);
+         if (metricsInterval > 0)
+            esql.getMetrics ().startLogging (System.err, metricsInterval);
+         if (cacheMegabytes > 0)
+            esql.setResultCache (new ResultCache (cacheMegabytes * 1024L * 1024L,
+                                                  ResultCache.DEFAULT_TTL_MILLIS));
+
+         if (!scripts.isEmpty ()){
+            // headless mode: replay the scripts and report timings
+            new ScriptDriver (esql, verbose, System.out).run (scripts, streams);
+            return;
+         }//end if
+         if (servePort >= 0){
+            // server mode: sessions come from TCP clients instead of the keyboard
+            CafeServer server = new CafeServer (esql, servePort, CafeServer.DEFAULT_MAX_SESSIONS);
+            server.start ();
+            System.out.println ("Serving on localhost:" + server.getPort ()
+                                + ", press Enter to stop");
+            if (in.readLine () == null)
+               // no terminal, e.g. started in the background: serve until killed
+               Thread.currentThread ().join ();
+            server.stop ();
+            System.out.println (server);
+            esql.printStatistics (System.out);
+            return;
+         }//end if
+         esql.setPaging (pageRows, ConsolePager ());
 
          boolean keepon = true;
          while(keepon) {
@@ -259,11 +1621,11 @@ public class Cafe {
             System.out.println("2. Log in");
             System.out.println("3. Bypass login (for lazy developers!");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            UserSession authorisedUser = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
-               case 3: authorisedUser = "Admin"; break;
+               case 3: authorisedUser = esql.loadSession("Admin"); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
@@ -276,13 +1638,34 @@ public class Cafe {
                 System.out.println("2. Update Profile");
                 System.out.println("3. Place a Order");
                 System.out.println("4. Update a Order");
+                if (authorisedUser.isManager ())
+                   System.out.println("5. Query statistics");
+                if (!authorisedUser.isCustomer ())
+                   System.out.println("6. Order status board");
+                if (authorisedUser.isManager ())
+                   System.out.println("7. Sales report");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()){
                    case 1: Menu(esql, authorisedUser); break;
                    case 2: UpdateProfile(esql); break;
-                   case 3: PlaceOrder(esql); break;
+                   case 3: PlaceOrder(esql, authorisedUser); break;
                    case 4: UpdateOrder(esql, authorisedUser); break;
+                   case 5: if (authorisedUser.isManager ())
+                              esql.printStatistics (System.out);
+                           else
+                              System.out.println("Unrecognized choice!");
+                           break;
+                   case 6: if (!authorisedUser.isCustomer ())
+                              OrderStatusBoard(esql);
+                           else
+                              System.out.println("Unrecognized choice!");
+                           break;
+                   case 7: if (authorisedUser.isManager ())
+                              SalesReport(esql);
+                           else
+                              System.out.println("Unrecognized choice!");
+                           break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -312,6 +1695,33 @@ public class Cafe {
          "*******************************************************\n");
    }//end Greeting
 
+   /**
+    * Method to read a list of order ids such as "12, 15, 20-25".
+    *
+    * @param list ids and inclusive ranges, separated by commas or blanks
+    * @return the first and last id of each range in the order given, a
+    *         single id as a range of one
+    * @throws IllegalArgumentException when an id or range is invalid
+    */
+   public static List<int[]> parseOrderIds (String list) {
+      List<int[]> ranges = new ArrayList<int[]>();
+      for (String part : list.trim ().split ("[,\\s]+")){
+         if (part.isEmpty ())
+            continue;
+         try{
+            int dash = part.indexOf ('-', 1);
+            int first = Integer.parseInt (dash < 0 ? part : part.substring (0, dash));
+            int last = dash < 0 ? first : Integer.parseInt (part.substring (dash + 1));
+            if (first < 1 || last < first || last - first >= MAX_ORDER_ID_RANGE)
+               throw new IllegalArgumentException ("Invalid order id range: " + part);
+            ranges.add (new int[] { first, last });
+         }catch (NumberFormatException e){
+            throw new IllegalArgumentException ("Invalid order id: " + part);
+         }//end try
+      }//end for
+      return ranges;
+   }//end parseOrderIds
+
    /*
     * Reads the users choice given from the keyboard
     * @int
@@ -332,6 +1742,23 @@ public class Cafe {
       return input;
    }//end readChoice
 
+   /*
+    * Pages long results on the terminal: Enter shows the next page, q stops.
+    **/
+   public static TableRenderer.Pager ConsolePager() {
+      return new TableRenderer.Pager() {
+         public boolean nextPage(int rowsSoFar) {
+            System.out.print("-- " + rowsSoFar + " rows shown, Enter for more, q to stop -- ");
+            try {
+               String line = in.readLine();
+               return line != null && !line.trim().equalsIgnoreCase("q");
+            }catch (IOException e) {
+               return false;
+            }//end try
+         }
+      };
+   }//end ConsolePager
+
    /*
     * Creates a new user with privided login, passowrd and phoneNum
     **/
@@ -347,9 +1774,9 @@ public class Cafe {
 	    String type="Customer";
 	    String favItems="";
 
-	String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
+	String query = "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?,?,?,?,?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, phone, login, password, favItems, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -359,20 +1786,19 @@ public class Cafe {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the session of the user or null is the user does not exist
     **/
-   public static String LogIn(Cafe esql){
+   public static UserSession LogIn(Cafe esql){
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
-         return null;
+         UserSession session = esql.authenticate(login, password);
+         if (session == null)
+            System.out.println("Wrong login or password!\n");
+         return session;
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -381,21 +1807,15 @@ public class Cafe {
 
 // Rest of the functions definition go in here
 
-   public static void Menu(Cafe esql, String user){
+   public static void Menu(Cafe esql, UserSession user){
       try{
           //print menu
 	  Menu_PrintFullMenu(esql);
 
- 	  //check user type
- 	  String userType = null;
- 	  String query = String.format("SELECT type FROM Users WHERE login='%s'", user);
- 	  List<List<String>> result = esql.executeQueryAndReturnResult(query);
- 	  userType = result.get(0).get(0);
-
           boolean keepon = true;
 	  while(keepon){
 	     //Check what the user wants to do next
-	     if(userType.equals("Customer")){
+	     if(!user.isManager()){
 	        System.out.println("1. View menu");
 		System.out.println("2. Search for an item");
 	        System.out.println("3. Search for a type of item");
@@ -408,7 +1828,7 @@ public class Cafe {
                    default : System.out.println("Unrecognized choice!"); break;
                 }
              }
-             if(userType.equals("Manager")){
+             else{
                 System.out.println("1. View menu");
                 System.out.println("2. Search for an item");
                 System.out.println("3. Search for a type of item");
@@ -417,6 +1837,7 @@ public class Cafe {
                 switch (readChoice()){
                    case 1: Menu_PrintFullMenu(esql); break;
                    case 2: Menu_SearchItemName(esql); break;
+                   case 3: Menu_SearchItemType(esql); break;
                    case 4: Menu_AddDeleteModifyItem(esql); break;
                    case 9: System.out.println("\n"); return;
                    default : System.out.println("Unrecognized choice!"); break;
@@ -440,8 +1861,7 @@ public class Cafe {
           "                        Menu                               \n" +
           "***********************************************************\n");
           //print out the menu
-             String query = "SELECT * FROM MENU";
-                int success = esql.executeQueryAndPrintResult(query);
+          esql.printMenuItems(esql.getMenu().getItems());
           System.out.println("***********************************************************\n");
 
 
@@ -456,12 +1876,16 @@ public class Cafe {
       try{
          System.out.print("\tItem: ");
          String itemName = in.readLine();
-         String query = String.format("SELECT * FROM Menu WHERE itemName='%s'", itemName);
+         MenuCatalog menu = esql.getMenu();
+         MenuItem item = menu.findByName(itemName);
+         // an exact name first, else the closest names, types and keywords
+         List<MenuItem> items = item != null ? Collections.singletonList(item)
+            : menu.search(itemName, MenuSearchIndex.DEFAULT_LIMIT);
          System.out.println("***********************************************************\n");
-         int rows = esql.executeQueryAndPrintResult(query);
+         int rows = items.isEmpty() ? 0 : esql.printMenuItems(items);
          System.out.println("***********************************************************\n");
          if(rows == 0){
-	    System.out.format("No item named %s\n", itemName);
+	    System.out.format("No item matching %s\n", itemName);
          }
       System.out.println("\n");
       }catch(Exception e){
@@ -474,9 +1898,8 @@ public class Cafe {
       try{
          System.out.print("\tType: ");
          String type = in.readLine();
-         String query = String.format("SELECT * FROM Menu WHERE type='%s'", type);
          System.out.println("***********************************************************\n");
-         int rows = esql.executeQueryAndPrintResult(query);
+         int rows = esql.printMenuItems(esql.getMenu().findByType(type));
          System.out.println("***********************************************************\n");
          if(rows == 0){
             System.out.format("No items of type: %s\n", type);
@@ -495,13 +1918,14 @@ public class Cafe {
          System.out.println("3. Modify item");
          System.out.println("9. Go to main menu");
          switch (readChoice()){
-            case 1: 
+            case 1: Menu_AddItem(esql); break;
             case 2: System.out.println("\tItem to remove: ");
                     String itemName = in.readLine();
-                    String query = String.format("DELETE FROM Menu WHERE itemName='%s'", itemName);
-                    esql.executeUpdate(query);
+                    String query = "DELETE FROM Menu WHERE itemName=?";
+                    esql.executeUpdate(query, itemName);
+                    esql.invalidateMenu();
                     break;
-            case 3: Menu_SearchItemType(esql); break;
+            case 3: Menu_ModifyItem(esql); break;
             case 9: System.out.println("\n"); return;
             default : System.out.println("Unrecognized choice!"); break;
          }
@@ -510,6 +1934,51 @@ public class Cafe {
          System.err.println (e.getMessage ());
       }
    }  
+
+   public static void Menu_AddItem(Cafe esql) throws Exception {
+      System.out.print("\tItem name: ");
+      String itemName = in.readLine();
+      System.out.print("\tType: ");
+      String type = in.readLine();
+      System.out.print("\tPrice: ");
+      float price = Float.parseFloat(in.readLine());
+      System.out.print("\tDescription: ");
+      String description = in.readLine();
+      System.out.print("\tImage URL: ");
+      String imageURL = in.readLine();
+      String query = "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?,?,?,?,?)";
+      esql.executeUpdate(query, itemName, type, price, description, imageURL);
+      esql.invalidateMenu();
+      System.out.format("Item %s added\n\n", itemName);
+   }
+
+   public static void Menu_ModifyItem(Cafe esql) throws Exception {
+      System.out.print("\tItem to modify: ");
+      MenuItem item = esql.getMenu().findByName(in.readLine());
+      if (item == null) {
+         System.out.println("No such item!\n");
+         return;
+      }
+      System.out.println("\tLeave a field empty to keep its value");
+      System.out.format("\tType [%s]: ", item.getType());
+      String type = in.readLine();
+      System.out.format("\tPrice [%s]: ", item.getPrice());
+      String price = in.readLine();
+      System.out.format("\tDescription [%s]: ", item.getDescription());
+      String description = in.readLine();
+      System.out.format("\tImage URL [%s]: ", item.getImageURL());
+      String imageURL = in.readLine();
+      String query = "UPDATE Menu SET type = ?, price = ?, description = ?, imageURL = ? WHERE itemName = ?";
+      esql.executeUpdate(query,
+                         type.isEmpty() ? item.getType() : type,
+                         price.isEmpty() ? item.getPrice() : Float.parseFloat(price),
+                         description.isEmpty() ? item.getDescription() : description,
+                         imageURL.isEmpty() ? item.getImageURL() : imageURL,
+                         item.getItemName());
+      esql.invalidateMenu();
+      System.out.format("Item %s modified\n\n", item.getItemName());
+   }
+
    public static void UpdateProfile(Cafe esql){
       try{
       }catch(Exception e){
@@ -518,24 +1987,31 @@ public class Cafe {
 
    }
 
-  public static void PlaceOrder(Cafe esql){
+  public static void PlaceOrder(Cafe esql, UserSession user){
      try{
-	String query = String.format("SELECT * FROM Orders O");
-	int row = esql.executeQuery(query);
-	System.out.println("Enter the customer login:");
-	String login1 = in.readLine();
-	String query1 = String.format("SELECT * FROM Users U WHERE U.login = '%s'",login1);
-	int row1 = esql.executeQuery(query1);
-	if (row1 == 0) {
-	   System.out.println("Non existent login!\n");
-	   return;
+	// customers order for themselves, staff enter the customer login
+	String login1 = user.getLogin();
+	if (!user.isCustomer()) {
+	   System.out.println("Enter the customer login:");
+	   login1 = in.readLine();
+	   if (!esql.userExists(login1)) {
+	      System.out.println("Non existent login!\n");
+	      return;
+	   }
 	}
 	System.out.println("Browse order history of user? (Last 5 purchases)");
 	System.out.println("1:Yes");
 	System.out.println("2:No");
 	switch(readChoice()) {
-	   case 1: String qq = String.format("SELECT * FROM Orders WHERE login = '%s' ORDER BY timeStampRecieved LIMIT 5", login1);
-		   int Hist = esql.executeQueryAndPrintResult(qq);
+	   case 1: OrderHistory.Cursor after = null;
+		   do {
+		      OrderHistory.Page page = esql.orderHistory(login1, after,
+		                                                 OrderHistory.DEFAULT_PAGE_SIZE);
+		      OrderHistory.print(page, System.out, esql.getOutputFormat());
+		      after = page.getNext();
+		      if (after != null)
+		         System.out.println("Older purchases?(1:Yes)");
+		   } while (after != null && readChoice() == 1);
 		   System.out.println("Abort Order?(1:Yes)");
 		   switch(readChoice()) {
 			case 1:return;
@@ -545,6 +2021,32 @@ public class Cafe {
 	   case 2: break;
 	   default: break;
 	}
+	// pick the items, priced from the in-memory menu
+	List<String> items = new ArrayList<String>();
+	double total = 0;
+	MenuCatalog menu = esql.getMenu();
+	while (true) {
+	   System.out.print("\tItem to order (empty line when done): ");
+	   String itemName = in.readLine();
+	   if (itemName == null || itemName.trim().isEmpty())
+	      break;
+	   MenuItem item = menu.findByName(itemName);
+	   if (item == null) {
+	      System.out.format("No item named %s\n", itemName);
+	      continue;
+	   }
+	   if (items.contains(item.getItemName())) {
+	      System.out.format("%s is already in the order\n", item.getItemName());
+	      continue;
+	   }
+	   items.add(item.getItemName());
+	   total += item.getPrice();
+	   System.out.format("\tAdded %s, total so far %.2f\n", item.getItemName(), total);
+	}
+	if (items.isEmpty()) {
+	   System.out.println("No items ordered!\n");
+	   return;
+	}
 	System.out.println("Enter pay status(1 for paid, 0 for unpaid)");
 	boolean paid = false;
 	switch (readChoice()) {
@@ -555,24 +2057,16 @@ public class Cafe {
 	   default: System.out.println("Invalid input!");
 		   break;
 	}
-	Timestamp ts = new Timestamp(System.currentTimeMillis());
-	System.out.println("Enter total");
-	String price = in.readLine();
-	String inp = String.format("INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (%d,'%s','%s','%s',%s)", row + 1, login1, paid, ts, price);
-	esql.executeUpdate(inp);
-	System.out.println("Order inputted\n\n");
+	Order order = esql.placeOrder(login1, paid, items);
+	System.out.println(order + "\n\n");
      }catch(Exception e){
 	System.err.println(e.getMessage());
      }
   }
 
-  public static void UpdateOrder(Cafe esql, String user){
+  public static void UpdateOrder(Cafe esql, UserSession user){
      try{
-	String userType = null;
-	String q = String.format("SELECT type FROM Users WHERE login = '%s'", user);
-	List<List<String>> result = esql.executeQueryAndReturnResult(q);
-	userType = result.get(0).get(0);
-	if(!userType.equals("Customer")){
+	if(!user.isCustomer()){
 	   System.out.println("Output all unpaid orders from <= 24 hours?");
 	   System.out.println("1:Yes");
 	   switch(readChoice()) {
@@ -581,16 +2075,26 @@ public class Cafe {
 		default:break;
 	   }
 	}
+	if(user.isManager()){
+	   System.out.println("Settle several orders at once?");
+	   System.out.println("1:Yes");
+	   if (readChoice() == 1) {
+	      settleOrders(esql);
+	      return;
+	   }
+	}
 	System.out.println("Input the order ID to update");
 	String order = in.readLine();
 	int id = Integer.parseInt(order);
-	String findOrder = String.format("SELECT * FROM Orders O");
-	int row = esql.executeQuery(findOrder);
-	if (id > row || id < 1) {
+	// customers may only update their own orders
+	boolean valid = id > 0 && (user.isCustomer()
+	                           ? esql.orderBelongsTo(id, user.getLogin())
+	                           : esql.orderExists(id));
+	if (!valid) {
 	   System.out.println("Invalid order ID!\n\n");
 	   return;
 	}
-	if (userType.equals("Customer")) {
+	if (user.isCustomer()) {
 	   updatePaidCustomer(esql, order);
 	}
 	else {
@@ -604,17 +2108,13 @@ public class Cafe {
 
  public static void updatePaidCustomer(Cafe esql, String id) {
     try{
-	String q = String.format("SELECT O.paid FROM Orders O WHERE O.orderid = '%s'",id);
-	List<List<String>> p = esql.executeQueryAndReturnResult(q);
-	char c = p.get(0).get(0).charAt(0);
-	if (c == 't') {
+	if (Boolean.TRUE.equals(esql.isOrderPaid(Integer.parseInt(id)))) {
 	   System.out.println("Cannot modify this order!");
 	   return;
 	}
 	System.out.println("Modify Paid? (1 if yes)");
 	switch(readChoice()) {
-	   case 1: String query = String.format("UPDATE Orders SET paid = 'true' WHERE orderid = %s", id);
-		   esql.executeUpdate(query);
+	   case 1: esql.updateOrderPaid(Integer.parseInt(id), true);
 		   System.out.printf("Order %s has been updated to be paid\n\n", id);
 		   break;
 	   default: break;
@@ -628,12 +2128,10 @@ public class Cafe {
     try{
 	System.out.println("Please input 1 for paid or 2 for unpaid");
 	switch(readChoice()) {
-	   case 1: String query = String.format("UPDATE Orders SET paid = 'true' WHERE orderid = %s", id);
-		   esql.executeUpdate(query);
+	   case 1: esql.updateOrderPaid(Integer.parseInt(id), true);
 		   System.out.printf("Order %s has been updated to be paid\n\n", id);
 		   break;
-	   case 2: String query1 = String.format("UPDATE Orders SET paid = 'false' WHERE orderid = %s", id);
-		   esql.executeUpdate(query1);
+	   case 2: esql.updateOrderPaid(Integer.parseInt(id), false);
 		   System.out.printf("Order %s has been updated to be unpaid\n\n", id);
 		   break;
 	   default: System.out.println("Invalid option\n\n");
@@ -644,14 +2142,102 @@ public class Cafe {
    }
  }
 
+ public static void settleOrders(Cafe esql) {
+    try{
+	System.out.println("1: Order ids (e.g. 12, 15, 20-25)");
+	System.out.println("2: All unpaid orders of a customer");
+	int rows;
+	switch(readChoice()) {
+	   case 1: System.out.println("Enter the order ids:");
+		   rows = esql.markOrdersPaid(parseOrderIds(in.readLine()));
+		   break;
+	   case 2: System.out.println("Enter the customer login:");
+		   String login = in.readLine();
+		   System.out.println("Orders of the last how many hours?");
+		   long hours = readChoice();
+		   rows = esql.markOrdersPaid(login,
+		      new Timestamp(System.currentTimeMillis() - hours * 60 * 60 * 1000));
+		   break;
+	   default: System.out.println("Invalid option\n\n");
+		   return;
+	}
+	System.out.printf("%d order(s) have been updated to be paid\n\n", rows);
+    }catch(Exception e) {
+	System.err.println(e.getMessage());
+    }
+ }
+
+ public static void SalesReport(Cafe esql) {
+    try{
+	System.out.println("1: Hourly, last 24 hours");
+	System.out.println("2: Daily, last 30 days");
+	String grain;
+	Timestamp from;
+	Timestamp to;
+	switch(readChoice()) {
+	   case 1: grain = SalesRollup.HOUR;
+		   to = new Timestamp(System.currentTimeMillis());
+		   from = new Timestamp(to.getTime() - 24L * 60 * 60 * 1000);
+		   break;
+	   case 2: grain = SalesRollup.DAY;
+		   // whole days, up to and including today
+		   to = SalesRollup.truncate(new Timestamp(System.currentTimeMillis()
+		                                           + 24L * 60 * 60 * 1000), SalesRollup.DAY);
+		   from = new Timestamp(to.getTime() - 30L * 24 * 60 * 60 * 1000);
+		   break;
+	   default: System.out.println("Invalid option\n\n");
+		   return;
+	}
+	// read from the rollups, see SalesRollup
+	SalesRollup.print(esql.salesReport(grain, from, to), System.out, esql.getOutputFormat());
+	System.out.println("Most ordered items:");
+	SalesRollup.printItems(esql.popularItems(from, to, 10), System.out, esql.getOutputFormat());
+	System.out.println();
+    }catch(Exception e) {
+	System.err.println(e.getMessage());
+    }
+ }
+
  public static void orderHist(Cafe esql) {
     try{
-	Timestamp ts = new Timestamp(System.currentTimeMillis());
-	String query = String.format("SELECT * FROM Orders WHERE timeStampRecieved >= NOW() - '1 day'::INTERVAL");
-	int rows = esql.executeQueryAndPrintResult(query);
+	// answered from memory, see UnpaidOrderWindow
+	int rows = esql.getUnpaidOrders().print(System.out, esql.getOutputFormat());
+	System.out.printf("%d unpaid order(s)\n\n", rows);
     }catch(Exception e) {
 	System.err.println(e.getMessage());
     }
  }
+
+   /*
+    * Shows the open orders and prints them again on every change, until
+    * Enter is pressed.
+    **/
+   public static void OrderStatusBoard(final Cafe esql) {
+      StatusBoard board = new StatusBoard(esql);
+      board.addListener(new StatusBoard.Listener() {
+         public void boardChanged (StatusBoard b) {
+            printBoard (esql, b);
+         }
+      });
+      try{
+         board.start ();
+         printBoard (esql, board);
+         System.out.println("(press Enter to leave the status board)");
+         in.readLine ();
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         board.stop ();
+      }//end try
+   }//end OrderStatusBoard
+
+   private static synchronized void printBoard(Cafe esql, StatusBoard board) {
+      try{
+         System.out.println();
+         board.print (System.out, esql.getOutputFormat ());
+      }catch (IOException e){
+         System.err.println (e.getMessage ());
+      }//end try
+   }//end printBoard
 }//end Cafe
 
@@ -0,0 +1,417 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs single Cafe operations without the keyboard menus, for
+ * scripted and remote sessions.  A command is one line, either plain text
+ *
+ * <pre>
+ *    login &lt;login&gt; &lt;password&gt;
+ *    logout
+ *    profile
+ *    menu
+ *    search &lt;item name&gt;
+ *    search_type &lt;type&gt;
+ *    order &lt;paid|unpaid&gt; &lt;item&gt;[,&lt;item&gt;...]
+ *    order_for &lt;login&gt; &lt;paid|unpaid&gt; &lt;item&gt;[,&lt;item&gt;...]
+ *    update &lt;orderid&gt; &lt;paid|unpaid&gt;
+ *    unpaid
+ *    history [&lt;login&gt;]
+ *    settle &lt;orderid&gt;[,&lt;orderid&gt;|&lt;first&gt;-&lt;last&gt;...]
+ *    settle_for &lt;login&gt; &lt;hours&gt;
+ *    sales [&lt;hours&gt;]
+ * </pre>
+ *
+ * or a flat JSON object with the same fields, e.g.
+ * {"op":"order","paid":false,"items":["Coffee","Donuts"]}.
+ *
+ * Commands run through the same Cafe business methods as the menus and
+ * check permissions against the session's role the same way.
+ */
+public class CafeCommands {
+
+   // the operations a script may use, for usage messages
+   public static final List<String> OPERATIONS = Arrays.asList(
+      "login", "logout", "profile", "menu", "search", "search_type", "order", "order_for", "update",
+      "unpaid", "history", "settle", "settle_for", "sales");
+
+   /**
+    * The state of one scripted or remote session.
+    */
+   public static class Session {
+      private UserSession _user;
+
+      public UserSession getUser() {
+         return this._user;
+      }
+   }//end Session
+
+   /**
+    * A parsed command: the operation name and its named arguments.  Values
+    * are Strings, Booleans, Longs or Lists of Strings.
+    */
+   public static class Command {
+      private final String _op;
+      private final Map<String, Object> _args;
+
+      public Command(String op, Map<String, Object> args) {
+         this._op = op;
+         this._args = args;
+      }
+
+      public String getOp() {
+         return this._op;
+      }
+
+      String text(String name) {
+         Object value = this._args.get(name);
+         if (value == null)
+            throw new IllegalArgumentException(this._op + ": missing " + name);
+         return value.toString();
+      }
+
+      boolean flag(String name) {
+         Object value = this._args.get(name);
+         if (value instanceof Boolean)
+            return (Boolean) value;
+         String t = text(name);
+         if (t.equals("paid") || t.equals("true") || t.equals("1"))
+            return true;
+         if (t.equals("unpaid") || t.equals("false") || t.equals("0"))
+            return false;
+         throw new IllegalArgumentException(this._op + ": " + name + " must be paid or unpaid");
+      }
+
+      int number(String name) {
+         return Integer.parseInt(text(name).trim());
+      }
+
+      @SuppressWarnings("unchecked")
+      List<String> list(String name) {
+         Object value = this._args.get(name);
+         if (value instanceof List)
+            return (List<String>) value;
+         List<String> items = new ArrayList<String>();
+         for (String item : text(name).split(","))
+            if (!item.trim().isEmpty())
+               items.add(item.trim());
+         return items;
+      }
+   }//end Command
+
+   private final Cafe _esql;
+
+   public CafeCommands(Cafe esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Method to parse one line of a script.
+    *
+    * @param line a text command or a JSON object
+    * @return the command, or null for blank lines and # comments
+    * @throws IllegalArgumentException when the line is not a valid command
+    */
+   public static Command parse(String line) {
+      String t = line.trim();
+      if (t.isEmpty() || t.startsWith("#"))
+         return null;
+      if (t.startsWith("{")) {
+         Map<String, Object> args = new JsonObjectParser(t).parse();
+         Object op = args.get("op");
+         if (op == null)
+            throw new IllegalArgumentException("JSON command without \"op\": " + t);
+         return new Command(op.toString(), args);
+      }//end if
+
+      String[] words = t.split("\\s+", 2);
+      String op = words[0].toLowerCase();
+      String rest = words.length > 1 ? words[1] : "";
+      Map<String, Object> args = new HashMap<String, Object>();
+      if (op.equals("login"))
+         put(args, rest, "login", "password");
+      else if (op.equals("search"))
+         args.put("name", rest);
+      else if (op.equals("search_type"))
+         args.put("type", rest);
+      else if (op.equals("order"))
+         put(args, rest, "paid", "items");
+      else if (op.equals("order_for"))
+         put(args, rest, "login", "paid", "items");
+      else if (op.equals("update"))
+         put(args, rest, "orderid", "paid");
+      else if (op.equals("settle"))
+         args.put("orderids", rest);
+      else if (op.equals("settle_for"))
+         put(args, rest, "login", "hours");
+      else if (op.equals("history") && !rest.isEmpty())
+         args.put("login", rest.trim());
+      else if (op.equals("sales") && !rest.isEmpty())
+         args.put("hours", rest.trim());
+      return new Command(op, args);
+   }//end parse
+
+   /**
+    * Method to run a command.
+    *
+    * @param cmd the command
+    * @param session the session the command runs in
+    * @return a one line description of the outcome
+    * @throws Exception when the command is invalid, not allowed or failed
+    */
+   public String execute(Command cmd, Session session) throws Exception {
+      String op = cmd.getOp();
+      if (op.equals("login")) {
+         UserSession user = this._esql.authenticate(cmd.text("login"), cmd.text("password"));
+         if (user == null)
+            throw new IllegalArgumentException("login: wrong login or password");
+         session._user = user;
+         return "logged in as " + user;
+      }//end if
+      if (op.equals("logout")) {
+         session._user = null;
+         return "logged out";
+      }//end if
+
+      UserSession user = session._user;
+      if (user == null)
+         throw new IllegalStateException(op + ": not logged in");
+
+      if (op.equals("profile"))
+         return user.toString();
+      if (op.equals("menu"))
+         return this._esql.getMenu().size() + " items";
+      if (op.equals("search")) {
+         MenuCatalog menu = this._esql.getMenu();
+         MenuItem item = menu.findByName(cmd.text("name"));
+         if (item != null)
+            return item.getItemName() + " " + item.getPrice();
+         List<MenuItem> items = menu.search(cmd.text("name"), MenuSearchIndex.DEFAULT_LIMIT);
+         if (items.isEmpty())
+            return "no item matching " + cmd.text("name");
+         StringBuilder names = new StringBuilder();
+         for (MenuItem match : items)
+            names.append(names.length() == 0 ? "" : ", ").append(match.getItemName());
+         return "no item named " + cmd.text("name") + ", did you mean " + names;
+      }//end if
+      if (op.equals("search_type"))
+         return this._esql.getMenu().findByType(cmd.text("type")).size() + " items";
+      if (op.equals("order") || op.equals("order_for")) {
+         String login = user.getLogin();
+         if (cmd._args.containsKey("login"))
+            login = cmd.text("login");
+         if (!login.equals(user.getLogin()) && user.isCustomer())
+            throw new IllegalArgumentException(op + ": customers may only order for themselves");
+         if (!login.equals(user.getLogin()) && !this._esql.userExists(login))
+            throw new IllegalArgumentException(op + ": non existent login " + login);
+         return this._esql.placeOrder(login, cmd.flag("paid"), cmd.list("items")).toString();
+      }//end if
+      if (op.equals("update")) {
+         int orderid = cmd.number("orderid");
+         boolean paid = cmd.flag("paid");
+         if (user.isCustomer()) {
+            // customers may only mark their own unpaid orders as paid
+            if (!this._esql.orderBelongsTo(orderid, user.getLogin()))
+               throw new IllegalArgumentException("update: invalid order ID " + orderid);
+            if (!paid || Boolean.TRUE.equals(this._esql.isOrderPaid(orderid)))
+               throw new IllegalArgumentException("update: cannot modify order " + orderid);
+         }//end if
+         if (this._esql.updateOrderPaid(orderid, paid) == 0)
+            throw new IllegalArgumentException("update: invalid order ID " + orderid);
+         return "order " + orderid + " is " + (paid ? "paid" : "unpaid");
+      }//end if
+      if (op.equals("unpaid")) {
+         if (user.isCustomer())
+            throw new IllegalArgumentException("unpaid: employees and managers only");
+         return this._esql.getUnpaidOrders().getOrders().size() + " unpaid orders";
+      }//end if
+      if (op.equals("settle") || op.equals("settle_for")) {
+         if (!user.isManager())
+            throw new IllegalArgumentException(op + ": managers only");
+         int rows;
+         if (op.equals("settle")) {
+            List<int[]> orderids = new ArrayList<int[]>();
+            for (String ids : cmd.list("orderids"))
+               orderids.addAll(Cafe.parseOrderIds(ids));
+            rows = this._esql.markOrdersPaid(orderids);
+         }else {
+            rows = this._esql.markOrdersPaid(cmd.text("login"), new Timestamp(
+               System.currentTimeMillis() - cmd.number("hours") * 60L * 60 * 1000));
+         }//end if
+         return rows + " orders marked paid";
+      }//end if
+      if (op.equals("history")) {
+         String login = user.getLogin();
+         if (cmd._args.containsKey("login") && !user.isCustomer())
+            login = cmd.text("login");
+         OrderHistory.Page page =
+            this._esql.orderHistory(login, null, OrderHistory.DEFAULT_PAGE_SIZE);
+         return page.getRows().size() + " recent orders" + (page.hasNext() ? ", more" : "");
+      }//end if
+      if (op.equals("sales")) {
+         if (!user.isManager())
+            throw new IllegalArgumentException("sales: managers only");
+         long hours = cmd._args.containsKey("hours") ? cmd.number("hours") : 24;
+         Timestamp to = new Timestamp(System.currentTimeMillis());
+         Timestamp from = new Timestamp(to.getTime() - hours * 60L * 60 * 1000);
+         long orders = 0;
+         double revenue = 0;
+         double paid = 0;
+         for (SalesRollup.Row row : this._esql.salesReport(SalesRollup.HOUR, from, to)) {
+            orders += row.getOrders();
+            revenue += row.getRevenue();
+            paid += row.getPaidRevenue();
+         }//end for
+         return String.format("%d orders, revenue %.2f, paid %.2f in %d hours", orders, revenue,
+                              paid, hours);
+      }//end if
+      throw new IllegalArgumentException("Unknown command: " + op);
+   }//end execute
+
+   /*
+    * Splits the text after the command word into the named arguments; the
+    * last one takes the rest of the line.
+    **/
+   private static void put(Map<String, Object> args, String rest, String... names) {
+      String[] words = rest.trim().split("\\s+", names.length);
+      for (int i = 0; i < names.length && i < words.length; ++i)
+         if (!words[i].isEmpty())
+            args.put(names[i], words[i]);
+   }//end put
+
+   /*
+    * Parses a flat JSON object whose values are strings, numbers, booleans,
+    * null or arrays of strings.
+    **/
+   private static class JsonObjectParser {
+      private final String _text;
+      private int _pos = 0;
+
+      JsonObjectParser(String text) {
+         this._text = text;
+      }
+
+      Map<String, Object> parse() {
+         Map<String, Object> result = new HashMap<String, Object>();
+         expect('{');
+         if (peek() == '}') {
+            ++this._pos;
+            return result;
+         }//end if
+         while (true) {
+            String key = string();
+            expect(':');
+            result.put(key, value());
+            char ch = next();
+            if (ch == '}')
+               return result;
+            if (ch != ',')
+               throw error("expected , or }");
+         }//end while
+      }
+
+      private Object value() {
+         char ch = peek();
+         if (ch == '"')
+            return string();
+         if (ch == '[') {
+            ++this._pos;
+            List<String> items = new ArrayList<String>();
+            if (peek() == ']') {
+               ++this._pos;
+               return items;
+            }//end if
+            while (true) {
+               Object item = value();
+               items.add(item == null ? null : item.toString());
+               char sep = next();
+               if (sep == ']')
+                  return items;
+               if (sep != ',')
+                  throw error("expected , or ]");
+            }//end while
+         }//end if
+         int start = this._pos;
+         while (this._pos < this._text.length()
+                && ",}] \t".indexOf(this._text.charAt(this._pos)) < 0)
+            ++this._pos;
+         String word = this._text.substring(start, this._pos);
+         if (word.equals("true") || word.equals("false"))
+            return Boolean.valueOf(word);
+         if (word.equals("null"))
+            return null;
+         try {
+            return Long.valueOf(word);
+         }catch (NumberFormatException e) {
+            throw error("unexpected " + word);
+         }//end try
+      }
+
+      private String string() {
+         expect('"');
+         StringBuilder sb = new StringBuilder();
+         while (this._pos < this._text.length()) {
+            char ch = this._text.charAt(this._pos++);
+            if (ch == '"')
+               return sb.toString();
+            if (ch == '\\' && this._pos < this._text.length()) {
+               char esc = this._text.charAt(this._pos++);
+               switch (esc) {
+                  case 'n': sb.append('\n'); break;
+                  case 't': sb.append('\t'); break;
+                  case 'r': sb.append('\r'); break;
+                  case 'b': sb.append('\b'); break;
+                  case 'f': sb.append('\f'); break;
+                  case 'u': sb.append(unicode()); break;
+                  default: sb.append(esc); break;
+               }
+            }else {
+               sb.append(ch);
+            }//end if
+         }//end while
+         throw error("unterminated string");
+      }
+
+      private char unicode() {
+         if (this._pos + 4 > this._text.length())
+            throw error("bad \\u escape");
+         int code = 0;
+         for (int i = 0; i < 4; ++i) {
+            int digit = Character.digit(this._text.charAt(this._pos++), 16);
+            if (digit < 0)
+               throw error("bad \\u escape");
+            code = code * 16 + digit;
+         }//end for
+         return (char) code;
+      }
+
+      private char peek() {
+         while (this._pos < this._text.length()
+                && Character.isWhitespace(this._text.charAt(this._pos)))
+            ++this._pos;
+         if (this._pos >= this._text.length())
+            throw error("unexpected end");
+         return this._text.charAt(this._pos);
+      }
+
+      private char next() {
+         char ch = peek();
+         ++this._pos;
+         return ch;
+      }
+
+      private void expect(char ch) {
+         if (next() != ch)
+            throw error("expected " + ch);
+      }
+
+      private IllegalArgumentException error(String message) {
+         return new IllegalArgumentException("Bad JSON command at " + this._pos + ": "
+                                             + message + ": " + this._text);
+      }
+   }//end JsonObjectParser
+}//end CafeCommands
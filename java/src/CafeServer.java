@@ -0,0 +1,250 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves many Cafe sessions from one process over TCP on
+ * localhost.  A client sends one CafeCommands command per line (text or
+ * JSON) and gets one line back: "ok &lt;outcome&gt;" or "error &lt;message&gt;".
+ * "quit" ends the session.
+ *
+ * Every session runs on a thread of its own: a virtual thread when the JVM
+ * has them (Java 21 and later), else a pooled platform thread.  Sessions
+ * share the Cafe instance, so they share its bounded connection pool, the
+ * menu catalog, the unpaid order window and the result cache; a session
+ * only holds a connection while one of its commands runs.  The pool waits
+ * on a Semaphore, and the code that waits on a query while holding a lock
+ * (reserving order ids, loading the menu or the unpaid orders) uses a
+ * ReentrantLock rather than a monitor, so virtual threads waiting for a
+ * connection or a query do not pin their carrier threads.
+ */
+public class CafeServer {
+
+   public static final int DEFAULT_MAX_SESSIONS = 1000;
+
+   private final Cafe _esql;
+   private final CafeCommands _commands;
+   private final int _port;
+   private final int _maxSessions;
+
+   private ServerSocket _server = null;
+   private ExecutorService _sessions = null;
+   private Thread _acceptor = null;
+   private boolean _virtualThreads = false;
+   private final Set<Socket> _clients =
+      Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+   private final AtomicInteger _active = new AtomicInteger();
+   private final AtomicLong _accepted = new AtomicLong();
+   private final AtomicLong _commandsRun = new AtomicLong();
+
+   /**
+    * Creates a new server; call start to accept clients
+    *
+    * @param esql the database the sessions work on
+    * @param port the port to listen on, 0 for any free one
+    * @param maxSessions the most sessions open at once; more are turned away
+    */
+   public CafeServer(Cafe esql, int port, int maxSessions) {
+      if (maxSessions < 1)
+         throw new IllegalArgumentException("max sessions must be positive: " + maxSessions);
+      this._esql = esql;
+      this._commands = new CafeCommands(esql);
+      this._port = port;
+      this._maxSessions = maxSessions;
+   }//end CafeServer
+
+   /**
+    * Method to listen on localhost and accept clients on a daemon thread.
+    *
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public synchronized void start() throws IOException {
+      if (this._server != null)
+         return;
+      this._server = new ServerSocket();
+      this._server.setReuseAddress(true);
+      this._server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), this._port),
+                        this._maxSessions);
+      this._sessions = newSessionExecutor();
+      this._acceptor = new Thread(new Runnable() {
+         public void run() {
+            accept();
+         }
+      }, "cafe-server-accept");
+      this._acceptor.setDaemon(true);
+      this._acceptor.start();
+   }//end start
+
+   /**
+    * Method to stop accepting clients and close the open sessions.
+    */
+   public synchronized void stop() {
+      if (this._server == null)
+         return;
+      try {
+         this._server.close();
+      }catch (IOException e) {
+         // ignored.
+      }//end try
+      for (Socket client : this._clients)
+         closeQuietly(client);
+      this._sessions.shutdownNow();
+      this._server = null;
+   }//end stop
+
+   /**
+    * @return the port the server listens on, -1 when not started
+    */
+   public synchronized int getPort() {
+      return this._server == null ? -1 : this._server.getLocalPort();
+   }
+
+   public String toString() {
+      return String.format("sessions active=%d accepted=%d commands=%d threads=%s",
+                           this._active.get(), this._accepted.get(), this._commandsRun.get(),
+                           this._virtualThreads ? "virtual" : "platform");
+   }//end toString
+
+   private void accept() {
+      ServerSocket server = this._server;
+      while (!server.isClosed()) {
+         final Socket client;
+         try {
+            client = server.accept();
+         }catch (IOException e) {
+            if (!server.isClosed())
+               System.err.println("Server: " + e.getMessage());
+            continue;
+         }//end try
+         this._accepted.incrementAndGet();
+         if (this._active.incrementAndGet() > this._maxSessions) {
+            this._active.decrementAndGet();
+            reject(client);
+            continue;
+         }//end if
+         this._clients.add(client);
+         try {
+            this._sessions.execute(new Runnable() {
+               public void run() {
+                  try {
+                     serve(client);
+                  }finally {
+                     CafeServer.this._clients.remove(client);
+                     CafeServer.this._active.decrementAndGet();
+                     closeQuietly(client);
+                  }//end try
+               }
+            });
+         }catch (RuntimeException e) {
+            // the executor was shut down by stop
+            this._clients.remove(client);
+            this._active.decrementAndGet();
+            closeQuietly(client);
+         }//end try
+      }//end while
+   }//end accept
+
+   /*
+    * Runs one session: a command per line until quit or end of input.
+    **/
+   private void serve(Socket client) {
+      CafeCommands.Session session = new CafeCommands.Session();
+      try {
+         client.setTcpNoDelay(true);
+         BufferedReader in = new BufferedReader(
+            new InputStreamReader(client.getInputStream(), "UTF-8"));
+         Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"));
+         out.write("ok cafe ready\n");
+         out.flush();
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (line.trim().equalsIgnoreCase("quit"))
+               break;
+            String reply;
+            try {
+               CafeCommands.Command cmd = CafeCommands.parse(line);
+               if (cmd == null)
+                  continue;
+               reply = "ok " + this._commands.execute(cmd, session);
+               this._commandsRun.incrementAndGet();
+            }catch (Exception e) {
+               reply = "error " + e.getMessage();
+            }//end try
+            out.write(oneLine(reply));
+            out.write('\n');
+            out.flush();
+         }//end while
+      }catch (SocketException e) {
+         // the client went away or the server stopped
+      }catch (IOException e) {
+         System.err.println("Server session: " + e.getMessage());
+      }//end try
+   }//end serve
+
+   private static void reject(Socket client) {
+      try {
+         Writer out = new OutputStreamWriter(client.getOutputStream(), "UTF-8");
+         out.write("error server busy\n");
+         out.flush();
+      }catch (IOException e) {
+         // ignored.
+      }finally {
+         closeQuietly(client);
+      }//end try
+   }//end reject
+
+   /*
+    * Replies must stay on one line, whatever the message holds.
+    **/
+   private static String oneLine(String reply) {
+      return reply.replace('\n', ' ').replace('\r', ' ');
+   }
+
+   private static void closeQuietly(Socket socket) {
+      try {
+         socket.close();
+      }catch (IOException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+   /*
+    * Executors.newVirtualThreadPerTaskExecutor is looked up at run time,
+    * as the sources build for older JVMs as well.
+    **/
+   private ExecutorService newSessionExecutor() {
+      try {
+         ExecutorService virtual = (ExecutorService)
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         this._virtualThreads = true;
+         return virtual;
+      }catch (Exception e) {
+         this._virtualThreads = false;
+      }//end try
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+         private final AtomicInteger _next = new AtomicInteger();
+
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-session-" + this._next.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end newSessionExecutor
+}//end CafeServer
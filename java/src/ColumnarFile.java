@@ -0,0 +1,459 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact column oriented file for exported rows, written by
+ * OrderExporter.  Rows are stored in row groups; within a group every
+ * column is stored on its own, so a reader can skip the columns it does
+ * not need and repeated values compress well.
+ *
+ * <pre>
+ *    file      := "CAFECOL1" int:columns column* group* int:0 long:rows "CAFECOL1"
+ *    column    := utf:name byte:type
+ *    group     := int:rows (int:bytes data)*          one data per column
+ * </pre>
+ *
+ * Numbers are big endian and utf is a short length and UTF-8 bytes.  Data
+ * of the column types:
+ *
+ * <pre>
+ *    INT        int per row, Integer.MIN_VALUE for NULL
+ *    FLOAT      float per row, NaN for NULL
+ *    BOOLEAN    byte per row: 1, 0 or -1 for NULL
+ *    TIMESTAMP  long per row, milliseconds of the local time, Long.MIN_VALUE for NULL
+ *    TEXT       per row int:length (-1 for NULL) and UTF-8 bytes
+ *    DICTIONARY int:entries utf* then int per row, the entry index or -1 for NULL
+ * </pre>
+ *
+ * DICTIONARY suits columns with few distinct values, such as logins and
+ * item names; its dictionary belongs to the row group.  A writer holds one
+ * direct buffer per column, so its memory does not depend on the number
+ * of rows written.
+ */
+public class ColumnarFile {
+
+   public static final byte INT = 1;
+   public static final byte FLOAT = 2;
+   public static final byte BOOLEAN = 3;
+   public static final byte TIMESTAMP = 4;
+   public static final byte TEXT = 5;
+   public static final byte DICTIONARY = 6;
+
+   public static final int DEFAULT_GROUP_ROWS = 65536;
+
+   private static final byte[] MAGIC = "CAFECOL1".getBytes(Charset.forName("US-ASCII"));
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // bytes per row of the fixed width types, by type
+   private static final int[] WIDTH = { 0, 4, 4, 1, 8, 0, 4 };
+
+   /**
+    * Writes rows to a columnar file.  As a RowVisitor it takes the columns
+    * of a query result in order; an IOException while writing stops the
+    * query and is thrown by finish.
+    */
+   public static class Writer implements RowVisitor {
+      private final FileChannel _channel;
+      private final byte[] _types;
+      private final int _groupRows;
+      private final ByteBuffer[] _data;
+      // dictionary entries of the current group, per DICTIONARY column
+      private final List<Map<String, Integer>> _codes = new ArrayList<Map<String, Integer>>();
+      private final List<List<byte[]>> _entries = new ArrayList<List<byte[]>>();
+      private final int[] _dictionaryBytes;
+      private final ByteBuffer _dictionary;
+      private int _rows = 0;
+      private long _totalRows = 0;
+      // char(n) columns of the query, whose blank padding is dropped
+      private boolean[] _padded;
+      private IOException _failure = null;
+
+      /**
+       * Creates a new file and writes its header
+       *
+       * @param file the file to create or replace
+       * @param names the column names
+       * @param types the column types
+       * @param bufferBytes the size of the direct buffer of each column
+       * @throws java.io.IOException when the file cannot be written
+       */
+      public Writer(File file, String[] names, byte[] types, int bufferBytes)
+         throws IOException {
+         if (names.length != types.length)
+            throw new IllegalArgumentException("a type per column is needed");
+         this._types = types.clone();
+         int widest = 0;
+         for (byte type : types)
+            widest = Math.max(widest, WIDTH[type]);
+         this._groupRows = widest == 0 ? DEFAULT_GROUP_ROWS
+                                       : Math.min(DEFAULT_GROUP_ROWS, bufferBytes / widest);
+         this._data = new ByteBuffer[types.length];
+         this._dictionaryBytes = new int[types.length];
+         for (int i = 0; i < types.length; ++i) {
+            this._data[i] = ByteBuffer.allocateDirect(bufferBytes);
+            this._codes.add(types[i] == DICTIONARY ? new HashMap<String, Integer>() : null);
+            this._entries.add(types[i] == DICTIONARY ? new ArrayList<byte[]>() : null);
+         }//end for
+         this._dictionary = ByteBuffer.allocateDirect(bufferBytes);
+         this._channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE,
+                                          StandardOpenOption.TRUNCATE_EXISTING);
+         ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + names.length * 64);
+         header.put(MAGIC).putInt(names.length);
+         for (int i = 0; i < names.length; ++i) {
+            byte[] name = names[i].getBytes(UTF8);
+            if (header.remaining() < name.length + 3)
+               header = grow(header, name.length + 3);
+            header.putShort((short) name.length).put(name).put(types[i]);
+         }//end for
+         header.flip();
+         writeFully(header);
+      }//end Writer
+
+      public void start(ResultSetMetaData rsmd) throws SQLException {
+         if (rsmd.getColumnCount() != this._types.length)
+            throw new SQLException("expected " + this._types.length + " columns, got "
+                                   + rsmd.getColumnCount());
+         this._padded = new boolean[this._types.length];
+         for (int i = 1; i <= this._types.length; ++i)
+            this._padded[i - 1] = rsmd.getColumnType(i) == Types.CHAR;
+      }
+
+      public boolean visit(ResultSet rs) throws SQLException {
+         try {
+            Object[] row = new Object[this._types.length];
+            for (int i = 0; i < row.length; ++i)
+               row[i] = read(rs, i + 1, this._types[i], this._padded[i]);
+            add(row);
+            return true;
+         }catch (IOException e) {
+            this._failure = e;
+            return false;
+         }//end try
+      }
+
+      /**
+       * Method to add a row.
+       *
+       * @param row a value per column: Integer, Float, Boolean, Timestamp,
+       *        String or null
+       * @throws java.io.IOException when a full row group cannot be written
+       */
+      public void add(Object[] row) throws IOException {
+         byte[][] text = new byte[row.length][];
+         if (!fits(row, text)) {
+            flushGroup();
+            if (!fits(row, text))
+               throw new IOException("row does not fit the column buffers");
+         }//end if
+         for (int i = 0; i < row.length; ++i) {
+            ByteBuffer data = this._data[i];
+            Object value = row[i];
+            switch (this._types[i]) {
+               case INT:
+                  data.putInt(value == null ? Integer.MIN_VALUE : (Integer) value);
+                  break;
+               case FLOAT:
+                  data.putFloat(value == null ? Float.NaN : (Float) value);
+                  break;
+               case BOOLEAN:
+                  data.put(value == null ? (byte) -1 : (Boolean) value ? (byte) 1 : (byte) 0);
+                  break;
+               case TIMESTAMP:
+                  data.putLong(value == null ? Long.MIN_VALUE : ((Timestamp) value).getTime());
+                  break;
+               case TEXT:
+                  data.putInt(value == null ? -1 : text[i].length);
+                  if (value != null)
+                     data.put(text[i]);
+                  break;
+               default:
+                  data.putInt(value == null ? -1 : code(i, (String) value, text[i]));
+                  break;
+            }//end switch
+         }//end for
+         ++this._rows;
+         ++this._totalRows;
+         if (this._rows == this._groupRows)
+            flushGroup();
+      }//end add
+
+      /**
+       * Method to write the last row group and the footer, force the file
+       * to disk and close it.
+       *
+       * @return the number of rows written
+       * @throws java.io.IOException when writing failed, also while the
+       *         rows were visited
+       */
+      public long finish() throws IOException {
+         try {
+            if (this._failure != null)
+               throw this._failure;
+            flushGroup();
+            ByteBuffer footer = ByteBuffer.allocate(4 + 8 + MAGIC.length);
+            footer.putInt(0).putLong(this._totalRows).put(MAGIC).flip();
+            writeFully(footer);
+            this._channel.force(true);
+            return this._totalRows;
+         }finally {
+            this._channel.close();
+         }//end try
+      }//end finish
+
+      /**
+       * Method to close the file without finishing it, after a failure.
+       */
+      public void abort() {
+         try {
+            this._channel.close();
+         }catch (IOException e) {
+            // ignored.
+         }//end try
+      }//end abort
+
+      /*
+       * Whether the row fits the buffers of the current group; encodes
+       * the text values on the way.
+       **/
+      private boolean fits(Object[] row, byte[][] text) {
+         for (int i = 0; i < row.length; ++i) {
+            byte type = this._types[i];
+            int needed = WIDTH[type];
+            if ((type == TEXT || type == DICTIONARY) && row[i] != null) {
+               if (text[i] == null)
+                  text[i] = ((String) row[i]).getBytes(UTF8);
+               if (type == TEXT)
+                  needed += 4 + text[i].length;
+               else if (!this._codes.get(i).containsKey((String) row[i])
+                        && this._dictionaryBytes[i] + 2 + text[i].length + 4
+                           > this._dictionary.capacity())
+                  return false;
+            }else if (type == TEXT) {
+               needed = 4;
+            }//end if
+            if (this._data[i].remaining() < needed)
+               return false;
+         }//end for
+         return true;
+      }//end fits
+
+      private int code(int column, String value, byte[] bytes) {
+         Map<String, Integer> codes = this._codes.get(column);
+         Integer code = codes.get(value);
+         if (code == null) {
+            code = codes.size();
+            codes.put(value, code);
+            this._entries.get(column).add(bytes);
+            this._dictionaryBytes[column] += 2 + bytes.length;
+         }//end if
+         return code;
+      }//end code
+
+      private void flushGroup() throws IOException {
+         if (this._rows == 0)
+            return;
+         ByteBuffer header = ByteBuffer.allocate(4 + 4);
+         header.putInt(this._rows).flip();
+         writeFully(header);
+         for (int i = 0; i < this._types.length; ++i) {
+            ByteBuffer data = this._data[i];
+            data.flip();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            if (this._types[i] == DICTIONARY) {
+               this._dictionary.clear();
+               this._dictionary.putInt(this._entries.get(i).size());
+               for (byte[] entry : this._entries.get(i))
+                  this._dictionary.putShort((short) entry.length).put(entry);
+               this._dictionary.flip();
+               length.putInt(this._dictionary.remaining() + data.remaining()).flip();
+               writeFully(length, this._dictionary, data);
+               this._codes.get(i).clear();
+               this._entries.get(i).clear();
+               this._dictionaryBytes[i] = 0;
+            }else {
+               length.putInt(data.remaining()).flip();
+               writeFully(length, data);
+            }//end if
+            data.clear();
+         }//end for
+         this._rows = 0;
+      }//end flushGroup
+
+      private void writeFully(ByteBuffer... buffers) throws IOException {
+         long left = 0;
+         for (ByteBuffer b : buffers)
+            left += b.remaining();
+         while (left > 0)
+            left -= this._channel.write(buffers);
+      }//end writeFully
+
+      private static ByteBuffer grow(ByteBuffer buffer, int more) {
+         ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2 + more);
+         buffer.flip();
+         return bigger.put(buffer);
+      }
+   }//end Writer
+
+   /**
+    * Method to print a columnar file as ';' delimited rows, with \N for
+    * NULL, preceded by a line of column names.
+    *
+    * @param file the file
+    * @param out where to print
+    * @return the number of rows printed
+    * @throws java.io.IOException when the file cannot be read or is not a
+    *         columnar file
+    */
+   public static long dump(File file, PrintStream out) throws IOException {
+      InputStream stream = Channels.newInputStream(
+         FileChannel.open(file.toPath(), StandardOpenOption.READ));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+      try {
+         checkMagic(in, file);
+         int columns = in.readInt();
+         String[] names = new String[columns];
+         byte[] types = new byte[columns];
+         for (int i = 0; i < columns; ++i) {
+            names[i] = readUtf(in);
+            types[i] = in.readByte();
+         }//end for
+         StringBuilder line = new StringBuilder();
+         for (int i = 0; i < columns; ++i)
+            line.append(i == 0 ? "" : ";").append(names[i]);
+         out.println(line);
+         long total = 0;
+         int rows;
+         while ((rows = in.readInt()) > 0) {
+            String[][] values = new String[columns][];
+            for (int i = 0; i < columns; ++i) {
+               in.readInt();  // the byte length, for readers skipping the column
+               values[i] = readColumn(in, types[i], rows);
+            }//end for
+            for (int r = 0; r < rows; ++r) {
+               line.setLength(0);
+               for (int i = 0; i < columns; ++i)
+                  line.append(i == 0 ? "" : ";").append(values[i][r] == null ? "\\N" : values[i][r]);
+               out.println(line);
+            }//end for
+            total += rows;
+         }//end while
+         if (in.readLong() != total)
+            throw new IOException(file + ": row count does not match the footer");
+         checkMagic(in, file);
+         return total;
+      }catch (EOFException e) {
+         throw new IOException(file + " is truncated");
+      }finally {
+         in.close();
+      }//end try
+   }//end dump
+
+   private static String[] readColumn(DataInputStream in, byte type, int rows)
+      throws IOException {
+      String[] values = new String[rows];
+      String[] dictionary = null;
+      if (type == DICTIONARY) {
+         dictionary = new String[in.readInt()];
+         for (int i = 0; i < dictionary.length; ++i)
+            dictionary[i] = readUtf(in);
+      }//end if
+      for (int r = 0; r < rows; ++r) {
+         switch (type) {
+            case INT:
+               int n = in.readInt();
+               values[r] = n == Integer.MIN_VALUE ? null : String.valueOf(n);
+               break;
+            case FLOAT:
+               float f = in.readFloat();
+               values[r] = Float.isNaN(f) ? null : String.valueOf(f);
+               break;
+            case BOOLEAN:
+               byte b = in.readByte();
+               values[r] = b < 0 ? null : b == 1 ? "t" : "f";
+               break;
+            case TIMESTAMP:
+               long t = in.readLong();
+               values[r] = t == Long.MIN_VALUE ? null : new Timestamp(t).toString();
+               break;
+            case TEXT:
+               int length = in.readInt();
+               if (length >= 0) {
+                  byte[] bytes = new byte[length];
+                  in.readFully(bytes);
+                  values[r] = new String(bytes, UTF8);
+               }//end if
+               break;
+            case DICTIONARY:
+               int code = in.readInt();
+               values[r] = code < 0 ? null : dictionary[code];
+               break;
+            default:
+               throw new IOException("unknown column type " + type);
+         }//end switch
+      }//end for
+      return values;
+   }//end readColumn
+
+   private static String readUtf(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readUnsignedShort()];
+      in.readFully(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   private static void checkMagic(DataInputStream in, File file) throws IOException {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC))
+         throw new IOException(file + " is not a columnar file");
+   }
+
+   /*
+    * Reads a column of the current row as the Java value of its type,
+    * without the blank padding of a char(n) column.
+    **/
+   private static Object read(ResultSet rs, int column, byte type, boolean padded)
+      throws SQLException {
+      Object value;
+      switch (type) {
+         case INT:
+            value = rs.getInt(column);
+            break;
+         case FLOAT:
+            value = rs.getFloat(column);
+            break;
+         case BOOLEAN:
+            String b = rs.getString(column);
+            value = b == null ? null : Boolean.valueOf(b.startsWith("t"));
+            break;
+         case TIMESTAMP:
+            value = rs.getTimestamp(column);
+            break;
+         default:
+            String s = rs.getString(column);
+            value = padded ? TableRenderer.trimPadding(s) : s;
+            break;
+      }//end switch
+      return rs.wasNull() ? null : value;
+   }//end read
+}//end ColumnarFile
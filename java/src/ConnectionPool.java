@@ -0,0 +1,453 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a bounded pool of physical database connections so that
+ * several sessions can run queries at the same time without opening a
+ * connection per request.
+ *
+ * The pool opens minSize connections up front and grows on demand up to
+ * maxSize.  A borrower waits at most borrowTimeoutMillis for a connection.
+ * Connections that sat idle longer than validateAfterMillis, or that saw an
+ * error, are validated with a cheap query before they are handed out, and a
+ * background task closes connections that stayed idle longer than
+ * idleTimeoutMillis while the pool is above its minimum size.
+ */
+public class ConnectionPool {
+
+   public static final int DEFAULT_MIN_SIZE = 1;
+   public static final int DEFAULT_MAX_SIZE = 8;
+   public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 10000L;
+   public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5L * 60L * 1000L;
+   public static final long DEFAULT_VALIDATE_AFTER_MILLIS = 5000L;
+
+   private static final String VALIDATION_QUERY = "SELECT 1";
+
+   /**
+    * A physical connection handed out by the pool, together with the
+    * prepared statements cached on it.
+    */
+   public static class PooledConnection {
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private volatile long _lastUsed;
+      private volatile boolean _suspect;
+
+      PooledConnection(Connection connection) {
+         this._connection = connection;
+         this._statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+         this._lastUsed = System.currentTimeMillis();
+      }
+
+      public Connection getConnection() {
+         return this._connection;
+      }
+
+      public StatementCache getStatements() {
+         return this._statements;
+      }
+
+      /**
+       * Method to flag the connection after an error, so that it is
+       * validated before the next borrower gets it.
+       */
+      public void markSuspect() {
+         this._suspect = true;
+      }
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _borrowTimeoutMillis;
+   private final long _idleTimeoutMillis;
+   private final long _validateAfterMillis;
+
+   // idle connections, most recently returned first
+   private final LinkedBlockingDeque<PooledConnection> _idle =
+      new LinkedBlockingDeque<PooledConnection>();
+
+   // every open connection, idle or borrowed
+   private final Set<PooledConnection> _all =
+      Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+
+   // one permit per connection that may still be borrowed
+   private final Semaphore _permits;
+
+   private final ScheduledExecutorService _evictor;
+   private volatile boolean _closed = false;
+
+   // metrics
+   private final AtomicInteger _borrowed = new AtomicInteger();
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _borrowTimeouts = new AtomicLong();
+   private final AtomicLong _borrowWaitNanos = new AtomicLong();
+   private final AtomicLong _maxBorrowWaitNanos = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _destroyed = new AtomicLong();
+   private final AtomicLong _idleEvictions = new AtomicLong();
+   private final AtomicLong _validationFailures = new AtomicLong();
+
+   // statement cache counters of connections that were already closed
+   private final AtomicLong _retiredStatementHits = new AtomicLong();
+   private final AtomicLong _retiredStatementMisses = new AtomicLong();
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open at all times
+    * @param maxSize the maximum number of connections open at once
+    * @throws java.sql.SQLException when the initial connections fail
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize)
+      throws SQLException {
+      this(url, user, passwd, minSize, maxSize, DEFAULT_BORROW_TIMEOUT_MILLIS,
+           DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_VALIDATE_AFTER_MILLIS);
+   }//end ConnectionPool
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open at all times
+    * @param maxSize the maximum number of connections open at once
+    * @param borrowTimeoutMillis how long a borrower waits for a connection
+    * @param idleTimeoutMillis how long a connection above minSize may stay idle
+    * @param validateAfterMillis idle time after which a borrow validates first
+    * @throws java.sql.SQLException when the initial connections fail
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                         long borrowTimeoutMillis, long idleTimeoutMillis,
+                         long validateAfterMillis) throws SQLException {
+      if (maxSize < 1 || minSize < 0 || minSize > maxSize)
+         throw new IllegalArgumentException(
+            "invalid pool size: min=" + minSize + " max=" + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._validateAfterMillis = validateAfterMillis;
+      this._permits = new Semaphore(maxSize, true);
+
+      for (int i = 0; i < minSize; ++i)
+         this._idle.offerLast(open());
+
+      this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-pool-evictor");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this._evictor.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            evictIdle();
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Method to borrow a connection.  Every borrowed connection must be
+    * handed back with release, normally from a finally block.
+    *
+    * @return a validated connection that belongs to the caller until released
+    * @throws java.sql.SQLException when no connection became available in
+    *         time or a new connection could not be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      boolean acquired;
+      try {
+         acquired = this._permits.tryAcquire(this._borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }//end try
+      long waited = System.nanoTime() - start;
+      this._borrowWaitNanos.addAndGet(waited);
+      updateMax(this._maxBorrowWaitNanos, waited);
+      if (!acquired) {
+         this._borrowTimeouts.incrementAndGet();
+         throw new SQLException("Timed out after " + this._borrowTimeoutMillis
+                                + " ms waiting for a database connection");
+      }//end if
+
+      try {
+         PooledConnection c;
+         while ((c = this._idle.pollFirst()) != null) {
+            if (isUsable(c))
+               break;
+            this._validationFailures.incrementAndGet();
+            destroy(c);
+         }//end while
+         if (c == null)
+            c = open();
+         this._borrows.incrementAndGet();
+         this._borrowed.incrementAndGet();
+         return c;
+      }catch (SQLException e) {
+         this._permits.release();
+         throw e;
+      }catch (RuntimeException e) {
+         this._permits.release();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Method to open a connection outside the pool, for long lived uses
+    * such as a LISTEN session that must not be handed to other borrowers.
+    * It does not count against the pool size and the caller closes it.
+    *
+    * @return a new connection to the pool's database
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openDedicated() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openDedicated
+
+   /**
+    * Method to hand a borrowed connection back to the pool.  An unfinished
+    * transaction is rolled back and auto-commit is switched back on.
+    *
+    * @param c the connection obtained from borrow
+    */
+   public void release(PooledConnection c) {
+      if (c == null)
+         return;
+      this._borrowed.decrementAndGet();
+      try {
+         if (!c._connection.getAutoCommit()) {
+            c._connection.rollback();
+            c._connection.setAutoCommit(true);
+         }//end if
+      }catch (SQLException e) {
+         c._suspect = true;
+      }//end try
+
+      c._lastUsed = System.currentTimeMillis();
+      if (this._closed)
+         destroy(c);
+      else
+         this._idle.offerFirst(c);
+      this._permits.release();
+   }//end release
+
+   /**
+    * Method to close every connection.  Borrowed connections are closed
+    * when they are released.
+    */
+   public void close() {
+      this._closed = true;
+      this._evictor.shutdownNow();
+      PooledConnection c;
+      while ((c = this._idle.pollFirst()) != null)
+         destroy(c);
+   }//end close
+
+   public int getMinSize() {
+      return this._minSize;
+   }
+
+   public int getMaxSize() {
+      return this._maxSize;
+   }
+
+   public int getOpenCount() {
+      return this._all.size();
+   }
+
+   public int getIdleCount() {
+      return this._idle.size();
+   }
+
+   public int getBorrowedCount() {
+      return this._borrowed.get();
+   }
+
+   public long getBorrowCount() {
+      return this._borrows.get();
+   }
+
+   public long getBorrowTimeoutCount() {
+      return this._borrowTimeouts.get();
+   }
+
+   public long getTotalBorrowWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(this._borrowWaitNanos.get());
+   }
+
+   public long getMaxBorrowWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(this._maxBorrowWaitNanos.get());
+   }
+
+   public long getCreatedCount() {
+      return this._created.get();
+   }
+
+   public long getDestroyedCount() {
+      return this._destroyed.get();
+   }
+
+   public long getIdleEvictionCount() {
+      return this._idleEvictions.get();
+   }
+
+   public long getValidationFailureCount() {
+      return this._validationFailures.get();
+   }
+
+   /**
+    * Method to add up the statement cache hits of every connection the pool
+    * has opened so far.
+    *
+    * @return the number of statement lookups that reused a prepared statement
+    */
+   public long getStatementCacheHits() {
+      long hits = this._retiredStatementHits.get();
+      for (PooledConnection c : this._all)
+         hits += c._statements.getHits();
+      return hits;
+   }
+
+   /**
+    * Method to add up the statement cache misses of every connection the
+    * pool has opened so far.
+    *
+    * @return the number of statement lookups that had to prepare a statement
+    */
+   public long getStatementCacheMisses() {
+      long misses = this._retiredStatementMisses.get();
+      for (PooledConnection c : this._all)
+         misses += c._statements.getMisses();
+      return misses;
+   }
+
+   @Override
+   public String toString() {
+      long borrows = getBorrowCount();
+      return String.format(
+         "open=%d idle=%d borrowed=%d (min=%d max=%d) borrows=%d timeouts=%d "
+         + "avgWait=%.2fms maxWait=%dms created=%d destroyed=%d evicted=%d "
+         + "validationFailures=%d statementHits=%d statementMisses=%d",
+         getOpenCount(), getIdleCount(), getBorrowedCount(), this._minSize, this._maxSize,
+         borrows, getBorrowTimeoutCount(),
+         borrows == 0 ? 0.0 : this._borrowWaitNanos.get() / 1e6 / borrows,
+         getMaxBorrowWaitMillis(), getCreatedCount(), getDestroyedCount(),
+         getIdleEvictionCount(), getValidationFailureCount(),
+         getStatementCacheHits(), getStatementCacheMisses());
+   }
+
+   /*
+    * Checks an idle connection before it is handed out. Recently used
+    * connections without errors are trusted without a round trip.
+    **/
+   private boolean isUsable(PooledConnection c) {
+      long idleFor = System.currentTimeMillis() - c._lastUsed;
+      if (!c._suspect && idleFor < this._validateAfterMillis)
+         return true;
+      ResultSet rs = null;
+      try {
+         if (c._connection.isClosed())
+            return false;
+         rs = c._statements.prepare(VALIDATION_QUERY).executeQuery();
+         rs.next();
+         c._suspect = false;
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }finally {
+         if (rs != null) {
+            try {
+               rs.close();
+            }catch (SQLException e) {
+               // ignored.
+            }//end try
+         }//end if
+      }//end try
+   }//end isUsable
+
+   private PooledConnection open() throws SQLException {
+      PooledConnection c = new PooledConnection(
+         DriverManager.getConnection(this._url, this._user, this._passwd));
+      this._all.add(c);
+      this._created.incrementAndGet();
+      return c;
+   }//end open
+
+   private void destroy(PooledConnection c) {
+      if (!this._all.remove(c))
+         return;
+      this._retiredStatementHits.addAndGet(c._statements.getHits());
+      this._retiredStatementMisses.addAndGet(c._statements.getMisses());
+      c._statements.clear();
+      try {
+         c._connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+      this._destroyed.incrementAndGet();
+   }//end destroy
+
+   /*
+    * Closes connections that stayed idle too long, oldest first, as long as
+    * the pool stays at or above its minimum size, then tops the pool back
+    * up to the minimum.
+    **/
+   private void evictIdle() {
+      long now = System.currentTimeMillis();
+      Iterator<PooledConnection> oldestFirst = this._idle.descendingIterator();
+      while (oldestFirst.hasNext() && this._all.size() > this._minSize) {
+         PooledConnection c = oldestFirst.next();
+         if (now - c._lastUsed < this._idleTimeoutMillis)
+            break;
+         if (this._idle.removeLastOccurrence(c)) {
+            destroy(c);
+            this._idleEvictions.incrementAndGet();
+         }//end if
+      }//end while
+      try {
+         while (!this._closed && this._all.size() < this._minSize)
+            this._idle.offerLast(open());
+      }catch (SQLException e) {
+         System.err.println("Connection pool could not reopen a connection: " + e.getMessage());
+      }//end try
+   }//end evictIdle
+
+   private static void updateMax(AtomicLong max, long value) {
+      long current;
+      while (value > (current = max.get()))
+         if (max.compareAndSet(current, value))
+            return;
+   }//end updateMax
+}//end ConnectionPool
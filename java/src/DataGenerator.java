@@ -0,0 +1,537 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes a synthetic Cafe dataset of any size: users.csv,
+ * menu.csv, orders.csv, itemStatus.csv and placesOrder.csv, ';' delimited
+ * like the files BulkLoader loads.  The rows are consistent with each
+ * other: every order belongs to a generated user, every item row to a
+ * generated order and menu item, and the order total is the sum of its
+ * item prices.
+ *
+ * Orders are spread over the chosen number of days with a growth trend,
+ * quieter weekends and morning and lunch peaks.  Users place orders with a
+ * Zipf skew, so a few regulars place most of them.  Users and orders are
+ * split in shards written in parallel, each to its own files
+ * (orders.003.csv, ...); with one shard the plain names are used.  The same
+ * seed always gives the same files.
+ *
+ * Usage: java DataGenerator [--out dir] [--users n] [--orders n]
+ *        [--menu n] [--days n] [--end yyyy-MM-dd] [--max-items n]
+ *        [--skew s] [--shards n] [--threads n] [--seed n]
+ */
+public class DataGenerator {
+
+   public static final String DEFAULT_OUT = "data/generated";
+   public static final char DELIMITER = ';';
+
+   private static final int WRITE_BUFFER_SIZE = 1 << 20;
+   private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+   // relative number of orders per hour of the day, the cafe opens at 6
+   private static final int[] HOUR_WEIGHTS = {
+      0, 0, 0, 0, 0, 0, 3, 9, 12, 9, 6, 8, 12, 10, 5, 4, 5, 6, 5, 4, 3, 2, 0, 0 };
+
+   private static final String[] MENU_TYPES = { "Drinks", "Sweets", "Soup", "Sandwiches", "Salads" };
+   private static final String[][] MENU_NAMES = {
+      { "Coffee", "Latte", "Cappuccino", "Mocha", "Espresso", "Tea", "Chai", "Lemonade", "Smoothie", "Cocoa" },
+      { "Donut", "Muffin", "Croissant", "Scone", "Brownie", "Cookie", "Cheesecake", "Bagel", "Danish", "Pie" },
+      { "Tomato Soup", "Chicken Soup", "Chili", "Chowder", "Minestrone", "Lentil Soup" },
+      { "Club", "BLT", "Reuben", "Panini", "Wrap", "Grilled Cheese", "Tuna Melt", "Veggie Sub" },
+      { "Caesar", "Cobb", "Greek Salad", "Garden Salad", "Fruit Cup", "Pasta Salad" } };
+
+   private static final String[] STATUSES = { Cafe.ITEM_STATUS_NEW, "Started", "Finished" };
+
+   private File _out = new File(DEFAULT_OUT);
+   private int _users = 100000;
+   private long _orders = 1000000;
+   private int _menuSize = 50;
+   private int _days = 365;
+   private Date _end = today();
+   private int _maxItems = 5;
+   private double _skew = 0.9;
+   private int _shards = Runtime.getRuntime().availableProcessors();
+   private int _threads = Runtime.getRuntime().availableProcessors();
+   private long _seed = 42;
+
+   // filled in by generate
+   private String[] _itemNames;
+   private int[] _itemCents;
+   private double[] _dayCdf;
+   private String[] _dayPrefix;
+   private int[] _hourCdf;
+
+   public static void main(String[] args) {
+      DataGenerator generator = new DataGenerator();
+      try {
+         generator.parseArgs(args);
+      }catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         System.err.println("Usage: java DataGenerator [--out dir] [--users n] [--orders n]"
+                            + " [--menu n] [--days n] [--end yyyy-MM-dd] [--max-items n]"
+                            + " [--skew s] [--shards n] [--threads n] [--seed n]");
+         System.exit(1);
+      }//end try
+      try {
+         generator.generate();
+      }catch (Exception e) {
+         System.err.println("Generation failed: " + e);
+         System.exit(1);
+      }//end try
+   }//end main
+
+   private void parseArgs(String[] args) {
+      for (int i = 0; i < args.length; ++i) {
+         String option = args[i];
+         if (i + 1 >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+         String value = args[++i];
+         try {
+            if (option.equals("--out"))
+               this._out = new File(value);
+            else if (option.equals("--users"))
+               this._users = positive(option, Integer.parseInt(value));
+            else if (option.equals("--orders"))
+               this._orders = Long.parseLong(value);
+            else if (option.equals("--menu"))
+               this._menuSize = positive(option, Integer.parseInt(value));
+            else if (option.equals("--days"))
+               this._days = positive(option, Integer.parseInt(value));
+            else if (option.equals("--end"))
+               this._end = new SimpleDateFormat("yyyy-MM-dd").parse(value);
+            else if (option.equals("--max-items"))
+               this._maxItems = positive(option, Integer.parseInt(value));
+            else if (option.equals("--skew"))
+               this._skew = Double.parseDouble(value);
+            else if (option.equals("--shards"))
+               this._shards = positive(option, Integer.parseInt(value));
+            else if (option.equals("--threads"))
+               this._threads = positive(option, Integer.parseInt(value));
+            else if (option.equals("--seed"))
+               this._seed = Long.parseLong(value);
+            else
+               throw new IllegalArgumentException("Unknown option " + option);
+         }catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+         }catch (ParseException e) {
+            throw new IllegalArgumentException("Bad date for " + option + ": " + value);
+         }//end try
+      }//end for
+      if (this._orders < 0 || this._orders > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("--orders must be between 0 and " + Integer.MAX_VALUE);
+      if (this._skew <= 0)
+         throw new IllegalArgumentException("--skew must be positive");
+      this._maxItems = Math.min(this._maxItems, this._menuSize);
+   }//end parseArgs
+
+   private static int positive(String option, int value) {
+      if (value < 1)
+         throw new IllegalArgumentException(option + " must be positive");
+      return value;
+   }
+
+   /**
+    * Method to write all the files.
+    *
+    * @throws Exception when a file cannot be written
+    */
+   public void generate() throws Exception {
+      if (!this._out.isDirectory() && !this._out.mkdirs())
+         throw new IOException("Cannot create " + this._out);
+      long start = System.nanoTime();
+      buildMenu();
+      buildCalendar();
+      writeMenu();
+
+      List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+      for (int s = 0; s < this._shards; ++s) {
+         final int shard = s;
+         final long userLo = (long) this._users * s / this._shards;
+         final long userHi = (long) this._users * (s + 1) / this._shards;
+         final long orderLo = this._orders * s / this._shards;
+         final long orderHi = this._orders * (s + 1) / this._shards;
+         tasks.add(new Callable<Long>() {
+            public Long call() throws IOException {
+               return writeUsers(shard, (int) userLo, (int) userHi);
+            }
+         });
+         tasks.add(new Callable<Long>() {
+            public Long call() throws IOException {
+               return writeOrders(shard, orderLo, orderHi);
+            }
+         });
+      }//end for
+
+      ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+      long rows = this._menuSize;
+      try {
+         for (Future<Long> f : pool.invokeAll(tasks))
+            rows += f.get();
+      }finally {
+         pool.shutdown();
+      }//end try
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Wrote %d users, %d menu items and %d orders (%d rows) to %s in %.1f s"
+                        + " (%.0f rows/s)%n", this._users, this._menuSize, this._orders, rows,
+                        this._out, seconds, rows / Math.max(seconds, 1e-9));
+      System.out.println("After loading, move the order id sequence past the generated ids:");
+      System.out.println("   SELECT setval('" + OrderIdAllocator.ORDER_SEQUENCE + "', "
+                         + Math.max(1, this._orders) + ");");
+   }//end generate
+
+   /*
+    * Item names are drawn from the name lists round robin over the types;
+    * once a list runs out the names get a number.
+    **/
+   private void buildMenu() {
+      Random random = new Random(this._seed);
+      this._itemNames = new String[this._menuSize];
+      this._itemCents = new int[this._menuSize];
+      for (int i = 0; i < this._menuSize; ++i) {
+         String[] names = MENU_NAMES[i % MENU_TYPES.length];
+         int n = i / MENU_TYPES.length;
+         String name = names[n % names.length];
+         if (n >= names.length)
+            name += " " + (n / names.length + 1);
+         this._itemNames[i] = name;
+         // 1.49 to 9.99, ending in 9
+         this._itemCents[i] = 149 + 10 * random.nextInt(86);
+      }//end for
+   }//end buildMenu
+
+   /*
+    * Precomputes the share of orders up to each day and the text of every
+    * date, so that shards only need array lookups.
+    **/
+   private void buildCalendar() {
+      Calendar cal = Calendar.getInstance();
+      cal.setTime(this._end);
+      cal.add(Calendar.DAY_OF_MONTH, -this._days);
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd ");
+
+      this._dayCdf = new double[this._days];
+      // one extra day for item updates after the last order
+      this._dayPrefix = new String[this._days + 1];
+      double total = 0;
+      for (int d = 0; d <= this._days; ++d) {
+         this._dayPrefix[d] = format.format(cal.getTime());
+         if (d < this._days) {
+            int weekday = cal.get(Calendar.DAY_OF_WEEK);
+            double weight = 1.0 + (double) d / this._days;  // business doubles over the span
+            if (weekday == Calendar.SATURDAY || weekday == Calendar.SUNDAY)
+               weight *= 0.7;
+            total += weight;
+            this._dayCdf[d] = total;
+         }//end if
+         cal.add(Calendar.DAY_OF_MONTH, 1);
+      }//end for
+      for (int d = 0; d < this._days; ++d)
+         this._dayCdf[d] /= total;
+      this._dayCdf[this._days - 1] = 1.0;
+
+      this._hourCdf = new int[HOUR_WEIGHTS.length];
+      int sum = 0;
+      for (int h = 0; h < HOUR_WEIGHTS.length; ++h) {
+         sum += HOUR_WEIGHTS[h];
+         this._hourCdf[h] = sum;
+      }//end for
+   }//end buildCalendar
+
+   private void writeMenu() throws IOException {
+      Writer out = open("menu", -1);
+      StringBuilder row = new StringBuilder(256);
+      try {
+         for (int i = 0; i < this._menuSize; ++i) {
+            row.setLength(0);
+            row.append(this._itemNames[i]).append(DELIMITER)
+               .append(MENU_TYPES[i % MENU_TYPES.length]).append(DELIMITER);
+            appendCents(row, this._itemCents[i]);
+            row.append(DELIMITER).append("House ").append(this._itemNames[i].toLowerCase())
+               .append(DELIMITER).append("https://example.com/menu/").append(i).append(".png\n");
+            out.append(row);
+         }//end for
+      }finally {
+         out.close();
+      }//end try
+   }//end writeMenu
+
+   /*
+    * User 0 is the Admin manager the other tools expect; about one user in
+    * a thousand is a manager and one in a hundred an employee.
+    **/
+   private long writeUsers(int shard, int lo, int hi) throws IOException {
+      Random random = new Random(this._seed * 31 + 2 * shard);
+      Writer out = open("users", shard);
+      StringBuilder row = new StringBuilder(256);
+      try {
+         for (int i = lo; i < hi; ++i) {
+            row.setLength(0);
+            row.append(login(i)).append(DELIMITER);
+            // a unique 10 digit number
+            long phone = 2000000000L + i;
+            row.append("+1(").append(phone / 10000000).append(')');
+            pad(row, (int) (phone / 10000 % 1000), 3);
+            row.append('-');
+            pad(row, (int) (phone % 10000), 4);
+            row.append(DELIMITER).append(i == 0 ? "admin" : "pw" + Integer.toString(i, 36))
+               .append(DELIMITER);
+            int favourites = Math.min(random.nextInt(3), this._menuSize);
+            int item = random.nextInt(this._menuSize);
+            for (int f = 0; f < favourites; ++f) {
+               if (f > 0) {
+                  row.append(',');
+                  item = (item + 1 + random.nextInt(this._menuSize - 1)) % this._menuSize;
+               }//end if
+               row.append(this._itemNames[item]);
+            }//end for
+            row.append(DELIMITER);
+            if (i == 0 || i % 1000 == 1)
+               row.append("Manager");
+            else if (i % 100 == 2)
+               row.append("Employee");
+            else
+               row.append("Customer");
+            row.append('\n');
+            out.append(row);
+         }//end for
+      }finally {
+         out.close();
+      }//end try
+      return hi - lo;
+   }//end writeUsers
+
+   private static String login(int user) {
+      return user == 0 ? "Admin" : "user" + user;
+   }
+
+   /*
+    * Writes the orders with ids lo+1 .. hi and their item rows.  Ids follow
+    * time: order i falls on the day where the day share passes i/orders.
+    **/
+   private long writeOrders(int shard, long lo, long hi) throws IOException {
+      Random random = new Random(this._seed * 31 + 2 * shard + 1);
+      ZipfSampler users = new ZipfSampler(this._users, this._skew, random);
+      ZipfSampler items = new ZipfSampler(this._menuSize, 1.0, random);
+      int hourTotal = this._hourCdf[this._hourCdf.length - 1];
+      // "recent" as Cafe sees it: the last day of the span
+      int lastDay = this._days - 1;
+
+      Writer orders = open("orders", shard);
+      Writer itemStatus = open("itemStatus", shard);
+      Writer placesOrder = open("placesOrder", shard);
+      StringBuilder orderRow = new StringBuilder(128);
+      StringBuilder statusRows = new StringBuilder(512);
+      StringBuilder placesRows = new StringBuilder(256);
+      int[] picked = new int[this._maxItems];
+      long rows = 0;
+      int day = firstDay(lo);
+      try {
+         for (long i = lo; i < hi; ++i) {
+            while (day < lastDay && this._dayCdf[day] < (i + 0.5) / this._orders)
+               ++day;
+            int orderid = (int) (i + 1);
+
+            int hour = 0;
+            int h = random.nextInt(hourTotal);
+            while (this._hourCdf[hour] <= h)
+               ++hour;
+            int second = hour * 3600 + random.nextInt(3600);
+
+            // users are ranked by how often they order; the rank is scattered
+            // over the logins so the regulars are not simply the first users
+            long rank = users.sample() - 1;
+            int user = (int) ((rank * 2654435761L + 1) % this._users);
+
+            int count = 1;
+            while (count < this._maxItems && random.nextDouble() < 0.45)
+               ++count;
+            int totalCents = 0;
+            for (int k = 0; k < count; ++k) {
+               int item;
+               do {
+                  item = items.sample() - 1;
+               } while (contains(picked, k, item));
+               picked[k] = item;
+               totalCents += this._itemCents[item];
+            }//end for
+
+            boolean recent = day >= lastDay;
+            boolean paid = recent ? random.nextBoolean() : random.nextInt(100) < 98;
+
+            orderRow.setLength(0);
+            orderRow.append(orderid).append(DELIMITER).append(login(user)).append(DELIMITER)
+                    .append(paid ? 't' : 'f').append(DELIMITER);
+            appendTimestamp(orderRow, day, second);
+            orderRow.append(DELIMITER);
+            appendCents(orderRow, totalCents);
+            orderRow.append('\n');
+            orders.append(orderRow);
+
+            statusRows.setLength(0);
+            placesRows.setLength(0);
+            for (int k = 0; k < count; ++k) {
+               String itemName = this._itemNames[picked[k]];
+               int status = recent ? random.nextInt(STATUSES.length) : STATUSES.length - 1;
+               statusRows.append(orderid).append(DELIMITER).append(itemName).append(DELIMITER);
+               appendTimestamp(statusRows, day,
+                               second + (status == 0 ? 0 : 60 + random.nextInt(20 * 60)));
+               statusRows.append(DELIMITER).append(STATUSES[status]).append(DELIMITER).append('\n');
+               placesRows.append(orderid).append(DELIMITER).append(itemName).append('\n');
+            }//end for
+            itemStatus.append(statusRows);
+            placesOrder.append(placesRows);
+            rows += 1 + 2 * count;
+         }//end for
+      }finally {
+         orders.close();
+         itemStatus.close();
+         placesOrder.close();
+      }//end try
+      System.out.println("orders shard " + (shard + 1) + "/" + this._shards + " done ("
+                         + (hi - lo) + " orders)");
+      return rows;
+   }//end writeOrders
+
+   private int firstDay(long order) {
+      double share = (order + 0.5) / Math.max(1, this._orders);
+      int lo = 0;
+      int hi = this._days - 1;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (this._dayCdf[mid] < share)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }//end while
+      return lo;
+   }//end firstDay
+
+   private static boolean contains(int[] values, int count, int value) {
+      for (int i = 0; i < count; ++i)
+         if (values[i] == value)
+            return true;
+      return false;
+   }
+
+   private void appendTimestamp(StringBuilder sb, int day, int second) {
+      sb.append(this._dayPrefix[day + second / SECONDS_PER_DAY]);
+      second %= SECONDS_PER_DAY;
+      pad(sb, second / 3600, 2);
+      sb.append(':');
+      pad(sb, second / 60 % 60, 2);
+      sb.append(':');
+      pad(sb, second % 60, 2);
+   }//end appendTimestamp
+
+   private static void appendCents(StringBuilder sb, int cents) {
+      sb.append(cents / 100).append('.');
+      pad(sb, cents % 100, 2);
+   }
+
+   private static void pad(StringBuilder sb, int value, int digits) {
+      for (int limit = 10; digits > 1; limit *= 10, --digits)
+         if (value < limit)
+            sb.append('0');
+      sb.append(value);
+   }//end pad
+
+   private Writer open(String table, int shard) throws IOException {
+      String name = shard < 0 || this._shards == 1 ? table + ".csv"
+                                                    : String.format("%s.%03d.csv", table, shard);
+      return new BufferedWriter(new OutputStreamWriter(
+         new FileOutputStream(new File(this._out, name)), "UTF-8"), WRITE_BUFFER_SIZE);
+   }//end open
+
+   private static Date today() {
+      Calendar cal = Calendar.getInstance();
+      cal.set(Calendar.HOUR_OF_DAY, 0);
+      cal.set(Calendar.MINUTE, 0);
+      cal.set(Calendar.SECOND, 0);
+      cal.set(Calendar.MILLISECOND, 0);
+      cal.add(Calendar.DAY_OF_MONTH, 1);
+      return cal.getTime();
+   }//end today
+
+   /*
+    * Draws ranks 1..n with probability proportional to 1/rank^s in constant
+    * time and memory, by rejection-inversion (Hormann and Derflinger, 1996).
+    **/
+   private static class ZipfSampler {
+      private final int _n;
+      private final double _exponent;
+      private final Random _random;
+      private final double _hIntegralX1;
+      private final double _hIntegralN;
+      private final double _s;
+
+      ZipfSampler(int n, double exponent, Random random) {
+         this._n = n;
+         this._exponent = exponent;
+         this._random = random;
+         this._hIntegralX1 = hIntegral(1.5) - 1.0;
+         this._hIntegralN = hIntegral(n + 0.5);
+         this._s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+      }
+
+      int sample() {
+         while (true) {
+            double u = this._hIntegralN
+                       + this._random.nextDouble() * (this._hIntegralX1 - this._hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1)
+               k = 1;
+            else if (k > this._n)
+               k = this._n;
+            if (k - x <= this._s || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }//end while
+      }
+
+      private double hIntegral(double x) {
+         double logX = Math.log(x);
+         return helper2((1.0 - this._exponent) * logX) * logX;
+      }
+
+      private double h(double x) {
+         return Math.exp(-this._exponent * Math.log(x));
+      }
+
+      private double hIntegralInverse(double x) {
+         double t = x * (1.0 - this._exponent);
+         if (t < -1.0)
+            t = -1.0;
+         return Math.exp(helper1(t) * x);
+      }
+
+      // log(1 + x) / x, accurate near 0
+      private static double helper1(double x) {
+         if (Math.abs(x) > 1e-8)
+            return Math.log1p(x) / x;
+         return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+      }
+
+      // (exp(x) - 1) / x, accurate near 0
+      private static double helper2(double x) {
+         if (Math.abs(x) > 1e-8)
+            return Math.expm1(x) / x;
+         return 1.0 + x * 0.5 * (1.0 + x * 1.0 / 3.0 * (1.0 + 0.25 * x));
+      }
+   }//end ZipfSampler
+}//end DataGenerator
@@ -0,0 +1,158 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets, the way HdrHistogram
+ * does: every power of two is split into SUB_BUCKETS equal buckets, so a
+ * recorded value is known to within about 3% whatever its size.  Memory is
+ * fixed (about 10KB) and recording is a few atomic increments, with no
+ * locking and no allocation, so it can be done on every query.
+ *
+ * Values are nanoseconds; values above MAX_VALUE (about 2.4 hours) are
+ * counted as MAX_VALUE.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+   public static final long MAX_VALUE = (1L << 43) - 1;
+
+   private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Method to count one value.
+    *
+    * @param nanos the latency in nanoseconds, negative values count as 0
+    */
+   public void record(long nanos) {
+      long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+      this._counts.incrementAndGet(index(value));
+      this._total.incrementAndGet();
+      this._sum.addAndGet(value);
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end record
+
+   public long getCount() {
+      return this._total.get();
+   }
+
+   /**
+    * Method to copy the counts.  Values recorded while copying may or may
+    * not be included.
+    *
+    * @return a snapshot that does not change any more
+    */
+   public Snapshot snapshot() {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         counts[i] = this._counts.get(i);
+         total += counts[i];
+      }//end for
+      return new Snapshot(counts, total, this._sum.get(), this._max.get());
+   }//end snapshot
+
+   /*
+    * Values below SUB_BUCKETS have a bucket each; above that, bucket
+    * (shift + 1) * SUB_BUCKETS + k holds the values whose top SUB_BITS + 1
+    * bits are SUB_BUCKETS + k.
+    **/
+   private static int index(long value) {
+      if (value < SUB_BUCKETS)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+   }//end index
+
+   // the largest value that falls in a bucket
+   private static long highestValue(int index) {
+      if (index < SUB_BUCKETS)
+         return index;
+      int shift = index / SUB_BUCKETS - 1;
+      long top = SUB_BUCKETS + index % SUB_BUCKETS;
+      return ((top + 1) << shift) - 1;
+   }//end highestValue
+
+   /**
+    * The counts of a histogram at one point in time.
+    */
+   public static class Snapshot {
+      private final long[] _counts;
+      private final long _total;
+      private final long _sum;
+      private final long _max;
+
+      private Snapshot(long[] counts, long total, long sum, long max) {
+         this._counts = counts;
+         this._total = total;
+         this._sum = sum;
+         this._max = max;
+      }
+
+      public long getCount() {
+         return this._total;
+      }
+
+      public long getMaxNanos() {
+         return this._max;
+      }
+
+      public long getTotalNanos() {
+         return this._sum;
+      }
+
+      public double getMeanNanos() {
+         return this._total == 0 ? 0.0 : (double) this._sum / this._total;
+      }
+
+      /**
+       * Method to estimate a percentile.
+       *
+       * @param p the percentile as a fraction, e.g. 0.99
+       * @return the latency in nanoseconds that p of the values do not
+       *         exceed, within the bucket precision; 0 without values
+       */
+      public long getPercentileNanos(double p) {
+         if (this._total == 0)
+            return 0;
+         long rank = Math.max(1, (long) Math.ceil(p * this._total));
+         long seen = 0;
+         for (int i = 0; i < this._counts.length; ++i) {
+            seen += this._counts[i];
+            if (seen >= rank)
+               return Math.min(highestValue(i), this._max);
+         }//end for
+         return this._max;
+      }//end getPercentileNanos
+
+      /**
+       * Method to take the values recorded between an earlier snapshot of
+       * the same histogram and this one, e.g. for per-interval reports.
+       * The maximum is known only to within the bucket precision.
+       *
+       * @param earlier the earlier snapshot
+       * @return the difference
+       */
+      public Snapshot minus(Snapshot earlier) {
+         long[] counts = new long[this._counts.length];
+         long total = 0;
+         long max = 0;
+         for (int i = 0; i < counts.length; ++i) {
+            counts[i] = Math.max(0, this._counts[i] - earlier._counts[i]);
+            total += counts[i];
+            if (counts[i] > 0)
+               max = highestValue(i);
+         }//end for
+         return new Snapshot(counts, total, this._sum - earlier._sum,
+                             Math.min(max, this._max));
+      }//end minus
+   }//end Snapshot
+}//end LatencyHistogram
@@ -0,0 +1,124 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the Menu table with hash indexes by item name
+ * and by type, and a MenuSearchIndex for typeahead and typo tolerant
+ * searches.  The menu is small and read on every menu view, so Cafe
+ * loads it once and serves views and searches from memory; when a manager
+ * changes an item Cafe loads a new snapshot and swaps it in, so readers
+ * always see either the old or the new menu as a whole.
+ *
+ * Changes made by other processes are only seen after the next reload.
+ */
+public class MenuCatalog {
+
+   // column names of the Menu table, in table order
+   public static final String[] COLUMNS =
+      { "itemname", "type", "price", "description", "imageurl" };
+
+   private static final String LOAD_QUERY =
+      "SELECT itemName, type, price, description, imageURL FROM Menu";
+
+   private final List<MenuItem> _items;
+   private final Map<String, MenuItem> _byName;
+   private final Map<String, List<MenuItem>> _byType;
+   private final MenuSearchIndex _search;
+
+   /**
+    * Creates a new catalog over the given items
+    *
+    * @param items the menu items, in display order
+    */
+   public MenuCatalog(List<MenuItem> items) {
+      Map<String, MenuItem> byName = new HashMap<String, MenuItem>(items.size() * 2);
+      Map<String, List<MenuItem>> byType = new HashMap<String, List<MenuItem>>();
+      for (MenuItem item : items) {
+         byName.put(item.getItemName(), item);
+         List<MenuItem> ofType = byType.get(item.getType());
+         if (ofType == null) {
+            ofType = new ArrayList<MenuItem>();
+            byType.put(item.getType(), ofType);
+         }//end if
+         ofType.add(item);
+      }//end for
+      for (Map.Entry<String, List<MenuItem>> e : byType.entrySet())
+         e.setValue(Collections.unmodifiableList(e.getValue()));
+
+      this._items = Collections.unmodifiableList(new ArrayList<MenuItem>(items));
+      this._byName = byName;
+      this._byType = byType;
+      this._search = new MenuSearchIndex(this._items);
+   }//end MenuCatalog
+
+   /**
+    * Method to read the whole Menu table into a new catalog.
+    *
+    * @param esql the database to read from
+    * @return the catalog
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static MenuCatalog load(Cafe esql) throws SQLException {
+      final List<MenuItem> items = new ArrayList<MenuItem>();
+      esql.executeQueryStreaming(LOAD_QUERY, Cafe.DEFAULT_FETCH_SIZE, new RowVisitor() {
+         public void start(ResultSetMetaData rsmd) {
+         }
+
+         public boolean visit(ResultSet rs) throws SQLException {
+            items.add(new MenuItem(TableRenderer.trimPadding(rs.getString(1)),
+                                   TableRenderer.trimPadding(rs.getString(2)),
+                                   rs.getFloat(3),
+                                   TableRenderer.trimPadding(rs.getString(4)),
+                                   TableRenderer.trimPadding(rs.getString(5))));
+            return true;
+         }
+      });
+      return new MenuCatalog(items);
+   }//end load
+
+   /**
+    * @return every item, in the order they were loaded
+    */
+   public List<MenuItem> getItems() {
+      return this._items;
+   }
+
+   /**
+    * @param itemName the item name, without padding
+    * @return the item, or null if there is no item of that name
+    */
+   public MenuItem findByName(String itemName) {
+      return itemName == null ? null : this._byName.get(itemName.trim());
+   }
+
+   /**
+    * @param type the item type, without padding
+    * @return the items of that type, empty if there are none
+    */
+   public List<MenuItem> findByType(String type) {
+      List<MenuItem> items = type == null ? null : this._byType.get(type.trim());
+      return items == null ? Collections.<MenuItem>emptyList() : items;
+   }
+
+   /**
+    * Method to find items by the beginnings of words of their name, type
+    * or description, ignoring case and a few typos.
+    *
+    * @param query what has been typed so far
+    * @param limit the most items returned
+    * @return the matching items, best first
+    */
+   public List<MenuItem> search(String query, int limit) {
+      return this._search.search(query, limit);
+   }
+
+   public int size() {
+      return this._items.size();
+   }
+}//end MenuCatalog
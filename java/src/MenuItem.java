@@ -0,0 +1,57 @@
+/**
+ * One row of the Menu table.  Instances are immutable; the char(n) padding
+ * of the text columns is trimmed when they are loaded.
+ */
+public class MenuItem {
+
+   private final String _itemName;
+   private final String _type;
+   private final float _price;
+   private final String _description;
+   private final String _imageURL;
+
+   public MenuItem(String itemName, String type, float price, String description,
+                   String imageURL) {
+      this._itemName = itemName;
+      this._type = type;
+      this._price = price;
+      this._description = description;
+      this._imageURL = imageURL;
+   }
+
+   public String getItemName() {
+      return this._itemName;
+   }
+
+   public String getType() {
+      return this._type;
+   }
+
+   public float getPrice() {
+      return this._price;
+   }
+
+   public String getDescription() {
+      return this._description;
+   }
+
+   public String getImageURL() {
+      return this._imageURL;
+   }
+
+   /**
+    * Method to return the item as a row in the column order of the Menu
+    * table.
+    *
+    * @return the column values as text
+    */
+   public String[] toRow() {
+      return new String[] { this._itemName, this._type, Float.toString(this._price),
+                            this._description, this._imageURL };
+   }
+
+   @Override
+   public String toString() {
+      return this._itemName;
+   }
+}//end MenuItem
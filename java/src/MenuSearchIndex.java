@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A typeahead index over the words of the menu: item names, types and
+ * description keywords, lower cased, in a trie.  A query matches the items
+ * that have, for every query word, a word starting with it, allowing a few
+ * typos: one edit for words of four to seven letters and two for longer
+ * ones.  The trie is walked with one Levenshtein row per node, and a
+ * branch is left as soon as no prefix below it can come within the bound,
+ * so a lookup visits a small part of the trie whatever the menu size.
+ *
+ * Matches are ranked by where the word was found (name, then type, then
+ * description), whole words before prefixes, and fewer typos first.
+ * Instances are immutable; MenuCatalog builds one per menu snapshot.
+ */
+public class MenuSearchIndex {
+
+   public static final int DEFAULT_LIMIT = 10;
+
+   // where a word was found, as the weight of a match on it
+   private static final int DESCRIPTION = 1;
+   private static final int TYPE = 2;
+   private static final int NAME = 4;
+
+   // words shorter than this in the query must be typed exactly
+   private static final int ONE_TYPO_LENGTH = 4;
+   private static final int TWO_TYPOS_LENGTH = 8;
+
+   // description words shorter than this are not indexed
+   private static final int MIN_KEYWORD_LENGTH = 3;
+
+   /*
+    * A trie node.  Children are kept in sorted arrays, which are smaller
+    * than maps of boxed characters and as fast for the few children a node
+    * of a word trie has.
+    **/
+   private static class Node {
+      private char[] _keys = new char[0];
+      private Node[] _children = new Node[0];
+      // the items with a word ending here, and where the word was found
+      private int[] _items = new int[0];
+      private int[] _fields = new int[0];
+
+      Node addChild(char key) {
+         int i = Arrays.binarySearch(this._keys, key);
+         if (i >= 0)
+            return this._children[i];
+         i = -i - 1;
+         Node child = new Node();
+         this._keys = insert(this._keys, i, key);
+         Node[] children = new Node[this._children.length + 1];
+         System.arraycopy(this._children, 0, children, 0, i);
+         children[i] = child;
+         System.arraycopy(this._children, i, children, i + 1, this._children.length - i);
+         this._children = children;
+         return child;
+      }
+
+      void addItem(int item, int field) {
+         int n = this._items.length;
+         if (n > 0 && this._items[n - 1] == item) {
+            // items are added in order, so a repeat is the last one
+            this._fields[n - 1] |= field;
+            return;
+         }//end if
+         this._items = Arrays.copyOf(this._items, n + 1);
+         this._fields = Arrays.copyOf(this._fields, n + 1);
+         this._items[n] = item;
+         this._fields[n] = field;
+      }
+
+      private static char[] insert(char[] keys, int i, char key) {
+         char[] result = new char[keys.length + 1];
+         System.arraycopy(keys, 0, result, 0, i);
+         result[i] = key;
+         System.arraycopy(keys, i, result, i + 1, keys.length - i);
+         return result;
+      }
+   }//end Node
+
+   private final List<MenuItem> _items;
+   private final Node _root = new Node();
+
+   /**
+    * Creates a new index over the given items
+    *
+    * @param items the menu items
+    */
+   public MenuSearchIndex(List<MenuItem> items) {
+      this._items = items;
+      for (int i = 0; i < items.size(); ++i) {
+         MenuItem item = items.get(i);
+         add(item.getItemName(), i, NAME, 1);
+         add(item.getType(), i, TYPE, 1);
+         add(item.getDescription(), i, DESCRIPTION, MIN_KEYWORD_LENGTH);
+      }//end for
+   }//end MenuSearchIndex
+
+   /**
+    * Method to find the items matching what has been typed so far.
+    *
+    * @param query one or more words, or beginnings of words
+    * @param limit the most items returned
+    * @return the matching items, best first; empty for a blank query
+    */
+   public List<MenuItem> search(String query, int limit) {
+      List<String> words = words(query, 1);
+      if (words.isEmpty() || limit < 1)
+         return Collections.<MenuItem>emptyList();
+
+      // item -> score so far; an item missing a query word drops out
+      Map<Integer, Integer> scores = null;
+      for (String word : words) {
+         Map<Integer, Integer> matches = new HashMap<Integer, Integer>();
+         int[] row = new int[word.length() + 1];
+         for (int i = 0; i < row.length; ++i)
+            row[i] = i;
+         walk(this._root, word, row, maxTypos(word.length()), matches);
+         if (scores == null) {
+            scores = matches;
+         }else {
+            Map<Integer, Integer> both = new HashMap<Integer, Integer>();
+            for (Map.Entry<Integer, Integer> e : matches.entrySet()) {
+               Integer score = scores.get(e.getKey());
+               if (score != null)
+                  both.put(e.getKey(), score + e.getValue());
+            }//end for
+            scores = both;
+         }//end if
+         if (scores.isEmpty())
+            return Collections.<MenuItem>emptyList();
+      }//end for
+
+      final Map<Integer, Integer> ranked = scores;
+      List<Integer> found = new ArrayList<Integer>(ranked.keySet());
+      Collections.sort(found, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            int byScore = ranked.get(b).compareTo(ranked.get(a));
+            if (byScore != 0)
+               return byScore;
+            return MenuSearchIndex.this._items.get(a).getItemName()
+               .compareToIgnoreCase(MenuSearchIndex.this._items.get(b).getItemName());
+         }
+      });
+      List<MenuItem> result = new ArrayList<MenuItem>(Math.min(limit, found.size()));
+      for (int i = 0; i < found.size() && i < limit; ++i)
+         result.add(this._items.get(found.get(i)));
+      return result;
+   }//end search
+
+   /*
+    * Steps through the trie with the Levenshtein row of the word against
+    * the path to each node.  Where the whole word is within the bound of
+    * the path, every word below the node starts with it, give or take the
+    * typos, and matches; below it only paths with fewer typos are walked.
+    **/
+   private void walk(Node node, String word, int[] row, int maxTypos,
+                     Map<Integer, Integer> matches) {
+      int typos = row[word.length()];
+      int bound = maxTypos;
+      if (typos <= maxTypos) {
+         collect(node, typos, true, matches);
+         bound = typos - 1;
+      }//end if
+      for (int k = 0; k < node._keys.length; ++k) {
+         char key = node._keys[k];
+         int[] next = new int[row.length];
+         next[0] = row[0] + 1;
+         int best = next[0];
+         for (int i = 1; i < row.length; ++i) {
+            int cost = word.charAt(i - 1) == key ? 0 : 1;
+            next[i] = Math.min(Math.min(next[i - 1] + 1, row[i] + 1), row[i - 1] + cost);
+            best = Math.min(best, next[i]);
+         }//end for
+         // no longer path can get back within the bound
+         if (best <= bound)
+            walk(node._children[k], word, next, maxTypos, matches);
+      }//end for
+   }//end walk
+
+   /*
+    * Scores the items of the words in the subtree of a node.  Only the
+    * node itself is a whole word match.
+    **/
+   private static void collect(Node node, int typos, boolean whole,
+                               Map<Integer, Integer> matches) {
+      for (int i = 0; i < node._items.length; ++i) {
+         int field = node._fields[i];
+         int weight = (field & NAME) != 0 ? NAME : (field & TYPE) != 0 ? TYPE : DESCRIPTION;
+         // whole words before prefixes, each typo costs more than either
+         int score = weight * 4 + (whole ? 2 : 0) - typos * 32;
+         Integer old = matches.get(node._items[i]);
+         if (old == null || old < score)
+            matches.put(node._items[i], score);
+      }//end for
+      for (Node child : node._children)
+         collect(child, typos, false, matches);
+   }//end collect
+
+   private void add(String text, int item, int field, int minLength) {
+      for (String word : words(text, minLength)) {
+         Node node = this._root;
+         for (int i = 0; i < word.length(); ++i)
+            node = node.addChild(word.charAt(i));
+         node.addItem(item, field);
+      }//end for
+   }//end add
+
+   /*
+    * Splits text into lower case words of letters and digits.
+    **/
+   private static List<String> words(String text, int minLength) {
+      List<String> words = new ArrayList<String>();
+      if (text == null)
+         return words;
+      String lower = text.toLowerCase(Locale.ROOT);
+      int start = -1;
+      for (int i = 0; i <= lower.length(); ++i) {
+         boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+         if (inWord && start < 0) {
+            start = i;
+         }else if (!inWord && start >= 0) {
+            if (i - start >= minLength)
+               words.add(lower.substring(start, i));
+            start = -1;
+         }//end if
+      }//end for
+      return words;
+   }//end words
+
+   private static int maxTypos(int length) {
+      return length >= TWO_TYPOS_LENGTH ? 2 : length >= ONE_TYPO_LENGTH ? 1 : 0;
+   }
+}//end MenuSearchIndex
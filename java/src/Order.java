@@ -0,0 +1,58 @@
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An order as placed through Cafe.placeOrder: the Orders row and the menu
+ * items it was placed with.  Instances are immutable.
+ */
+public class Order {
+
+   private final int _orderid;
+   private final String _login;
+   private final boolean _paid;
+   private final Timestamp _timeStampRecieved;
+   private final float _total;
+   private final List<MenuItem> _items;
+
+   public Order(int orderid, String login, boolean paid, Timestamp timeStampRecieved,
+                float total, List<MenuItem> items) {
+      this._orderid = orderid;
+      this._login = login;
+      this._paid = paid;
+      this._timeStampRecieved = timeStampRecieved;
+      this._total = total;
+      this._items = Collections.unmodifiableList(items);
+   }
+
+   public int getOrderid() {
+      return this._orderid;
+   }
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public boolean isPaid() {
+      return this._paid;
+   }
+
+   public Timestamp getTimeStampRecieved() {
+      return this._timeStampRecieved;
+   }
+
+   public float getTotal() {
+      return this._total;
+   }
+
+   public List<MenuItem> getItems() {
+      return this._items;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("Order %d for %s: %d item(s), total %.2f, %s", this._orderid,
+                           this._login, this._items.size(), this._total,
+                           this._paid ? "paid" : "unpaid");
+   }
+}//end Order
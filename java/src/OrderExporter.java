@@ -0,0 +1,356 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class exports the orders of a date range, and their ItemStatus
+ * rows, to files for accounting: a pair of files per day,
+ * orders.&lt;yyyy-mm-dd&gt; and itemStatus.&lt;yyyy-mm-dd&gt;, either ';'
+ * delimited rows in COPY text format (.csv, \N for NULL, the format
+ * BulkLoader reads) or ColumnarFile files (.ccol) with the logins and
+ * item names dictionary encoded.
+ *
+ * Every day is exported on a connection of its own, several days at
+ * once.  Rows are read over a server side cursor a fetch at a time and
+ * written through a FileChannel from direct buffers of a fixed size, so
+ * the memory an export needs depends on the number of threads, not on
+ * the number of rows.  A file appears under its name only once it is
+ * complete and on disk; a file that fails leaves nothing behind.
+ *
+ * Usage: java OrderExporter &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;from yyyy-mm-dd&gt;
+ *        &lt;to yyyy-mm-dd&gt; [--dir dir] [--format csv|columnar] [--threads n]
+ *        java OrderExporter --dump &lt;file.ccol&gt;
+ */
+public class OrderExporter {
+
+   public static final String DEFAULT_EXPORT_DIR = "data/export";
+   public static final int DEFAULT_BUFFER_BYTES = 1 << 20;
+
+   public enum Format { CSV, COLUMNAR }
+
+   private static final String ORDERS_QUERY =
+      "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders"
+      + " WHERE timeStampRecieved >= ? AND timeStampRecieved < ?";
+
+   private static final String ITEMS_QUERY =
+      "SELECT s.orderid, s.itemName, s.lastUpdated, s.status, s.comments"
+      + " FROM Orders o JOIN ItemStatus s ON s.orderid = o.orderid"
+      + " WHERE o.timeStampRecieved >= ? AND o.timeStampRecieved < ?";
+
+   private static final String[] ORDERS_COLUMNS =
+      { "orderid", "login", "paid", "timestamprecieved", "total" };
+   private static final byte[] ORDERS_TYPES =
+      { ColumnarFile.INT, ColumnarFile.DICTIONARY, ColumnarFile.BOOLEAN,
+        ColumnarFile.TIMESTAMP, ColumnarFile.FLOAT };
+
+   private static final String[] ITEMS_COLUMNS =
+      { "orderid", "itemname", "lastupdated", "status", "comments" };
+   private static final byte[] ITEMS_TYPES =
+      { ColumnarFile.INT, ColumnarFile.DICTIONARY, ColumnarFile.TIMESTAMP,
+        ColumnarFile.DICTIONARY, ColumnarFile.TEXT };
+
+   private final Cafe _esql;
+   private final File _dir;
+   private final Format _format;
+   private final int _threads;
+   private final int _bufferBytes;
+
+   /**
+    * Creates a new exporter
+    *
+    * @param esql the database to export from
+    * @param dir the directory the files are written to
+    * @param format the file format
+    * @param threads the most days exported at once
+    * @param bufferBytes the size of each direct buffer of a file
+    */
+   public OrderExporter(Cafe esql, File dir, Format format, int threads, int bufferBytes) {
+      if (threads < 1)
+         throw new IllegalArgumentException("threads must be positive: " + threads);
+      this._esql = esql;
+      this._dir = dir;
+      this._format = format;
+      this._threads = threads;
+      this._bufferBytes = bufferBytes;
+   }//end OrderExporter
+
+   public static void main(String[] args) {
+      if (args.length == 2 && args[0].equals("--dump")) {
+         try {
+            ColumnarFile.dump(new File(args[1]), System.out);
+         }catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }//end try
+         return;
+      }//end if
+      if (args.length < 5) {
+         System.err.println("Usage: java OrderExporter <dbname> <port> <user> <from yyyy-mm-dd>"
+                            + " <to yyyy-mm-dd> [--dir dir] [--format csv|columnar]"
+                            + " [--threads n]");
+         System.err.println("       java OrderExporter --dump <file.ccol>");
+         System.exit(1);
+      }//end if
+      File dir = new File(DEFAULT_EXPORT_DIR);
+      Format format = Format.CSV;
+      int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+      SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+      date.setLenient(false);
+      Cafe esql = null;
+      try {
+         Timestamp from = new Timestamp(date.parse(args[3]).getTime());
+         Timestamp to = new Timestamp(date.parse(args[4]).getTime());
+         for (int i = 5; i < args.length; ++i) {
+            if (args[i].equals("--dir") && i + 1 < args.length)
+               dir = new File(args[++i]);
+            else if (args[i].equals("--format") && i + 1 < args.length)
+               format = Format.valueOf(args[++i].toUpperCase());
+            else if (args[i].equals("--threads") && i + 1 < args.length)
+               threads = Integer.parseInt(args[++i]);
+            else
+               throw new IllegalArgumentException("Unknown option: " + args[i]);
+         }//end for
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1], args[2], "", ConnectionPool.DEFAULT_MIN_SIZE,
+                         threads);
+         long start = System.nanoTime();
+         long rows = new OrderExporter(esql, dir, format, threads, DEFAULT_BUFFER_BYTES)
+            .export(from, to);
+         System.out.printf("exported %d rows to %s in %.1f s%n", rows, dir,
+                           (System.nanoTime() - start) / 1e9);
+      }catch (ParseException e) {
+         System.err.println("Dates are yyyy-mm-dd: " + e.getMessage());
+         System.exit(1);
+      }catch (Exception e) {
+         System.err.println("Export failed: " + e.getMessage());
+         System.exit(1);
+      }finally {
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Method to export the days from one date to another, both included.
+    *
+    * @param from a time in the first day
+    * @param to a time in the last day
+    * @return the number of orders and items written
+    * @throws java.sql.SQLException when a day cannot be read
+    * @throws java.io.IOException when a file cannot be written
+    * @throws InterruptedException when interrupted while exporting
+    */
+   public long export(Timestamp from, Timestamp to)
+      throws SQLException, IOException, InterruptedException {
+      if (!this._dir.isDirectory() && !this._dir.mkdirs())
+         throw new IOException("Cannot create " + this._dir);
+      List<Callable<Long>> days = new ArrayList<Callable<Long>>();
+      Calendar day = Calendar.getInstance();
+      day.setTimeInMillis(SalesRollup.truncate(from, SalesRollup.DAY).getTime());
+      while (day.getTimeInMillis() <= to.getTime()) {
+         final Timestamp start = new Timestamp(day.getTimeInMillis());
+         day.add(Calendar.DAY_OF_MONTH, 1);
+         final Timestamp end = new Timestamp(day.getTimeInMillis());
+         days.add(new Callable<Long>() {
+            public Long call() throws Exception {
+               return exportDay(start, end);
+            }
+         });
+      }//end while
+
+      ExecutorService workers = Executors.newFixedThreadPool(this._threads, new ThreadFactory() {
+         private final AtomicInteger _next = new AtomicInteger();
+
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-export-" + this._next.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      long rows = 0;
+      try {
+         for (Future<Long> future : workers.invokeAll(days)) {
+            try {
+               rows += future.get();
+            }catch (ExecutionException e) {
+               if (e.getCause() instanceof SQLException)
+                  throw (SQLException) e.getCause();
+               if (e.getCause() instanceof IOException)
+                  throw (IOException) e.getCause();
+               throw new IOException("Export failed: " + e.getCause());
+            }//end try
+         }//end for
+      }finally {
+         workers.shutdownNow();
+      }//end try
+      return rows;
+   }//end export
+
+   /*
+    * Writes the orders of one day and their items.
+    **/
+   private long exportDay(Timestamp start, Timestamp end) throws SQLException, IOException {
+      String suffix = new SimpleDateFormat("yyyy-MM-dd").format(start)
+         + (this._format == Format.CSV ? ".csv" : ".ccol");
+      long orders = exportQuery(ORDERS_QUERY, start, end, "orders." + suffix,
+                                ORDERS_COLUMNS, ORDERS_TYPES);
+      long items = exportQuery(ITEMS_QUERY, start, end, "itemStatus." + suffix,
+                               ITEMS_COLUMNS, ITEMS_TYPES);
+      System.out.println(suffix + ": " + orders + " orders, " + items + " items");
+      return orders + items;
+   }//end exportDay
+
+   /*
+    * Streams a query into <dir>/<name>, by way of <name>.partial.
+    **/
+   private long exportQuery(String query, Timestamp start, Timestamp end, String name,
+                            String[] columns, byte[] types) throws SQLException, IOException {
+      File file = new File(this._dir, name);
+      File partial = new File(this._dir, name + ".partial");
+      long rows;
+      try {
+         if (this._format == Format.CSV) {
+            CsvWriter out = new CsvWriter(partial, this._bufferBytes);
+            try {
+               rows = this._esql.executeQueryStreaming(query, Cafe.DEFAULT_FETCH_SIZE, out,
+                                                       start, end);
+            }catch (SQLException e) {
+               out.abort();
+               throw e;
+            }//end try
+            out.finish();
+         }else {
+            ColumnarFile.Writer out =
+               new ColumnarFile.Writer(partial, columns, types, this._bufferBytes);
+            try {
+               rows = this._esql.executeQueryStreaming(query, Cafe.DEFAULT_FETCH_SIZE, out,
+                                                       start, end);
+            }catch (SQLException e) {
+               out.abort();
+               throw e;
+            }//end try
+            out.finish();
+         }//end if
+      }catch (SQLException e) {
+         partial.delete();
+         throw e;
+      }catch (IOException e) {
+         partial.delete();
+         throw e;
+      }//end try
+      if (!partial.renameTo(file))
+         throw new IOException("Cannot rename " + partial + " to " + file);
+      return rows;
+   }//end exportQuery
+
+   /*
+    * Writes the rows of a query as ';' delimited lines, encoding them
+    * into a direct buffer that is written to the channel whenever it
+    * fills up.
+    **/
+   private static class CsvWriter implements RowVisitor {
+      private final FileChannel _channel;
+      private final ByteBuffer _buffer;
+      private final CharsetEncoder _encoder = Charset.forName("UTF-8").newEncoder();
+      private final StringBuilder _line = new StringBuilder(256);
+      private int _columns;
+      // char(n) columns, whose blank padding is dropped
+      private boolean[] _padded;
+      private IOException _failure = null;
+
+      CsvWriter(File file, int bufferBytes) throws IOException {
+         this._channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE,
+                                          StandardOpenOption.TRUNCATE_EXISTING);
+         this._buffer = ByteBuffer.allocateDirect(bufferBytes);
+      }
+
+      public void start(ResultSetMetaData rsmd) throws SQLException {
+         this._columns = rsmd.getColumnCount();
+         this._padded = new boolean[this._columns];
+         for (int i = 1; i <= this._columns; ++i)
+            this._padded[i - 1] = rsmd.getColumnType(i) == Types.CHAR;
+      }
+
+      public boolean visit(ResultSet rs) throws SQLException {
+         this._line.setLength(0);
+         for (int i = 1; i <= this._columns; ++i) {
+            if (i > 1)
+               this._line.append(';');
+            String value = rs.getString(i);
+            TableRenderer.appendCopyText(this._line, this._padded[i - 1]
+                                                     ? TableRenderer.trimPadding(value) : value);
+         }//end for
+         this._line.append('\n');
+         try {
+            CharBuffer chars = CharBuffer.wrap(this._line);
+            while (true) {
+               CoderResult result = this._encoder.encode(chars, this._buffer, true);
+               if (result.isUnderflow())
+                  break;
+               if (result.isOverflow())
+                  drain();
+               else
+                  result.throwException();
+            }//end while
+            this._encoder.reset();
+            return true;
+         }catch (IOException e) {
+            this._failure = e;
+            return false;
+         }//end try
+      }
+
+      /*
+       * Writes what is left, forces the file to disk and closes it.
+       **/
+      void finish() throws IOException {
+         try {
+            if (this._failure != null)
+               throw this._failure;
+            drain();
+            this._channel.force(true);
+         }finally {
+            this._channel.close();
+         }//end try
+      }
+
+      void abort() {
+         try {
+            this._channel.close();
+         }catch (IOException e) {
+            // ignored.
+         }//end try
+      }
+
+      private void drain() throws IOException {
+         this._buffer.flip();
+         while (this._buffer.hasRemaining())
+            this._channel.write(this._buffer);
+         this._buffer.clear();
+      }
+   }//end CsvWriter
+}//end OrderExporter
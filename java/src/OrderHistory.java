@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class pages through the orders of one customer, newest first.
+ *
+ * Pages are found by keyset rather than OFFSET: the next page starts
+ * after the (timeStampRecieved, orderid) of the last order shown, so it is
+ * one range scan of the Orders_login_time index whatever page it is,
+ * and orders placed while browsing neither repeat nor skip rows.
+ *
+ * The seek is the row comparison "(ts, orderid) < (?, ?)", which the
+ * server turns into one index bound; the equivalent "ts < ? OR (ts = ?
+ * AND orderid < ?)" is not an index condition and would filter every
+ * older order of the customer.  The index is ascending and scanned
+ * backwards.
+ */
+public class OrderHistory {
+
+   public static final int DEFAULT_PAGE_SIZE = 5;
+
+   // column names of the rows written by print
+   public static final String[] COLUMNS =
+      { "orderid", "login", "paid", "timestamprecieved", "total" };
+
+   private static final String FIRST_PAGE_QUERY =
+      "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders"
+      + " WHERE login = ?"
+      + " ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?";
+
+   private static final String NEXT_PAGE_QUERY =
+      "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders"
+      + " WHERE login = ? AND (timeStampRecieved, orderid) < (?, ?)"
+      + " ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?";
+
+   /**
+    * An Orders row.  Instances are immutable.
+    */
+   public static class Row {
+      private final int _orderid;
+      private final String _login;
+      private final boolean _paid;
+      private final Timestamp _timeStampRecieved;
+      private final float _total;
+
+      public Row(int orderid, String login, boolean paid, Timestamp timeStampRecieved,
+                 float total) {
+         this._orderid = orderid;
+         this._login = login;
+         this._paid = paid;
+         this._timeStampRecieved = timeStampRecieved;
+         this._total = total;
+      }
+
+      public int getOrderid() {
+         return this._orderid;
+      }
+
+      public String getLogin() {
+         return this._login;
+      }
+
+      public boolean isPaid() {
+         return this._paid;
+      }
+
+      public Timestamp getTimeStampRecieved() {
+         return this._timeStampRecieved;
+      }
+
+      public float getTotal() {
+         return this._total;
+      }
+   }//end Row
+
+   /**
+    * The position after the last order of a page.
+    */
+   public static class Cursor {
+      private final Timestamp _timeStampRecieved;
+      private final int _orderid;
+
+      public Cursor(Timestamp timeStampRecieved, int orderid) {
+         this._timeStampRecieved = timeStampRecieved;
+         this._orderid = orderid;
+      }
+
+      public Timestamp getTimeStampRecieved() {
+         return this._timeStampRecieved;
+      }
+
+      public int getOrderid() {
+         return this._orderid;
+      }
+
+      public String toString() {
+         return this._timeStampRecieved + "/" + this._orderid;
+      }
+   }//end Cursor
+
+   /**
+    * One page of orders.
+    */
+   public static class Page {
+      private final List<Row> _rows;
+      private final Cursor _next;
+
+      private Page(List<Row> rows, Cursor next) {
+         this._rows = Collections.unmodifiableList(rows);
+         this._next = next;
+      }
+
+      /**
+       * @return the orders of the page, newest first
+       */
+      public List<Row> getRows() {
+         return this._rows;
+      }
+
+      /**
+       * @return where the next page starts, or null if this is the last one
+       */
+      public Cursor getNext() {
+         return this._next;
+      }
+
+      public boolean hasNext() {
+         return this._next != null;
+      }
+   }//end Page
+
+   private final Cafe _esql;
+
+   public OrderHistory(Cafe esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Method to read a page of a customer's orders.
+    *
+    * @param login the login of the customer
+    * @param after the cursor of the previous page, null for the newest orders
+    * @param pageSize the most orders on the page
+    * @return the page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page page(String login, Cursor after, int pageSize) throws SQLException {
+      if (pageSize < 1)
+         throw new IllegalArgumentException("page size must be positive: " + pageSize);
+      final List<Row> rows = new ArrayList<Row>(pageSize + 1);
+      RowVisitor reader = new RowVisitor() {
+         public void start(ResultSetMetaData rsmd) {
+         }
+
+         public boolean visit(ResultSet rs) throws SQLException {
+            String paid = rs.getString(3);
+            rows.add(new Row(rs.getInt(1), TableRenderer.trimPadding(rs.getString(2)),
+                             paid != null && paid.startsWith("t"), rs.getTimestamp(4),
+                             rs.getFloat(5)));
+            return true;
+         }
+      };
+      // one row more than asked tells whether there is a next page
+      if (after == null)
+         this._esql.executeQueryAndVisit(FIRST_PAGE_QUERY, reader, login, pageSize + 1);
+      else
+         this._esql.executeQueryAndVisit(NEXT_PAGE_QUERY, reader, login,
+                                         after._timeStampRecieved, after._orderid,
+                                         pageSize + 1);
+      Cursor next = null;
+      if (rows.size() > pageSize) {
+         rows.remove(pageSize);
+         Row last = rows.get(pageSize - 1);
+         next = new Cursor(last._timeStampRecieved, last._orderid);
+      }//end if
+      return new Page(rows, next);
+   }//end page
+
+   /**
+    * Method to write a page as a table.
+    *
+    * @param page the page
+    * @param out where to write
+    * @param format the output format
+    * @return the number of orders written
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public static int print(Page page, OutputStream out, TableRenderer.Format format)
+      throws IOException {
+      TableRenderer renderer = new TableRenderer(out, format, TableRenderer.DEFAULT_SAMPLE_ROWS,
+                                                 0, null);
+      renderer.header(COLUMNS);
+      for (Row row : page._rows)
+         renderer.row(new String[] { String.valueOf(row._orderid), row._login,
+                                     row._paid ? "t" : "f",
+                                     String.valueOf(row._timeStampRecieved),
+                                     String.valueOf(row._total) });
+      return renderer.finish();
+   }//end print
+}//end OrderHistory
@@ -0,0 +1,83 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out order ids from blocks reserved on a database
+ * sequence (hi/lo style).  Each nextval on the sequence reserves the ids
+ * [value, value + blockSize), so only one round trip is needed per block
+ * and concurrent sessions, even in other processes, never get the same id.
+ *
+ * The block size is the INCREMENT BY of the sequence, read when the
+ * allocator is created, as a larger block would hand the same ids to two
+ * allocators.  create_tables.sql and SchemaMigration set it to
+ * DEFAULT_BLOCK_SIZE; a sequence still at 1 works, one id per round trip.
+ */
+public class OrderIdAllocator {
+
+   // sequence behind Orders.orderid
+   public static final String ORDER_SEQUENCE = "orders_orderid_seq";
+
+   // the INCREMENT BY create_tables.sql and SchemaMigration give the sequence
+   public static final int DEFAULT_BLOCK_SIZE = 50;
+
+   private final Cafe _esql;
+   private final String _nextBlockQuery;
+   private final int _blockSize;
+
+   // next id to hand out and the end of the current block (exclusive)
+   private long _next = 0;
+   private long _limit = 0;
+
+   // held while a block is reserved; a lock rather than a monitor, so
+   // virtual threads waiting on the round trip do not pin their carriers
+   private final ReentrantLock _lock = new ReentrantLock();
+
+   /**
+    * Creates a new allocator over a sequence, with blocks of its increment
+    *
+    * @param esql the database the sequence lives in
+    * @param sequence the name of the sequence
+    * @throws java.sql.SQLException when the sequence is missing or counts down
+    */
+   public OrderIdAllocator(Cafe esql, String sequence) throws SQLException {
+      List<String> row = esql.lookup(
+         "SELECT increment_by FROM pg_sequences"
+         + " WHERE schemaname = current_schema() AND sequencename = ?", sequence);
+      if (row == null)
+         throw new SQLException("No sequence " + sequence);
+      long increment = Long.parseLong(row.get(0));
+      if (increment < 1 || increment > Integer.MAX_VALUE)
+         throw new SQLException("Cannot reserve blocks of " + increment + " ids on " + sequence);
+      this._esql = esql;
+      this._nextBlockQuery = "SELECT nextval('" + sequence + "')";
+      this._blockSize = (int) increment;
+   }//end OrderIdAllocator
+
+   /**
+    * Method to take the next unused id.  A database round trip is only
+    * made when the current block is used up.
+    *
+    * @return an id no other caller has received
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public int nextId() throws SQLException {
+      this._lock.lock();
+      try {
+         if (this._next >= this._limit) {
+            List<List<String>> result =
+               this._esql.executeQueryAndReturnResult(this._nextBlockQuery);
+            long hi = Long.parseLong(result.get(0).get(0));
+            this._next = hi;
+            this._limit = hi + this._blockSize;
+         }//end if
+         return (int) this._next++;
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end nextId
+
+   public int getBlockSize() {
+      return this._blockSize;
+   }
+}//end OrderIdAllocator
@@ -0,0 +1,374 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class looks after the monthly partitions of Orders created by
+ * partition_orders.sql: it creates the partitions of the coming months
+ * before any order needs them, and archives the partitions older than the
+ * months kept.
+ *
+ * A partition is archived by detaching it from Orders, writing its orders
+ * and their ItemStatus and placesOrder rows to gzipped ';' delimited files
+ * in COPY text format that \copy can load again, reading each file back
+ * to check it holds every row, and only then deleting the item rows and
+ * dropping the partition in one transaction.  A run that stops half way
+ * picks the detached partition up again the next time, so nothing is
+ * dropped before it is written out.
+ *
+ * Usage: java PartitionMaintenance &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *        [--ahead months] [--keep months] [--archive dir] [--every hours]
+ */
+public class PartitionMaintenance {
+
+   public static final int DEFAULT_MONTHS_AHEAD = 3;
+   public static final int DEFAULT_MONTHS_KEPT = 12;
+   public static final String DEFAULT_ARCHIVE_DIR = "data/archive";
+
+   // SQLSTATE of lock_not_available, raised when lock_timeout expires
+   private static final String LOCK_NOT_AVAILABLE = "55P03";
+   private static final int LOCK_TIMEOUT_MILLIS = 2000;
+   private static final int LOCK_RETRIES = 30;
+
+   private static final String PARTITION_PATTERN = "^orders_y[0-9]{4}m[0-9]{2}$";
+
+   private final Cafe _esql;
+   private final int _monthsAhead;
+   private final int _monthsKept;
+   private final File _archiveDir;
+   private ScheduledExecutorService _scheduler = null;
+
+   /**
+    * Creates a new maintenance task
+    *
+    * @param esql the database Orders lives in
+    * @param monthsAhead the months after the current one that get a partition
+    * @param monthsKept the months before the current one that are not archived
+    * @param archiveDir the directory archived partitions are written to
+    */
+   public PartitionMaintenance(Cafe esql, int monthsAhead, int monthsKept, File archiveDir) {
+      if (monthsAhead < 1 || monthsKept < 1)
+         throw new IllegalArgumentException("months ahead and kept must be positive");
+      this._esql = esql;
+      this._monthsAhead = monthsAhead;
+      this._monthsKept = monthsKept;
+      this._archiveDir = archiveDir;
+   }//end PartitionMaintenance
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println("Usage: java PartitionMaintenance <dbname> <port> <user>"
+                            + " [--ahead months] [--keep months] [--archive dir] [--every hours]");
+         System.exit(1);
+      }//end if
+      int ahead = DEFAULT_MONTHS_AHEAD;
+      int keep = DEFAULT_MONTHS_KEPT;
+      File archive = new File(DEFAULT_ARCHIVE_DIR);
+      int every = 0;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("--ahead") && i + 1 < args.length)
+            ahead = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--keep") && i + 1 < args.length)
+            keep = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--archive") && i + 1 < args.length)
+            archive = new File(args[++i]);
+         else if (args[i].equals("--every") && i + 1 < args.length)
+            every = Integer.parseInt(args[++i]);
+         else {
+            System.err.println("Unknown option: " + args[i]);
+            System.exit(1);
+         }//end if
+      }//end for
+
+      Cafe esql = null;
+      PartitionMaintenance maintenance = null;
+      try {
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1], args[2], "");
+         maintenance = new PartitionMaintenance(esql, ahead, keep, archive);
+         if (every <= 0) {
+            maintenance.run(System.out);
+         }else {
+            maintenance.start(System.out, every * 60L * 60 * 1000);
+            // the job runs on a daemon thread; keep the process alive
+            Thread.currentThread().join();
+         }//end if
+      }catch (Exception e) {
+         System.err.println("Partition maintenance failed: " + e.getMessage());
+         System.exit(1);
+      }finally {
+         if (maintenance != null)
+            maintenance.stop();
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Method to run the maintenance at an interval on a daemon thread,
+    * starting now.  A failed run is logged and tried again at the next
+    * interval.
+    *
+    * @param log where runs are reported
+    * @param intervalMillis the time between two runs
+    */
+   public synchronized void start(final PrintStream log, long intervalMillis) {
+      stop();
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-partition-maintenance");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               PartitionMaintenance.this.run(log);
+            }catch (Exception e) {
+               log.println("Partition maintenance failed: " + e.getMessage());
+            }//end try
+         }
+      }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   public synchronized void stop() {
+      if (this._scheduler != null) {
+         this._scheduler.shutdownNow();
+         this._scheduler = null;
+      }//end if
+   }//end stop
+
+   /**
+    * Method to create the coming partitions and archive the old ones once.
+    *
+    * @param log where the work done is reported
+    * @throws java.sql.SQLException when Orders is not partitioned or a
+    *         partition cannot be created, detached or dropped
+    * @throws java.io.IOException when an archive cannot be written
+    */
+   public void run(PrintStream log) throws SQLException, IOException {
+      if (!this._esql.exists("SELECT 1 FROM pg_class WHERE relname = 'orders' AND relkind = 'p'"))
+         throw new SQLException("Orders is not partitioned, run sql/scripts/partition_orders.sh");
+
+      Calendar month = firstOfMonth();
+      for (int i = 0; i <= this._monthsAhead; ++i) {
+         String name = partitionName(month);
+         if (!this._esql.exists("SELECT 1 FROM pg_class WHERE relname = ?", name)) {
+            String from = date(month);
+            month.add(Calendar.MONTH, 1);
+            runDdl("CREATE TABLE IF NOT EXISTS " + name + " PARTITION OF Orders"
+                   + " FOR VALUES FROM ('" + from + "') TO ('" + date(month) + "')");
+            log.println("created partition " + name);
+         }else {
+            month.add(Calendar.MONTH, 1);
+         }//end if
+      }//end for
+
+      Calendar oldest = firstOfMonth();
+      oldest.add(Calendar.MONTH, -this._monthsKept);
+      String oldestKept = partitionName(oldest);
+      List<List<String>> partitions = this._esql.executeQueryAndReturnResult(
+         "SELECT c.relname, EXISTS (SELECT 1 FROM pg_inherits i WHERE i.inhrelid = c.oid)"
+         + " FROM pg_class c WHERE c.relkind = 'r' AND c.relname ~ ?"
+         + " AND c.relnamespace = current_schema()::regnamespace ORDER BY c.relname",
+         PARTITION_PATTERN);
+      for (List<String> partition : partitions) {
+         String name = partition.get(0);
+         // the names sort by month
+         if (name.compareTo(oldestKept) >= 0)
+            continue;
+         if (partition.get(1).startsWith("t")) {
+            runDdl("ALTER TABLE Orders DETACH PARTITION " + name);
+            log.println("detached partition " + name);
+         }//end if
+         archive(name, log);
+      }//end for
+   }//end run
+
+   /*
+    * Writes a detached partition and its items out, then deletes them.
+    **/
+   private void archive(String partition, PrintStream log) throws SQLException, IOException {
+      if (!this._archiveDir.isDirectory() && !this._archiveDir.mkdirs())
+         throw new IOException("Cannot create " + this._archiveDir);
+      String ids = "SELECT orderid FROM " + partition;
+      long orders = export("SELECT * FROM " + partition, partition + ".orders");
+      long items = export("SELECT * FROM ItemStatus WHERE orderid IN (" + ids + ")",
+                          partition + ".itemStatus");
+      export("SELECT * FROM placesOrder WHERE orderid IN (" + ids + ")",
+             partition + ".placesOrder");
+
+      // the change feed would record an event for every archived item;
+      // disabling it is transactional and blocks other writers of ItemStatus
+      // until commit, so none of their changes go unrecorded
+      runDdl("ALTER TABLE ItemStatus DISABLE TRIGGER USER",
+             "DELETE FROM ItemStatus WHERE orderid IN (" + ids + ")",
+             "ALTER TABLE ItemStatus ENABLE TRIGGER USER",
+             "DELETE FROM placesOrder WHERE orderid IN (" + ids + ")",
+             "DROP TABLE " + partition);
+      log.println("archived partition " + partition + ": " + orders + " orders, " + items
+                  + " items to " + this._archiveDir);
+   }//end archive
+
+   /*
+    * Streams a query to <dir>/<name>.csv.gz.  The file appears under its
+    * name only once it is complete, on disk, and read back with as many
+    * rows as the query returned.
+    **/
+   private long export(String query, String name) throws SQLException, IOException {
+      File file = new File(this._archiveDir, name + ".csv.gz");
+      File partial = new File(this._archiveDir, name + ".csv.gz.partial");
+      final FileOutputStream stream = new FileOutputStream(partial);
+      final Writer out = new BufferedWriter(new OutputStreamWriter(
+         new GZIPOutputStream(stream, 1 << 16), "UTF-8"));
+      final IOException[] failure = { null };
+      long rows;
+      try {
+         rows = this._esql.executeQueryStreaming(query, Cafe.DEFAULT_FETCH_SIZE, new RowVisitor() {
+            private int _columns;
+            // char(n) columns, whose blank padding is dropped
+            private boolean[] _padded;
+
+            public void start(ResultSetMetaData rsmd) throws SQLException {
+               this._columns = rsmd.getColumnCount();
+               this._padded = new boolean[this._columns];
+               for (int i = 1; i <= this._columns; ++i)
+                  this._padded[i - 1] = rsmd.getColumnType(i) == Types.CHAR;
+            }
+
+            private final StringBuilder _line = new StringBuilder(256);
+
+            public boolean visit(ResultSet rs) throws SQLException {
+               try {
+                  this._line.setLength(0);
+                  for (int i = 1; i <= this._columns; ++i) {
+                     if (i > 1)
+                        this._line.append(';');
+                     String value = rs.getString(i);
+                     TableRenderer.appendCopyText(this._line, this._padded[i - 1]
+                                                  ? TableRenderer.trimPadding(value) : value);
+                  }//end for
+                  this._line.append('\n');
+                  out.append(this._line);
+                  return true;
+               }catch (IOException e) {
+                  failure[0] = e;
+                  return false;
+               }//end try
+            }
+         });
+         if (failure[0] != null)
+            throw failure[0];
+         out.flush();
+      }finally {
+         out.close();
+      }//end try
+      // close finished the gzip trailer; make sure it is on disk before
+      // the rows are deleted
+      FileOutputStream sync = new FileOutputStream(partial, true);
+      try {
+         sync.getFD().sync();
+      }finally {
+         sync.close();
+      }//end try
+      long written = countRows(partial);
+      if (written != rows)
+         throw new IOException(partial + " holds " + written + " rows instead of " + rows);
+      if (!partial.renameTo(file))
+         throw new IOException("Cannot rename " + partial + " to " + file);
+      return rows;
+   }//end export
+
+   /*
+    * Counts the rows of a written file; newlines inside values are
+    * escaped, so each line is a row.
+    **/
+   private static long countRows(File file) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+         new GZIPInputStream(new FileInputStream(file), 1 << 16), "UTF-8"));
+      try {
+         long rows = 0;
+         while (in.readLine() != null)
+            ++rows;
+         return rows;
+      }finally {
+         in.close();
+      }//end try
+   }//end countRows
+
+   /*
+    * Runs statements in one transaction, with a lock timeout so they do
+    * not queue every session behind them, retrying until the locks are
+    * granted.
+    **/
+   private void runDdl(final String... statements) throws SQLException {
+      for (int attempt = 0; ; ++attempt) {
+         try {
+            this._esql.inTransaction("transaction partitions", null, new Cafe.Transaction<Void>() {
+               public Void run(ConnectionPool.PooledConnection c) throws SQLException {
+                  Statement stmt = c.getConnection().createStatement();
+                  try {
+                     stmt.execute("SET LOCAL lock_timeout = " + LOCK_TIMEOUT_MILLIS);
+                     for (String sql : statements)
+                        stmt.execute(sql);
+                  }finally {
+                     stmt.close();
+                  }//end try
+                  return null;
+               }
+            });
+            return;
+         }catch (SQLException e) {
+            if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || attempt >= LOCK_RETRIES)
+               throw e;
+            try {
+               Thread.sleep(Math.min(10000, 250L << Math.min(attempt, 6)));
+            }catch (InterruptedException ie) {
+               Thread.currentThread().interrupt();
+               throw e;
+            }//end try
+         }//end try
+      }//end for
+   }//end runDdl
+
+   private static Calendar firstOfMonth() {
+      Calendar month = Calendar.getInstance();
+      month.set(Calendar.DAY_OF_MONTH, 1);
+      month.set(Calendar.HOUR_OF_DAY, 0);
+      month.set(Calendar.MINUTE, 0);
+      month.set(Calendar.SECOND, 0);
+      month.set(Calendar.MILLISECOND, 0);
+      return month;
+   }//end firstOfMonth
+
+   private static String partitionName(Calendar month) {
+      return String.format("orders_y%04dm%02d", month.get(Calendar.YEAR),
+                           month.get(Calendar.MONTH) + 1);
+   }//end partitionName
+
+   private static String date(Calendar month) {
+      return String.format("%04d-%02d-01", month.get(Calendar.YEAR),
+                           month.get(Calendar.MONTH) + 1);
+   }//end date
+}//end PartitionMaintenance
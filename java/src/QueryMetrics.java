@@ -0,0 +1,380 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class collects latency, row, byte and error counts per query shape
+ * for every statement Cafe runs.  The shape of a statement is its SQL text
+ * with string and number literals replaced by '?', blanks collapsed and
+ * keywords lower cased, so "... WHERE login = 'Bob'" and
+ * "... WHERE login = 'Amy'" are counted together.
+ *
+ * Shapes live in a fixed open-addressing table keyed by a 64 bit hash that
+ * is computed while scanning the SQL, so recording into a known shape
+ * takes no lock and allocates nothing.  Only the first statement of a new
+ * shape allocates its entry.  Once maxShapes shapes are known, new ones are
+ * counted under OTHER_SHAPE.
+ */
+public class QueryMetrics {
+
+   public static final int DEFAULT_MAX_SHAPES = 256;
+   public static final String OTHER_SHAPE = "(other)";
+
+   // longest shape text kept, longer statements are cut
+   private static final int MAX_SHAPE_LENGTH = 200;
+
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   /**
+    * The counters of one query shape.
+    */
+   public static class Shape {
+      private final long _hash;
+      private final String _text;
+      private final LatencyHistogram _latency = new LatencyHistogram();
+      private final AtomicLong _errors = new AtomicLong();
+      private final AtomicLong _rows = new AtomicLong();
+      private final AtomicLong _bytes = new AtomicLong();
+      private volatile String _lastError = null;
+
+      private Shape(long hash, String text) {
+         this._hash = hash;
+         this._text = text;
+      }
+
+      public String getText() {
+         return this._text;
+      }
+   }//end Shape
+
+   /**
+    * The counters of one query shape at one point in time.
+    */
+   public static class Stats {
+      private final String _shape;
+      private final LatencyHistogram.Snapshot _latency;
+      private final long _errors;
+      private final long _rows;
+      private final long _bytes;
+      private final String _lastError;
+
+      private Stats(Shape shape) {
+         this._shape = shape._text;
+         this._latency = shape._latency.snapshot();
+         this._errors = shape._errors.get();
+         this._rows = shape._rows.get();
+         this._bytes = shape._bytes.get();
+         this._lastError = shape._lastError;
+      }
+
+      public String getShape() {
+         return this._shape;
+      }
+
+      /**
+       * @return the latencies of the statements that completed, failed
+       *         ones included
+       */
+      public LatencyHistogram.Snapshot getLatency() {
+         return this._latency;
+      }
+
+      public long getErrors() {
+         return this._errors;
+      }
+
+      public long getRows() {
+         return this._rows;
+      }
+
+      /**
+       * @return the characters of the values Cafe read, an estimate of the
+       *         bytes fetched; 0 for results that were only counted
+       */
+      public long getBytes() {
+         return this._bytes;
+      }
+
+      public String getLastError() {
+         return this._lastError;
+      }
+   }//end Stats
+
+   private final AtomicReferenceArray<Shape> _table;
+   private final int _mask;
+   private final int _maxShapes;
+   private final AtomicInteger _shapes = new AtomicInteger();
+   private final Shape _other = new Shape(0, OTHER_SHAPE);
+   private final LatencyHistogram _all = new LatencyHistogram();
+   private final AtomicLong _allErrors = new AtomicLong();
+
+   private ScheduledExecutorService _logger = null;
+
+   public QueryMetrics() {
+      this(DEFAULT_MAX_SHAPES);
+   }
+
+   /**
+    * Creates new, empty metrics
+    *
+    * @param maxShapes the number of distinct shapes tracked separately
+    */
+   public QueryMetrics(int maxShapes) {
+      if (maxShapes < 1)
+         throw new IllegalArgumentException("max shapes must be positive: " + maxShapes);
+      // at most half full, so probe sequences stay short
+      int size = Integer.highestOneBit(maxShapes * 2 - 1) << 1;
+      this._table = new AtomicReferenceArray<Shape>(size);
+      this._mask = size - 1;
+      this._maxShapes = maxShapes;
+   }//end QueryMetrics
+
+   /**
+    * Method to count one statement.
+    *
+    * @param sql the SQL text of the statement
+    * @param nanos how long the statement took, in nanoseconds
+    * @param rows the rows returned or affected
+    * @param bytes the characters of the values read, 0 if not known
+    * @param error the error the statement failed with, or null
+    */
+   public void record(String sql, long nanos, long rows, long bytes, Exception error) {
+      Shape shape = shape(sql);
+      shape._latency.record(nanos);
+      this._all.record(nanos);
+      if (rows > 0)
+         shape._rows.addAndGet(rows);
+      if (bytes > 0)
+         shape._bytes.addAndGet(bytes);
+      if (error != null) {
+         shape._errors.incrementAndGet();
+         this._allErrors.incrementAndGet();
+         shape._lastError = error.getMessage();
+      }//end if
+   }//end record
+
+   /**
+    * Method to copy the counters of every shape.
+    *
+    * @return the shapes, the one with the most total time first
+    */
+   public List<Stats> snapshot() {
+      List<Stats> stats = new ArrayList<Stats>();
+      for (int i = 0; i < this._table.length(); ++i) {
+         Shape shape = this._table.get(i);
+         if (shape != null)
+            stats.add(new Stats(shape));
+      }//end for
+      if (this._other._latency.getCount() > 0)
+         stats.add(new Stats(this._other));
+      Collections.sort(stats, new Comparator<Stats>() {
+         public int compare(Stats a, Stats b) {
+            return Long.compare(b._latency.getTotalNanos(), a._latency.getTotalNanos());
+         }
+      });
+      return stats;
+   }//end snapshot
+
+   /**
+    * Method to copy the latencies of all statements together.
+    *
+    * @return the latencies
+    */
+   public LatencyHistogram.Snapshot total() {
+      return this._all.snapshot();
+   }
+
+   public long getErrors() {
+      return this._allErrors.get();
+   }
+
+   /**
+    * Method to write the counters of every shape as a table.
+    *
+    * @param out where to write
+    */
+   public void print(PrintStream out) {
+      List<Stats> stats = snapshot();
+      out.printf("%8s %6s %9s %9s %9s %9s %9s %9s  %s%n", "calls", "errors", "rows", "KB",
+                 "mean ms", "p50 ms", "p99 ms", "max ms", "query");
+      for (Stats s : stats) {
+         LatencyHistogram.Snapshot l = s._latency;
+         out.printf("%8d %6d %9d %9d %9.3f %9.3f %9.3f %9.3f  %s%n", l.getCount(), s._errors,
+                    s._rows, s._bytes / 1024, l.getMeanNanos() / 1e6,
+                    l.getPercentileNanos(0.50) / 1e6, l.getPercentileNanos(0.99) / 1e6,
+                    l.getMaxNanos() / 1e6, s._shape);
+         if (s._lastError != null)
+            out.println("         last error: " + s._lastError);
+      }//end for
+      out.println(summary(total(), getErrors()));
+   }//end print
+
+   /**
+    * Method to write a summary line every interval, covering the statements
+    * of that interval.  The line is written by a daemon thread until
+    * stopLogging is called.
+    *
+    * @param out where to write
+    * @param intervalSeconds the time between two lines
+    */
+   public synchronized void startLogging(final PrintStream out, final long intervalSeconds) {
+      stopLogging();
+      this._logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-metrics-log");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._logger.scheduleAtFixedRate(new Runnable() {
+         private LatencyHistogram.Snapshot _last = total();
+         private long _lastErrors = getErrors();
+
+         public void run() {
+            LatencyHistogram.Snapshot now = total();
+            long errors = getErrors();
+            out.println("[metrics " + intervalSeconds + "s] "
+                        + summary(now.minus(this._last), errors - this._lastErrors));
+            this._last = now;
+            this._lastErrors = errors;
+         }
+      }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+   }//end startLogging
+
+   public synchronized void stopLogging() {
+      if (this._logger != null) {
+         this._logger.shutdownNow();
+         this._logger = null;
+      }//end if
+   }//end stopLogging
+
+   private static String summary(LatencyHistogram.Snapshot l, long errors) {
+      return String.format("%d statements, %d errors, mean %.3f ms, p50 %.3f ms,"
+                           + " p99 %.3f ms, max %.3f ms", l.getCount(), errors,
+                           l.getMeanNanos() / 1e6, l.getPercentileNanos(0.50) / 1e6,
+                           l.getPercentileNanos(0.99) / 1e6, l.getMaxNanos() / 1e6);
+   }//end summary
+
+   /*
+    * Finds the entry of the statement's shape, adding it if there is room.
+    **/
+   private Shape shape(String sql) {
+      long hash = shapeHash(sql);
+      int i = (int) (hash ^ (hash >>> 32)) & this._mask;
+      while (true) {
+         Shape shape = this._table.get(i);
+         if (shape == null) {
+            if (this._shapes.get() >= this._maxShapes)
+               return this._other;
+            Shape added = new Shape(hash, shapeText(sql));
+            if (this._table.compareAndSet(i, null, added)) {
+               this._shapes.incrementAndGet();
+               return added;
+            }//end if
+            continue;  // someone else took the slot, look at it again
+         }//end if
+         if (shape._hash == hash)
+            return shape;
+         i = (i + 1) & this._mask;
+      }//end while
+   }//end shape
+
+   /*
+    * FNV-1a over the characters of the shape text, without building it.
+    **/
+   static long shapeHash(String sql) {
+      long hash = FNV_OFFSET;
+      int n = sql.length();
+      boolean blank = true;
+      int i = 0;
+      while (i < n) {
+         char ch = sql.charAt(i);
+         int next = skipLiteral(sql, i);
+         if (next > i) {
+            hash = (hash ^ '?') * FNV_PRIME;
+            blank = false;
+            i = next;
+            continue;
+         }//end if
+         if (Character.isWhitespace(ch)) {
+            if (!blank)
+               hash = (hash ^ ' ') * FNV_PRIME;
+            blank = true;
+         }else {
+            hash = (hash ^ Character.toLowerCase(ch)) * FNV_PRIME;
+            blank = false;
+         }//end if
+         ++i;
+      }//end while
+      return hash;
+   }//end shapeHash
+
+   static String shapeText(String sql) {
+      StringBuilder sb = new StringBuilder(Math.min(sql.length(), MAX_SHAPE_LENGTH));
+      int n = sql.length();
+      boolean blank = true;
+      int i = 0;
+      while (i < n && sb.length() < MAX_SHAPE_LENGTH) {
+         char ch = sql.charAt(i);
+         int next = skipLiteral(sql, i);
+         if (next > i) {
+            sb.append('?');
+            blank = false;
+            i = next;
+            continue;
+         }//end if
+         if (Character.isWhitespace(ch)) {
+            if (!blank)
+               sb.append(' ');
+            blank = true;
+         }else {
+            sb.append(Character.toLowerCase(ch));
+            blank = false;
+         }//end if
+         ++i;
+      }//end while
+      return sb.toString().trim();
+   }//end shapeText
+
+   /*
+    * Returns the index after a 'string' or a number starting at i, or i
+    * when there is none.  Digits inside names such as orders2 are kept.
+    **/
+   private static int skipLiteral(String sql, int i) {
+      char ch = sql.charAt(i);
+      int n = sql.length();
+      if (ch == '\'') {
+         int j = i + 1;
+         while (j < n) {
+            if (sql.charAt(j) == '\'') {
+               if (j + 1 < n && sql.charAt(j + 1) == '\'')
+                  j += 2;  // '' inside a string
+               else
+                  return j + 1;
+            }else {
+               ++j;
+            }//end if
+         }//end while
+         return n;
+      }//end if
+      if (Character.isDigit(ch)
+          && (i == 0 || !Character.isLetterOrDigit(sql.charAt(i - 1))
+                        && sql.charAt(i - 1) != '_' && sql.charAt(i - 1) != '.')) {
+         int j = i + 1;
+         while (j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.'))
+            ++j;
+         return j;
+      }//end if
+      return i;
+   }//end skipLiteral
+}//end QueryMetrics
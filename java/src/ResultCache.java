@@ -0,0 +1,461 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps query results in memory, keyed by the SQL text and the
+ * parameter values, so that reads repeated between writes need no round
+ * trip.  It is bounded by an estimate of the memory the results take, drops
+ * the least recently used results first, and lets every result live for at
+ * most the time to live.
+ *
+ * Each result remembers the tables its query reads (the names after FROM
+ * and JOIN).  Cafe reports its writes, and a write to a table drops every
+ * result that depends on it; a write whose tables cannot be told drops
+ * everything.  Writes made by other programs, by triggers or by foreign key
+ * cascades are not seen, the time to live bounds how stale a result can
+ * get then.
+ *
+ * Queries that do not return the same rows every time, such as those
+ * calling now(), nextval() or random(), are never cached.
+ */
+public class ResultCache {
+
+   public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+   public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+   // the result of a query, or of a lookup of its first row
+   public static final int ALL_ROWS = 0;
+   public static final int FIRST_ROW = 1;
+
+   // calls whose result changes without a write
+   private static final String[] VOLATILE = {
+      "now(", "current_", "localtime", "nextval", "currval", "setval", "random(",
+      "clock_timestamp", "timeofday", " for update", " for share" };
+
+   // words after which a FROM list ends
+   private static final Set<String> CLAUSE_WORDS = new HashSet<String>(Arrays.asList(
+      "where", "join", "inner", "left", "right", "full", "cross", "natural", "on", "using",
+      "group", "order", "having", "limit", "offset", "union", "intersect", "except",
+      "window", "for", "returning", "set"));
+
+   private static final Object[] NO_PARAMS = new Object[0];
+
+   private static class Key {
+      private final int _kind;
+      private final String _sql;
+      private final Object[] _params;
+      private final int _hash;
+
+      Key(int kind, String sql, Object[] params) {
+         this._kind = kind;
+         this._sql = sql;
+         this._params = params == null ? NO_PARAMS : params.clone();
+         this._hash = 31 * (31 * kind + sql.hashCode()) + Arrays.hashCode(this._params);
+      }
+
+      public int hashCode() {
+         return this._hash;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof Key))
+            return false;
+         Key k = (Key) o;
+         return this._hash == k._hash && this._kind == k._kind && this._sql.equals(k._sql)
+                && Arrays.equals(this._params, k._params);
+      }
+   }//end Key
+
+   private static class Entry {
+      private final List<List<String>> _rows;
+      private final Set<String> _tables;
+      private final long _expires;
+      private final long _bytes;
+
+      Entry(List<List<String>> rows, Set<String> tables, long expires, long bytes) {
+         this._rows = rows;
+         this._tables = tables;
+         this._expires = expires;
+         this._bytes = bytes;
+      }
+   }//end Entry
+
+   private final long _maxBytes;
+   private final long _ttlMillis;
+
+   // access ordered map, the eldest entry is the least recently used one
+   private final LinkedHashMap<Key, Entry> _entries =
+      new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+
+   // the cached keys of every table, for invalidation
+   private final Map<String, Set<Key>> _byTable = new HashMap<String, Set<Key>>();
+
+   private long _bytes = 0;
+
+   // bumped by every invalidation; a result read before a write must not
+   // be stored after it
+   private final AtomicLong _epoch = new AtomicLong();
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+   private final AtomicLong _expirations = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+
+   public ResultCache() {
+      this(DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS);
+   }
+
+   /**
+    * Creates a new, empty cache
+    *
+    * @param maxBytes the estimated memory the cached results may take
+    * @param ttlMillis how long a result is kept at most, in milliseconds
+    */
+   public ResultCache(long maxBytes, long ttlMillis) {
+      if (maxBytes < 1)
+         throw new IllegalArgumentException("max bytes must be positive: " + maxBytes);
+      if (ttlMillis < 1)
+         throw new IllegalArgumentException("time to live must be positive: " + ttlMillis);
+      this._maxBytes = maxBytes;
+      this._ttlMillis = ttlMillis;
+   }//end ResultCache
+
+   /**
+    * Method to tell whether the result of a query may be cached.
+    *
+    * @param sql the query
+    * @return false for queries whose result changes without a write
+    */
+   public static boolean isCacheable(String sql) {
+      String lower = sql.toLowerCase();
+      if (!lower.trim().startsWith("select"))
+         return false;
+      for (String word : VOLATILE)
+         if (lower.contains(word))
+            return false;
+      return true;
+   }//end isCacheable
+
+   /**
+    * Method to look up a result.
+    *
+    * @param kind ALL_ROWS or FIRST_ROW
+    * @param sql the query
+    * @param params the parameter values, null for a plain query
+    * @return the rows, which must not be modified, or null on a miss
+    */
+   public synchronized List<List<String>> get(int kind, String sql, Object[] params) {
+      Key key = new Key(kind, sql, params);
+      Entry entry = this._entries.get(key);
+      if (entry == null) {
+         this._misses.incrementAndGet();
+         return null;
+      }//end if
+      if (entry._expires <= System.currentTimeMillis()) {
+         this._entries.remove(key);
+         unlink(key, entry);
+         this._expirations.incrementAndGet();
+         this._misses.incrementAndGet();
+         return null;
+      }//end if
+      this._hits.incrementAndGet();
+      return entry._rows;
+   }//end get
+
+   /**
+    * Method to read the invalidation counter before running a query whose
+    * result will be put in the cache.
+    *
+    * @return the value to pass to put
+    */
+   public long epoch() {
+      return this._epoch.get();
+   }
+
+   /**
+    * Method to store a result.  Nothing is stored when a write was reported
+    * since epoch was read, as the result may already be stale.
+    *
+    * @param kind ALL_ROWS or FIRST_ROW
+    * @param sql the query
+    * @param params the parameter values, null for a plain query
+    * @param rows the result
+    * @param epoch what epoch returned before the query ran
+    * @return the stored rows, which are read only
+    */
+   public List<List<String>> put(int kind, String sql, Object[] params,
+                                 List<List<String>> rows, long epoch) {
+      List<List<String>> copy = new ArrayList<List<String>>(rows.size());
+      long bytes = 64 + 2L * sql.length() + 8L * rows.size();
+      for (List<String> row : rows) {
+         copy.add(Collections.unmodifiableList(row));
+         bytes += 40 + 8L * row.size();
+         for (String value : row)
+            if (value != null)
+               bytes += 40 + 2L * value.length();
+      }//end for
+      List<List<String>> readOnly = Collections.unmodifiableList(copy);
+      if (bytes > this._maxBytes / 4)
+         return readOnly;  // too large to be worth keeping
+
+      Set<String> tables = readTables(sql);
+      Key key = new Key(kind, sql, params);
+      synchronized (this) {
+         if (this._epoch.get() != epoch)
+            return readOnly;
+         Entry old = this._entries.put(key, new Entry(readOnly, tables,
+                                          System.currentTimeMillis() + this._ttlMillis, bytes));
+         if (old != null)
+            unlink(key, old);
+         this._bytes += bytes;
+         for (String table : tables) {
+            Set<Key> keys = this._byTable.get(table);
+            if (keys == null) {
+               keys = new HashSet<Key>();
+               this._byTable.put(table, keys);
+            }//end if
+            keys.add(key);
+         }//end for
+         Iterator<Map.Entry<Key, Entry>> eldest = this._entries.entrySet().iterator();
+         while (this._bytes > this._maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, Entry> e = eldest.next();
+            eldest.remove();
+            unlink(e.getKey(), e.getValue());
+            this._evictions.incrementAndGet();
+         }//end while
+      }//end synchronized
+      return readOnly;
+   }//end put
+
+   /**
+    * Method to report a write statement.  The results that read the
+    * tables it writes are dropped, all results if those tables cannot be
+    * told from the statement.
+    *
+    * @param sql the statement that was run
+    */
+   public void invalidateWrite(String sql) {
+      Set<String> tables = writeTables(sql);
+      if (tables == null)
+         clear();
+      else
+         invalidate(tables.toArray(new String[tables.size()]));
+   }//end invalidateWrite
+
+   /**
+    * Method to drop the results that read any of the given tables.
+    *
+    * @param tables the table names
+    */
+   public synchronized void invalidate(String... tables) {
+      this._epoch.incrementAndGet();
+      for (String table : tables) {
+         Set<Key> keys = this._byTable.remove(table.toLowerCase());
+         if (keys == null)
+            continue;
+         for (Key key : keys) {
+            Entry entry = this._entries.remove(key);
+            if (entry != null) {
+               unlink(key, entry);
+               this._invalidations.incrementAndGet();
+            }//end if
+         }//end for
+      }//end for
+   }//end invalidate
+
+   /**
+    * Method to drop every result.
+    */
+   public synchronized void clear() {
+      this._epoch.incrementAndGet();
+      this._invalidations.addAndGet(this._entries.size());
+      this._entries.clear();
+      this._byTable.clear();
+      this._bytes = 0;
+   }//end clear
+
+   public synchronized int size() {
+      return this._entries.size();
+   }
+
+   /**
+    * @return the estimated memory taken by the cached results, in bytes
+    */
+   public synchronized long getBytes() {
+      return this._bytes;
+   }
+
+   public long getMaxBytes() {
+      return this._maxBytes;
+   }
+
+   public long getHits() {
+      return this._hits.get();
+   }
+
+   public long getMisses() {
+      return this._misses.get();
+   }
+
+   /**
+    * @return the fraction of lookups answered from the cache, 0 if none
+    */
+   public double getHitRatio() {
+      long hits = this._hits.get();
+      long total = hits + this._misses.get();
+      return total == 0 ? 0.0 : (double) hits / total;
+   }//end getHitRatio
+
+   public String toString() {
+      return String.format("entries=%d bytes=%d/%d hits=%d misses=%d hitRatio=%.3f "
+                           + "evictions=%d expirations=%d invalidations=%d", size(),
+                           getBytes(), this._maxBytes, this._hits.get(), this._misses.get(),
+                           getHitRatio(), this._evictions.get(), this._expirations.get(),
+                           this._invalidations.get());
+   }//end toString
+
+   /*
+    * Drops the memory and the table links of an entry that was taken out
+    * of _entries.
+    **/
+   private void unlink(Key key, Entry entry) {
+      this._bytes -= entry._bytes;
+      for (String table : entry._tables) {
+         Set<Key> keys = this._byTable.get(table);
+         if (keys != null && keys.remove(key) && keys.isEmpty())
+            this._byTable.remove(table);
+      }//end for
+   }//end unlink
+
+   /**
+    * Method to find the tables a query reads: the names after FROM and
+    * JOIN, including comma separated FROM lists and subqueries.
+    *
+    * @param sql the query
+    * @return the lower case table names, without schema
+    */
+   public static Set<String> readTables(String sql) {
+      List<String> tokens = tokens(sql);
+      Set<String> tables = new HashSet<String>();
+      for (int i = 0; i < tokens.size(); ++i) {
+         String t = tokens.get(i);
+         if (t.equals("join")) {
+            addTable(tokens, i + 1, tables);
+         }else if (t.equals("from")) {
+            // FROM a x, b y, ... up to the next clause
+            int j = i + 1;
+            while (j < tokens.size()) {
+               addTable(tokens, j, tables);
+               while (j < tokens.size() && !tokens.get(j).equals(",")
+                      && !tokens.get(j).equals("(") && !tokens.get(j).equals(")")
+                      && !CLAUSE_WORDS.contains(tokens.get(j)))
+                  ++j;
+               if (j < tokens.size() && tokens.get(j).equals(","))
+                  ++j;
+               else
+                  break;
+            }//end while
+         }//end if
+      }//end for
+      return tables;
+   }//end readTables
+
+   /**
+    * Method to find the table a write statement changes.
+    *
+    * @param sql an INSERT, UPDATE, DELETE, TRUNCATE or COPY statement
+    * @return the lower case table names, or null when they cannot be told
+    */
+   public static Set<String> writeTables(String sql) {
+      List<String> tokens = tokens(sql);
+      if (tokens.isEmpty())
+         return null;
+      Set<String> tables = new HashSet<String>();
+      String verb = tokens.get(0);
+      int i = 1;
+      if (verb.equals("insert") || verb.equals("delete")) {
+         i = 2;  // INSERT INTO t, DELETE FROM t
+      }else if (verb.equals("truncate")) {
+         if (i < tokens.size() && tokens.get(i).equals("table"))
+            ++i;
+         while (addTable(tokens, i, tables) && i + 1 < tokens.size()
+                && tokens.get(i + 1).equals(","))
+            i += 2;
+         return tables.isEmpty() ? null : tables;
+      }else if (!verb.equals("update") && !verb.equals("copy")) {
+         return null;
+      }//end if
+      if (i < tokens.size() && tokens.get(i).equals("only"))
+         ++i;
+      return addTable(tokens, i, tables) ? tables : null;
+   }//end writeTables
+
+   private static boolean addTable(List<String> tokens, int i, Set<String> tables) {
+      if (i >= tokens.size())
+         return false;
+      String name = tokens.get(i);
+      if (!Character.isLetter(name.charAt(0)) && name.charAt(0) != '_')
+         return false;  // a subquery or a literal
+      if (i + 1 < tokens.size() && tokens.get(i + 1).equals("("))
+         return false;  // a function such as generate_series(...)
+      if (name.equals("only") || name.equals("lateral"))
+         return addTable(tokens, i + 1, tables);
+      tables.add(name.substring(name.lastIndexOf('.') + 1));
+      return true;
+   }//end addTable
+
+   /*
+    * Splits SQL into lower case words (with dots and quotes removed from
+    * names) and single punctuation characters; string literals are left
+    * out.
+    **/
+   private static List<String> tokens(String sql) {
+      List<String> tokens = new ArrayList<String>();
+      int n = sql.length();
+      int i = 0;
+      while (i < n) {
+         char ch = sql.charAt(i);
+         if (Character.isWhitespace(ch)) {
+            ++i;
+         }else if (ch == '\'') {
+            ++i;
+            while (i < n) {
+               if (sql.charAt(i) == '\'' && (i + 1 >= n || sql.charAt(i + 1) != '\''))
+                  break;
+               i += sql.charAt(i) == '\'' ? 2 : 1;
+            }//end while
+            ++i;
+            tokens.add("'");
+         }else if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '"') {
+            StringBuilder word = new StringBuilder();
+            while (i < n) {
+               char c = sql.charAt(i);
+               if (c == '"') {
+                  ++i;
+                  continue;
+               }//end if
+               if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '$')
+                  break;
+               word.append(Character.toLowerCase(c));
+               ++i;
+            }//end while
+            if (word.length() > 0)
+               tokens.add(word.toString());
+         }else {
+            tokens.add(String.valueOf(ch));
+            ++i;
+         }//end if
+      }//end while
+      return tokens;
+   }//end tokens
+}//end ResultCache
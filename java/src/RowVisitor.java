@@ -0,0 +1,29 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Callback used by Cafe.executeQueryStreaming to consume a query result one
+ * row at a time, so that no more than one fetch of rows is held in memory.
+ */
+public interface RowVisitor {
+
+   /**
+    * Method called once before the first row, also when the query
+    * returns no rows.
+    *
+    * @param rsmd the column info of the result
+    * @throws java.sql.SQLException when the metadata cannot be read
+    */
+   void start (ResultSetMetaData rsmd) throws SQLException;
+
+   /**
+    * Method called for every row.  The result set is positioned on the
+    * row and must not be advanced or closed by the visitor.
+    *
+    * @param rs the result set positioned on the current row
+    * @return true to continue with the next row, false to stop reading
+    * @throws java.sql.SQLException when the row cannot be read
+    */
+   boolean visit (ResultSet rs) throws SQLException;
+}//end RowVisitor
@@ -0,0 +1,506 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class keeps and reads the sales rollups: revenue and order counts
+ * per hour and per day in sales_rollup, and how often every item was
+ * ordered per hour and per day in item_sales_rollup (see
+ * sql/src/create_rollups.sql).  Reports read a few hundred of these rows
+ * instead of scanning Orders and ItemStatus.
+ *
+ * The rollups are kept current in the transactions that change the
+ * orders: Cafe.placeOrder adds the order to its hour and day, and the
+ * paid updates move the order between paid and unpaid there.  Rows are
+ * upserted in (grain, bucket, itemName) order, so concurrent transactions
+ * lock them in the same order and cannot deadlock on them.  backfill
+ * rebuilds the rollups of existing orders a day at a time.
+ *
+ * Buckets are the hour and the day of timeStampRecieved, which Cafe writes
+ * in the local time of the client.
+ *
+ * Usage: java SalesRollup &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *        [--from yyyy-mm-dd] [--to yyyy-mm-dd]
+ */
+public class SalesRollup {
+
+   // the grains, named like the date_trunc units
+   public static final String HOUR = "hour";
+   public static final String DAY = "day";
+
+   // the tables the rollups are kept in, for cache invalidation
+   public static final String[] TABLES = { "sales_rollup", "item_sales_rollup" };
+
+   // column names of the rows written by print and printItems
+   public static final String[] COLUMNS =
+      { "bucket", "orders", "revenue", "paidorders", "paidrevenue" };
+   public static final String[] ITEM_COLUMNS = { "itemname", "orders" };
+
+   // upserts of any number of rows: INSERT_ + Cafe.valueRows + ON_CONFLICT_;
+   // the rows of one statement must all have different keys
+   private static final String INSERT_SALES =
+      "INSERT INTO sales_rollup (grain, bucket, orders, revenue, paidOrders, paidRevenue) VALUES ";
+   private static final String ON_CONFLICT_SALES =
+      " ON CONFLICT (grain, bucket) DO UPDATE SET"
+      + " orders = sales_rollup.orders + EXCLUDED.orders,"
+      + " revenue = sales_rollup.revenue + EXCLUDED.revenue,"
+      + " paidOrders = sales_rollup.paidOrders + EXCLUDED.paidOrders,"
+      + " paidRevenue = sales_rollup.paidRevenue + EXCLUDED.paidRevenue";
+
+   private static final String INSERT_ITEM =
+      "INSERT INTO item_sales_rollup (grain, bucket, itemName, orders) VALUES ";
+   private static final String ON_CONFLICT_ITEM =
+      " ON CONFLICT (grain, bucket, itemName) DO UPDATE SET"
+      + " orders = item_sales_rollup.orders + EXCLUDED.orders";
+
+   private static final String REPORT_QUERY =
+      "SELECT bucket, orders, revenue, paidOrders, paidRevenue FROM sales_rollup"
+      + " WHERE grain = ? AND bucket >= ? AND bucket < ? ORDER BY bucket";
+
+   private static final String ITEMS_QUERY =
+      "SELECT itemName, sum(orders) FROM item_sales_rollup"
+      + " WHERE grain = ? AND bucket >= ? AND bucket < ?"
+      + " GROUP BY itemName ORDER BY 2 DESC, itemName LIMIT ?";
+
+   /**
+    * The sales of one hour or day.  Instances are immutable.
+    */
+   public static class Row {
+      private final Timestamp _bucket;
+      private final long _orders;
+      private final double _revenue;
+      private final long _paidOrders;
+      private final double _paidRevenue;
+
+      public Row(Timestamp bucket, long orders, double revenue, long paidOrders,
+                 double paidRevenue) {
+         this._bucket = bucket;
+         this._orders = orders;
+         this._revenue = revenue;
+         this._paidOrders = paidOrders;
+         this._paidRevenue = paidRevenue;
+      }
+
+      public Timestamp getBucket() {
+         return this._bucket;
+      }
+
+      public long getOrders() {
+         return this._orders;
+      }
+
+      public double getRevenue() {
+         return this._revenue;
+      }
+
+      public long getPaidOrders() {
+         return this._paidOrders;
+      }
+
+      public double getPaidRevenue() {
+         return this._paidRevenue;
+      }
+   }//end Row
+
+   /**
+    * How often an item was ordered in a time range.  Instances are
+    * immutable.
+    */
+   public static class ItemRow {
+      private final String _itemName;
+      private final long _orders;
+
+      public ItemRow(String itemName, long orders) {
+         this._itemName = itemName;
+         this._orders = orders;
+      }
+
+      public String getItemName() {
+         return this._itemName;
+      }
+
+      public long getOrders() {
+         return this._orders;
+      }
+   }//end ItemRow
+
+   /**
+    * Orders that changed between unpaid and paid in one transaction,
+    * summed up per hour and day before the rollups are updated.
+    */
+   public static class PaidChanges {
+      private final int _sign;
+      private final Map<Timestamp, double[]> _hours = new TreeMap<Timestamp, double[]>();
+      private final Map<Timestamp, double[]> _days = new TreeMap<Timestamp, double[]>();
+
+      /**
+       * @param paid true for orders that became paid, false for orders
+       *        that became unpaid
+       */
+      public PaidChanges(boolean paid) {
+         this._sign = paid ? 1 : -1;
+      }
+
+      /**
+       * Method to add an order that changed.
+       *
+       * @param timeStampRecieved when the order was received
+       * @param total the total of the order
+       */
+      public void add(Timestamp timeStampRecieved, float total) {
+         sum(this._hours, truncate(timeStampRecieved, HOUR), total);
+         sum(this._days, truncate(timeStampRecieved, DAY), total);
+      }
+
+      /**
+       * Method to move the orders added between paid and unpaid in the
+       * rollups, in the transaction of the connection.
+       *
+       * @param c the connection of the transaction that changed the orders
+       * @throws java.sql.SQLException when the rollups cannot be updated
+       */
+      public void apply(ConnectionPool.PooledConnection c) throws SQLException {
+         if (this._hours.isEmpty())
+            return;
+         PreparedStatement upsert = c.getStatements().prepare(
+            INSERT_SALES + Cafe.valueRows(this._days.size() + this._hours.size(), 6)
+            + ON_CONFLICT_SALES);
+         upsert.clearParameters();
+         // "day" sorts before "hour", as in the primary key
+         int index = bind(upsert, 1, DAY, this._days);
+         bind(upsert, index, HOUR, this._hours);
+         upsert.executeUpdate();
+      }
+
+      private int bind(PreparedStatement upsert, int index, String grain,
+                       Map<Timestamp, double[]> sums) throws SQLException {
+         for (Map.Entry<Timestamp, double[]> e : sums.entrySet()) {
+            upsert.setString(index++, grain);
+            upsert.setTimestamp(index++, e.getKey());
+            upsert.setInt(index++, 0);
+            upsert.setDouble(index++, 0);
+            upsert.setInt(index++, this._sign * (int) e.getValue()[0]);
+            upsert.setDouble(index++, this._sign * e.getValue()[1]);
+         }//end for
+         return index;
+      }
+
+      private static void sum(Map<Timestamp, double[]> sums, Timestamp bucket, float total) {
+         double[] sum = sums.get(bucket);
+         if (sum == null)
+            sums.put(bucket, sum = new double[2]);
+         sum[0] += 1;
+         sum[1] += total;
+      }
+   }//end PaidChanges
+
+   private final Cafe _esql;
+
+   public SalesRollup(Cafe esql) {
+      this._esql = esql;
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println("Usage: java SalesRollup <dbname> <port> <user>"
+                            + " [--from yyyy-mm-dd] [--to yyyy-mm-dd]");
+         System.exit(1);
+      }//end if
+      SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+      date.setLenient(false);
+      Timestamp from = null;
+      Timestamp to = null;
+      Cafe esql = null;
+      try {
+         for (int i = 3; i < args.length; ++i) {
+            if (args[i].equals("--from") && i + 1 < args.length)
+               from = new Timestamp(date.parse(args[++i]).getTime());
+            else if (args[i].equals("--to") && i + 1 < args.length)
+               to = new Timestamp(date.parse(args[++i]).getTime());
+            else
+               throw new IllegalArgumentException("Unknown option: " + args[i]);
+         }//end for
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1], args[2], "");
+         SalesRollup rollup = new SalesRollup(esql);
+         if (from == null)
+            from = rollup.firstOrderDay();
+         if (to == null)
+            to = new Timestamp(System.currentTimeMillis());
+         if (from == null) {
+            System.out.println("No orders to roll up");
+            return;
+         }//end if
+         int days = rollup.backfill(from, to);
+         System.out.println("Rolled up " + days + " days");
+      }catch (ParseException e) {
+         System.err.println("Dates are yyyy-mm-dd: " + e.getMessage());
+         System.exit(1);
+      }catch (Exception e) {
+         System.err.println("Backfill failed: " + e.getMessage());
+         System.exit(1);
+      }finally {
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Method to add a new order to its hour and day, in the transaction
+    * that places it.
+    *
+    * @param c the connection of the transaction that inserts the order
+    * @param order the order
+    * @throws java.sql.SQLException when the rollups cannot be updated
+    */
+   public static void orderPlaced(ConnectionPool.PooledConnection c, Order order)
+      throws SQLException {
+      Timestamp hour = truncate(order.getTimeStampRecieved(), HOUR);
+      Timestamp day = truncate(order.getTimeStampRecieved(), DAY);
+      int paid = order.isPaid() ? 1 : 0;
+      // one statement per table, each with the day row(s) then the hour row(s)
+      PreparedStatement sales = c.getStatements().prepare(
+         INSERT_SALES + Cafe.valueRows(2, 6) + ON_CONFLICT_SALES);
+      sales.clearParameters();
+      int index = 1;
+      for (int i = 0; i < 2; ++i) {
+         sales.setString(index++, i == 0 ? DAY : HOUR);
+         sales.setTimestamp(index++, i == 0 ? day : hour);
+         sales.setInt(index++, 1);
+         sales.setDouble(index++, order.getTotal());
+         sales.setInt(index++, paid);
+         sales.setDouble(index++, paid * order.getTotal());
+      }//end for
+      sales.executeUpdate();
+
+      TreeSet<String> names = new TreeSet<String>();
+      for (MenuItem item : order.getItems())
+         names.add(item.getItemName());
+      PreparedStatement items = c.getStatements().prepare(
+         INSERT_ITEM + Cafe.valueRows(2 * names.size(), 4) + ON_CONFLICT_ITEM);
+      items.clearParameters();
+      index = 1;
+      for (int i = 0; i < 2; ++i) {
+         for (String name : names) {
+            items.setString(index++, i == 0 ? DAY : HOUR);
+            items.setTimestamp(index++, i == 0 ? day : hour);
+            items.setString(index++, name);
+            items.setInt(index++, 1);
+         }//end for
+      }//end for
+      items.executeUpdate();
+   }//end orderPlaced
+
+   /**
+    * Method to rebuild the rollups of the days from one time to another
+    * from Orders and ItemStatus, each day in a transaction of its own.
+    * Orders placed meanwhile are counted once, whichever transaction
+    * commits first.
+    *
+    * @param from a time in the first day to rebuild
+    * @param to a time in the last day to rebuild
+    * @return the number of days rebuilt
+    * @throws java.sql.SQLException when a day cannot be rebuilt
+    */
+   public int backfill(Timestamp from, Timestamp to) throws SQLException {
+      int days = 0;
+      Timestamp day = truncate(from, DAY);
+      while (!day.after(to)) {
+         Timestamp next = nextDay(day);
+         rebuildDay(day, next);
+         ++days;
+         if (days % 30 == 0)
+            System.out.println("rolled up to " + day);
+         day = next;
+      }//end while
+      return days;
+   }//end backfill
+
+   private void rebuildDay(final Timestamp day, final Timestamp next) throws SQLException {
+      this._esql.inTransaction("transaction rollupBackfill", TABLES,
+                               new Cafe.Transaction<Void>() {
+         public Void run(ConnectionPool.PooledConnection c) throws SQLException {
+            execute(c, "DELETE FROM sales_rollup WHERE bucket >= ? AND bucket < ?",
+                    day, next);
+            execute(c, "DELETE FROM item_sales_rollup WHERE bucket >= ? AND bucket < ?",
+                    day, next);
+            for (String grain : new String[] { DAY, HOUR }) {
+               execute(c, "INSERT INTO sales_rollup"
+                       + " (grain, bucket, orders, revenue, paidOrders, paidRevenue)"
+                       + " SELECT ?, date_trunc(?, timeStampRecieved), count(*), sum(total),"
+                       + " sum(CASE WHEN paid THEN 1 ELSE 0 END),"
+                       + " sum(CASE WHEN paid THEN total ELSE 0 END)"
+                       + " FROM Orders WHERE timeStampRecieved >= ? AND timeStampRecieved < ?"
+                       + " GROUP BY 2", grain, grain, day, next);
+               execute(c, "INSERT INTO item_sales_rollup (grain, bucket, itemName, orders)"
+                       + " SELECT ?, date_trunc(?, o.timeStampRecieved), s.itemName, count(*)"
+                       + " FROM Orders o JOIN ItemStatus s ON s.orderid = o.orderid"
+                       + " WHERE o.timeStampRecieved >= ? AND o.timeStampRecieved < ?"
+                       + " GROUP BY 2, 3", grain, grain, day, next);
+            }//end for
+            return null;
+         }
+      });
+   }//end rebuildDay
+
+   /**
+    * Method to read the sales per hour or day of a time range.
+    *
+    * @param grain HOUR or DAY
+    * @param from the start of the range
+    * @param to the end of the range, exclusive
+    * @return the hours or days that had orders, oldest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Row> report(String grain, Timestamp from, Timestamp to) throws SQLException {
+      checkGrain(grain);
+      final List<Row> rows = new ArrayList<Row>();
+      this._esql.executeQueryStreaming(REPORT_QUERY, Cafe.DEFAULT_FETCH_SIZE, new RowVisitor() {
+         public void start(ResultSetMetaData rsmd) {
+         }
+
+         public boolean visit(ResultSet rs) throws SQLException {
+            rows.add(new Row(rs.getTimestamp(1), rs.getLong(2), rs.getDouble(3),
+                             rs.getLong(4), rs.getDouble(5)));
+            return true;
+         }
+      }, grain, truncate(from, grain), to);
+      return Collections.unmodifiableList(rows);
+   }//end report
+
+   /**
+    * Method to read the items ordered most often in a time range.  Ranges
+    * of whole days are read from the daily rows.
+    *
+    * @param from the start of the range
+    * @param to the end of the range, exclusive
+    * @param limit the most items returned
+    * @return the items, most popular first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<ItemRow> popularItems(Timestamp from, Timestamp to, int limit)
+      throws SQLException {
+      String grain = from.equals(truncate(from, DAY)) && to.equals(truncate(to, DAY)) ? DAY : HOUR;
+      final List<ItemRow> rows = new ArrayList<ItemRow>();
+      this._esql.executeQueryAndVisit(ITEMS_QUERY, new RowVisitor() {
+         public void start(ResultSetMetaData rsmd) {
+         }
+
+         public boolean visit(ResultSet rs) throws SQLException {
+            rows.add(new ItemRow(TableRenderer.trimPadding(rs.getString(1)), rs.getLong(2)));
+            return true;
+         }
+      }, grain, truncate(from, grain), to, limit);
+      return Collections.unmodifiableList(rows);
+   }//end popularItems
+
+   /**
+    * Method to write sales rows as a table.
+    *
+    * @param rows the rows
+    * @param out where to write
+    * @param format the output format
+    * @return the number of rows written
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public static int print(List<Row> rows, OutputStream out, TableRenderer.Format format)
+      throws IOException {
+      TableRenderer renderer = new TableRenderer(out, format, TableRenderer.DEFAULT_SAMPLE_ROWS,
+                                                 0, null);
+      renderer.header(COLUMNS);
+      for (Row row : rows)
+         renderer.row(new String[] { String.valueOf(row._bucket), String.valueOf(row._orders),
+                                     String.format("%.2f", row._revenue),
+                                     String.valueOf(row._paidOrders),
+                                     String.format("%.2f", row._paidRevenue) });
+      return renderer.finish();
+   }//end print
+
+   /**
+    * Method to write item rows as a table.
+    *
+    * @param rows the rows
+    * @param out where to write
+    * @param format the output format
+    * @return the number of rows written
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public static int printItems(List<ItemRow> rows, OutputStream out, TableRenderer.Format format)
+      throws IOException {
+      TableRenderer renderer = new TableRenderer(out, format, TableRenderer.DEFAULT_SAMPLE_ROWS,
+                                                 0, null);
+      renderer.header(ITEM_COLUMNS);
+      for (ItemRow row : rows)
+         renderer.row(new String[] { row._itemName, String.valueOf(row._orders) });
+      return renderer.finish();
+   }//end printItems
+
+   /**
+    * Method to cut a time down to the start of its hour or day, in local
+    * time.
+    *
+    * @param time the time
+    * @param grain HOUR or DAY
+    * @return the start of the hour or day
+    */
+   public static Timestamp truncate(Timestamp time, String grain) {
+      checkGrain(grain);
+      Calendar cal = Calendar.getInstance();
+      cal.setTimeInMillis(time.getTime());
+      if (grain.equals(DAY))
+         cal.set(Calendar.HOUR_OF_DAY, 0);
+      cal.set(Calendar.MINUTE, 0);
+      cal.set(Calendar.SECOND, 0);
+      cal.set(Calendar.MILLISECOND, 0);
+      return new Timestamp(cal.getTimeInMillis());
+   }//end truncate
+
+   private static Timestamp nextDay(Timestamp day) {
+      Calendar cal = Calendar.getInstance();
+      cal.setTimeInMillis(day.getTime());
+      cal.add(Calendar.DAY_OF_MONTH, 1);
+      return new Timestamp(cal.getTimeInMillis());
+   }
+
+   private Timestamp firstOrderDay() throws SQLException {
+      final Timestamp[] first = new Timestamp[1];
+      this._esql.executeQueryAndVisit("SELECT min(timeStampRecieved) FROM Orders",
+                                      new RowVisitor() {
+         public void start(ResultSetMetaData rsmd) {
+         }
+
+         public boolean visit(ResultSet rs) throws SQLException {
+            first[0] = rs.getTimestamp(1);
+            return false;
+         }
+      });
+      return first[0];
+   }//end firstOrderDay
+
+   private static void checkGrain(String grain) {
+      if (!HOUR.equals(grain) && !DAY.equals(grain))
+         throw new IllegalArgumentException("grain must be hour or day: " + grain);
+   }
+
+   private static void execute(ConnectionPool.PooledConnection c, String sql, Object... params)
+      throws SQLException {
+      PreparedStatement stmt = c.getStatements().prepare(sql);
+      stmt.clearParameters();
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      stmt.executeUpdate();
+   }//end execute
+}//end SalesRollup
@@ -0,0 +1,408 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class migrates an existing Cafe database to the compact schema of
+ * create_tables.sql: the blank padded char(n) columns become varchar(n)
+ * (text for the long free-form ones), and the comma separated
+ * Users.favItems lists are copied into rows of favoriteItem.
+ *
+ * The migration is a list of steps recorded in a schema_migrations table,
+ * so it can be stopped at any point and run again to resume:
+ *
+ * - each table is converted by one ALTER TABLE in its own transaction,
+ *   which rewrites the table and its indexes once.  The rewrite holds an
+ *   ACCESS EXCLUSIVE lock on the table until it commits, so every session
+ *   using the table waits for the whole rewrite, which for Orders and
+ *   ItemStatus is not short: run the migration when the cafe is quiet.
+ *   Only the wait for the lock is bounded: it is requested with a
+ *   lock_timeout and retried, so a long running query delays the step
+ *   instead of queueing every other session behind it;
+ * - orders_orderid_seq is set to count by OrderIdAllocator.DEFAULT_BLOCK_SIZE,
+ *   so Cafe reserves order ids in blocks; processes started before keep
+ *   taking one id per nextval, which stays unique;
+ * - favorites are copied in batches of users in key order, each batch in
+ *   one transaction together with the last login it covered.
+ *
+ * Users.favItems is left in place for the Cafe versions that still read
+ * it.  Table and index sizes are recorded before the first step and
+ * reported against the current ones at the end of every run.
+ *
+ * Usage: java SchemaMigration &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [--batch n]
+ *        [--lock-timeout ms] [--retries n] [--report]
+ */
+public class SchemaMigration {
+
+   public static final int DEFAULT_BATCH = 1000;
+   public static final int DEFAULT_LOCK_TIMEOUT_MILLIS = 2000;
+   public static final int DEFAULT_RETRIES = 30;
+
+   // SQLSTATE of lock_not_available, raised when lock_timeout expires
+   private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+   private static final String FAVORITES_STEP = "copy favorites";
+
+   // the tables converted, referenced ones first, with their new column types
+   private static final String[][][] CONVERSIONS = {
+      { { "Users" }, { "login", "varchar(50)" }, { "phoneNum", "varchar(16)" },
+        { "password", "varchar(50)" }, { "favItems", "text" }, { "type", "varchar(8)" } },
+      { { "Menu" }, { "itemName", "varchar(50)" }, { "type", "varchar(20)" },
+        { "description", "text" }, { "imageURL", "text" } },
+      { { "Orders" }, { "login", "varchar(50)" } },
+      { { "ItemStatus" }, { "itemName", "varchar(50)" }, { "status", "varchar(20)" },
+        { "comments", "varchar(130)" } },
+      { { "placesOrder" }, { "itemName", "varchar(50)" } },
+      { { "favoriteItem" }, { "login", "varchar(50)" }, { "itemName", "varchar(50)" } },
+      { { "ManagerUser" }, { "Managerlogin", "varchar(50)" } },
+      { { "EmployeeUser" }, { "Employeelogin", "varchar(50)" } },
+      { { "Modifies" }, { "Employeelogin", "varchar(50)" }, { "Managerlogin", "varchar(50)" },
+        { "itemName", "varchar(50)" } },
+      { { "Updates" }, { "login", "varchar(50)" }, { "itemName", "varchar(50)" } },
+      { { "setsType" }, { "login", "varchar(50)" }, { "Managerlogin", "varchar(50)" } },
+      { { "orderHistory" }, { "login", "varchar(50)" } },
+      { { "views" }, { "login", "varchar(50)" }, { "itemName", "varchar(50)" } }
+   };
+
+   private final Cafe _esql;
+   private int _batch = DEFAULT_BATCH;
+   private int _lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
+   private int _retries = DEFAULT_RETRIES;
+
+   /**
+    * Creates a new migration of the database Cafe is connected to
+    *
+    * @param esql the database to migrate
+    */
+   public SchemaMigration(Cafe esql) {
+      this._esql = esql;
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println("Usage: java SchemaMigration <dbname> <port> <user> [--batch n]"
+                            + " [--lock-timeout ms] [--retries n] [--report]");
+         System.exit(1);
+      }//end if
+      Cafe esql = null;
+      try {
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1], args[2], "");
+         SchemaMigration migration = new SchemaMigration(esql);
+         boolean reportOnly = false;
+         for (int i = 3; i < args.length; ++i) {
+            if (args[i].equals("--batch") && i + 1 < args.length)
+               migration._batch = Math.max(1, Integer.parseInt(args[++i]));
+            else if (args[i].equals("--lock-timeout") && i + 1 < args.length)
+               migration._lockTimeoutMillis = Math.max(1, Integer.parseInt(args[++i]));
+            else if (args[i].equals("--retries") && i + 1 < args.length)
+               migration._retries = Math.max(0, Integer.parseInt(args[++i]));
+            else if (args[i].equals("--report"))
+               reportOnly = true;
+            else
+               throw new IllegalArgumentException("Unknown option: " + args[i]);
+         }//end for
+         if (!reportOnly)
+            migration.migrate();
+         migration.report();
+      }catch (Exception e) {
+         System.err.println("Migration failed: " + e.getMessage());
+         System.err.println("Run it again to resume from the last finished step.");
+         System.exit(1);
+      }finally {
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Method to run the steps that did not finish yet, in order.
+    *
+    * @throws java.sql.SQLException when a step failed; the finished steps
+    *         stay recorded
+    * @throws InterruptedException when interrupted while waiting for a lock
+    */
+   public void migrate() throws SQLException, InterruptedException {
+      this._esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_migrations("
+                               + "step varchar(64) PRIMARY KEY, position varchar(64),"
+                               + " finishedAt timestamp)");
+      this._esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_migration_sizes("
+                               + "relname varchar(64) PRIMARY KEY, tableBytes bigint NOT NULL,"
+                               + " indexBytes bigint NOT NULL)");
+      // sizes before the first step; a resumed run keeps the recorded ones
+      this._esql.executeUpdate("INSERT INTO schema_migration_sizes (relname, tableBytes, indexBytes)"
+                               + " SELECT c.relname, pg_table_size(c.oid), pg_indexes_size(c.oid)"
+                               + sizeSource() + " AND NOT EXISTS (SELECT 1 FROM"
+                               + " schema_migration_sizes s WHERE s.relname = c.relname)");
+
+      for (String[][] conversion : CONVERSIONS)
+         convert(conversion);
+      blockOrderIds();
+      dropFavoriteUnique();
+      copyFavorites();
+   }//end migrate
+
+   /**
+    * Method to print the table and index sizes recorded before the first
+    * step next to the current ones.
+    *
+    * @throws java.sql.SQLException when the sizes cannot be read
+    */
+   public void report() throws SQLException {
+      Map<String, long[]> before = new LinkedHashMap<String, long[]>();
+      if (this._esql.exists("SELECT 1 FROM pg_class WHERE relname = 'schema_migration_sizes'")) {
+         for (List<String> row : this._esql.executeQueryAndReturnResult(
+                 "SELECT relname, tableBytes, indexBytes FROM schema_migration_sizes"))
+            before.put(row.get(0), new long[] { Long.parseLong(row.get(1)),
+                                                Long.parseLong(row.get(2)) });
+      }//end if
+      List<List<String>> now = this._esql.executeQueryAndReturnResult(
+         "SELECT c.relname, pg_table_size(c.oid), pg_indexes_size(c.oid)" + sizeSource()
+         + " ORDER BY pg_total_relation_size(c.oid) DESC");
+
+      System.out.printf("%-14s %12s %12s %12s %12s%n", "table", "heap KB", "was", "index KB",
+                        "was");
+      long[] totals = new long[4];
+      for (List<String> row : now) {
+         long table = Long.parseLong(row.get(1));
+         long index = Long.parseLong(row.get(2));
+         long[] was = before.get(row.get(0));
+         if (was == null)
+            was = new long[] { table, index };
+         System.out.printf("%-14s %12d %12d %12d %12d%n", row.get(0), table / 1024,
+                           was[0] / 1024, index / 1024, was[1] / 1024);
+         totals[0] += table;
+         totals[1] += was[0];
+         totals[2] += index;
+         totals[3] += was[1];
+      }//end for
+      System.out.printf("%-14s %12d %12d %12d %12d%n", "total", totals[0] / 1024,
+                        totals[1] / 1024, totals[2] / 1024, totals[3] / 1024);
+   }//end report
+
+   /*
+    * Converts the columns of one table that are still char(n), if any,
+    * with a single ALTER TABLE.
+    **/
+   private void convert(String[][] conversion) throws SQLException, InterruptedException {
+      String table = conversion[0][0];
+      String step = "convert " + table;
+      if (isFinished(step))
+         return;
+      Set<String> padded = new LinkedHashSet<String>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+              "SELECT column_name FROM information_schema.columns"
+              + " WHERE table_schema = current_schema() AND table_name = ?"
+              + " AND data_type = 'character'", table.toLowerCase()))
+         padded.add(row.get(0));
+
+      StringBuilder alter = new StringBuilder("ALTER TABLE " + table);
+      int columns = 0;
+      for (int i = 1; i < conversion.length; ++i) {
+         String column = conversion[i][0];
+         if (!padded.contains(column.toLowerCase()))
+            continue;
+         alter.append(columns++ == 0 ? " " : ", ").append("ALTER COLUMN ").append(column)
+              .append(" TYPE ").append(conversion[i][1]).append(" USING rtrim(")
+              .append(column).append(')');
+      }//end for
+      System.out.println(step + ": " + (columns == 0 ? "nothing to do" : columns + " column(s)"));
+      runStep(step, columns == 0 ? new String[0] : new String[] { alter.toString() });
+   }//end convert
+
+   /*
+    * Databases created before order ids were reserved in blocks have the
+    * sequence counting by one.
+    **/
+   private void blockOrderIds() throws SQLException, InterruptedException {
+      String step = "order id blocks";
+      if (isFinished(step))
+         return;
+      System.out.println(step + ": increment by " + OrderIdAllocator.DEFAULT_BLOCK_SIZE);
+      runStep(step, new String[] { "ALTER SEQUENCE " + OrderIdAllocator.ORDER_SEQUENCE
+                                   + " INCREMENT BY " + OrderIdAllocator.DEFAULT_BLOCK_SIZE });
+   }//end blockOrderIds
+
+   /*
+    * favoriteItem was created with UNIQUE(login), which allows a single
+    * favorite per user.
+    **/
+   private void dropFavoriteUnique() throws SQLException, InterruptedException {
+      String step = "drop favoriteItem unique login";
+      if (isFinished(step))
+         return;
+      List<String> drops = new ArrayList<String>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+              "SELECT conname FROM pg_constraint"
+              + " WHERE conrelid = 'favoriteitem'::regclass AND contype = 'u'"))
+         drops.add("ALTER TABLE favoriteItem DROP CONSTRAINT " + row.get(0));
+      System.out.println(step + ": " + drops.size() + " constraint(s)");
+      runStep(step, drops.toArray(new String[drops.size()]));
+   }//end dropFavoriteUnique
+
+   /*
+    * Copies Users.favItems into favoriteItem, one batch of users per
+    * transaction.  Names that are not on the menu are skipped, as the
+    * foreign key requires.
+    **/
+   private void copyFavorites() throws SQLException {
+      if (isFinished(FAVORITES_STEP))
+         return;
+      List<String> position = this._esql.lookup(
+         "SELECT position FROM schema_migrations WHERE step = ?", FAVORITES_STEP);
+      String after = position == null || position.get(0) == null ? "" : position.get(0);
+      long users = 0;
+      long copied = 0;
+      while (true) {
+         final List<List<String>> rows = this._esql.executeQueryAndReturnResult(
+            "SELECT rtrim(login), favItems FROM Users WHERE login > ?"
+            + " AND favItems IS NOT NULL AND rtrim(favItems) <> ''"
+            + " ORDER BY login LIMIT ?", after, this._batch);
+         if (rows.isEmpty())
+            break;
+         final String last = rows.get(rows.size() - 1).get(0);
+         copied += this._esql.inTransaction("transaction " + FAVORITES_STEP,
+                                            new String[] { "favoriteItem", "schema_migrations" },
+                                            new Cafe.Transaction<Integer>() {
+            public Integer run(ConnectionPool.PooledConnection c) throws SQLException {
+               PreparedStatement insert = c.getStatements().prepare(
+                  "INSERT INTO favoriteItem (login, itemName)"
+                  + " SELECT ?, itemName FROM Menu WHERE itemName = ?"
+                  + " AND NOT EXISTS (SELECT 1 FROM favoriteItem WHERE login = ? AND itemName = ?)");
+               try {
+                  for (List<String> row : rows) {
+                     for (String item : favorites(row.get(1))) {
+                        insert.setString(1, row.get(0));
+                        insert.setString(2, item);
+                        insert.setString(3, row.get(0));
+                        insert.setString(4, item);
+                        insert.addBatch();
+                     }//end for
+                  }//end for
+                  int inserted = 0;
+                  for (int count : insert.executeBatch())
+                     inserted += Math.max(0, count);
+                  savePosition(c, FAVORITES_STEP, last);
+                  return inserted;
+               }finally {
+                  insert.clearBatch();
+               }//end try
+            }
+         });
+         users += rows.size();
+         after = last;
+         System.out.println(FAVORITES_STEP + ": " + users + " users, " + copied
+                            + " favorites, up to " + after);
+      }//end while
+      runStepQuietly(FAVORITES_STEP);
+   }//end copyFavorites
+
+   /*
+    * Runs DDL statements and records the step as finished in one
+    * transaction, retrying while the locks are not granted in time.
+    **/
+   private void runStep(final String step, final String[] statements)
+      throws SQLException, InterruptedException {
+      for (int attempt = 0; ; ++attempt) {
+         try {
+            this._esql.inTransaction("transaction migrate", null, new Cafe.Transaction<Void>() {
+               public Void run(ConnectionPool.PooledConnection c) throws SQLException {
+                  Statement stmt = c.getConnection().createStatement();
+                  try {
+                     stmt.execute("SET LOCAL lock_timeout = " + _lockTimeoutMillis);
+                     for (String sql : statements)
+                        stmt.execute(sql);
+                  }finally {
+                     stmt.close();
+                  }//end try
+                  savePosition(c, step, null);
+                  finish(c, step);
+                  return null;
+               }
+            });
+            return;
+         }catch (SQLException e) {
+            if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || attempt >= this._retries)
+               throw e;
+            System.out.println(step + ": tables busy, retrying");
+            Thread.sleep(Math.min(10000, 250L << Math.min(attempt, 6)));
+         }//end try
+      }//end for
+   }//end runStep
+
+   private void runStepQuietly(final String step) throws SQLException {
+      this._esql.inTransaction("transaction migrate", new String[] { "schema_migrations" },
+                               new Cafe.Transaction<Void>() {
+         public Void run(ConnectionPool.PooledConnection c) throws SQLException {
+            savePosition(c, step, null);
+            finish(c, step);
+            return null;
+         }
+      });
+   }//end runStepQuietly
+
+   private boolean isFinished(String step) throws SQLException {
+      boolean finished = this._esql.exists(
+         "SELECT 1 FROM schema_migrations WHERE step = ? AND finishedAt IS NOT NULL", step);
+      if (finished)
+         System.out.println(step + ": done before");
+      return finished;
+   }//end isFinished
+
+   /*
+    * Records the step, and its position unless null.
+    **/
+   private static void savePosition(ConnectionPool.PooledConnection c, String step,
+                                    String position) throws SQLException {
+      PreparedStatement insert = c.getStatements().prepare(
+         "INSERT INTO schema_migrations (step) SELECT ?"
+         + " WHERE NOT EXISTS (SELECT 1 FROM schema_migrations WHERE step = ?)");
+      insert.setString(1, step);
+      insert.setString(2, step);
+      insert.executeUpdate();
+      if (position == null)
+         return;
+      PreparedStatement update = c.getStatements().prepare(
+         "UPDATE schema_migrations SET position = ? WHERE step = ?");
+      update.setString(1, position);
+      update.setString(2, step);
+      update.executeUpdate();
+   }//end savePosition
+
+   private static void finish(ConnectionPool.PooledConnection c, String step)
+      throws SQLException {
+      PreparedStatement update = c.getStatements().prepare(
+         "UPDATE schema_migrations SET finishedAt = now() WHERE step = ?");
+      update.setString(1, step);
+      update.executeUpdate();
+   }//end finish
+
+   /*
+    * Splits a favItems list, dropping blanks and repeats.
+    **/
+   private static Set<String> favorites(String list) {
+      Set<String> items = new LinkedHashSet<String>();
+      for (String item : list.split(","))
+         if (!item.trim().isEmpty())
+            items.add(item.trim());
+      return items;
+   }//end favorites
+
+   // FROM and WHERE of the size queries, over the converted tables
+   private static String sizeSource() {
+      StringBuilder names = new StringBuilder();
+      for (String[][] conversion : CONVERSIONS) {
+         names.append(names.length() == 0 ? "'" : ", '");
+         names.append(conversion[0][0].toLowerCase()).append('\'');
+      }//end for
+      return " FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace"
+             + " WHERE c.relkind = 'r' AND n.nspname = current_schema()"
+             + " AND c.relname IN (" + names + ")";
+   }//end sizeSource
+}//end SchemaMigration
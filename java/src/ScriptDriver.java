@@ -0,0 +1,186 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs Cafe without the keyboard menus: it replays command
+ * scripts (see CafeCommands for the format) against the business methods,
+ * one thread per script stream, and reports per-operation latency, the
+ * overall throughput and the per-query metrics at the end.
+ *
+ * Every stream runs in a session of its own and borrows connections from
+ * the shared pool, so the pool should allow one connection per stream.
+ */
+public class ScriptDriver {
+
+   /*
+    * Latencies of one operation across every stream.
+    **/
+   private static class OpStats {
+      private long[] _nanos = new long[1024];
+      private int _count = 0;
+      private long _errors = 0;
+
+      synchronized void record(long nanos, boolean ok) {
+         if (!ok) {
+            ++this._errors;
+            return;
+         }//end if
+         if (this._count == this._nanos.length)
+            this._nanos = Arrays.copyOf(this._nanos, this._count * 2);
+         this._nanos[this._count++] = nanos;
+      }
+
+      synchronized long[] sorted() {
+         long[] copy = Arrays.copyOf(this._nanos, this._count);
+         Arrays.sort(copy);
+         return copy;
+      }
+   }//end OpStats
+
+   private final Cafe _esql;
+   private final CafeCommands _commands;
+   private final boolean _verbose;
+   private final PrintStream _out;
+   private final Map<String, OpStats> _stats = new TreeMap<String, OpStats>();
+   private final AtomicLong _operations = new AtomicLong();
+
+   /**
+    * Creates a new driver
+    *
+    * @param esql the database the scripts run against
+    * @param verbose whether to print the outcome of every command
+    * @param out where the outcomes and the report are written
+    */
+   public ScriptDriver(Cafe esql, boolean verbose, PrintStream out) {
+      this._esql = esql;
+      this._commands = new CafeCommands(esql);
+      this._verbose = verbose;
+      this._out = out;
+   }//end ScriptDriver
+
+   /**
+    * Method to replay scripts and print the report.  Every script is run
+    * by the given number of concurrent streams.
+    *
+    * @param scripts the script files
+    * @param streamsPerScript the number of concurrent streams per script
+    * @throws IOException when a script cannot be read
+    * @throws InterruptedException when interrupted while waiting for streams
+    */
+   public void run(List<String> scripts, int streamsPerScript)
+      throws IOException, InterruptedException {
+      // parse up front so file reading is not part of the timings
+      List<List<CafeCommands.Command>> parsed = new ArrayList<List<CafeCommands.Command>>();
+      for (String script : scripts)
+         parsed.add(readScript(script));
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int s = 0; s < scripts.size(); ++s) {
+         for (int n = 0; n < streamsPerScript; ++n) {
+            final List<CafeCommands.Command> commands = parsed.get(s);
+            final String name = scripts.get(s) + "#" + (n + 1);
+            threads.add(new Thread(new Runnable() {
+               public void run() {
+                  runStream(name, commands);
+               }
+            }, "cafe-script-" + name));
+         }//end for
+      }//end for
+
+      long start = System.nanoTime();
+      for (Thread t : threads)
+         t.start();
+      for (Thread t : threads)
+         t.join();
+      long elapsed = System.nanoTime() - start;
+      report(threads.size(), elapsed);
+   }//end run
+
+   private void runStream(String name, List<CafeCommands.Command> commands) {
+      CafeCommands.Session session = new CafeCommands.Session();
+      for (CafeCommands.Command cmd : commands) {
+         long start = System.nanoTime();
+         boolean ok = true;
+         String outcome;
+         try {
+            outcome = this._commands.execute(cmd, session);
+         }catch (Exception e) {
+            ok = false;
+            outcome = "ERROR " + e.getMessage();
+         }//end try
+         stats(cmd.getOp()).record(System.nanoTime() - start, ok);
+         this._operations.incrementAndGet();
+         if (this._verbose || !ok)
+            this._out.println(name + " " + cmd.getOp() + ": " + outcome);
+      }//end for
+   }//end runStream
+
+   private synchronized OpStats stats(String op) {
+      OpStats stats = this._stats.get(op);
+      if (stats == null) {
+         stats = new OpStats();
+         this._stats.put(op, stats);
+      }//end if
+      return stats;
+   }//end stats
+
+   private synchronized void report(int streams, long elapsedNanos) {
+      double seconds = elapsedNanos / 1e9;
+      this._out.println();
+      this._out.printf("%d stream(s), %d operation(s) in %.3f s: %.1f ops/s%n",
+                       streams, this._operations.get(), seconds,
+                       this._operations.get() / Math.max(seconds, 1e-9));
+      this._out.printf("%-12s %8s %7s %10s %10s %10s %10s %10s%n", "operation", "count",
+                       "errors", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms");
+      for (Map.Entry<String, OpStats> e : this._stats.entrySet()) {
+         long[] nanos = e.getValue().sorted();
+         long total = 0;
+         for (long n : nanos)
+            total += n;
+         this._out.printf("%-12s %8d %7d %10.3f %10.3f %10.3f %10.3f %10.3f%n", e.getKey(),
+                          nanos.length, e.getValue()._errors,
+                          nanos.length == 0 ? 0.0 : total / 1e6 / nanos.length,
+                          percentile(nanos, 0.50), percentile(nanos, 0.95),
+                          percentile(nanos, 0.99), percentile(nanos, 1.0));
+      }//end for
+      this._out.println();
+      this._esql.printStatistics(this._out);
+   }//end report
+
+   private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0.0;
+      int i = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+   }//end percentile
+
+   private static List<CafeCommands.Command> readScript(String file) throws IOException {
+      List<CafeCommands.Command> commands = new ArrayList<CafeCommands.Command>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         int lineNo = 0;
+         while ((line = reader.readLine()) != null) {
+            ++lineNo;
+            try {
+               CafeCommands.Command cmd = CafeCommands.parse(line);
+               if (cmd != null)
+                  commands.add(cmd);
+            }catch (IllegalArgumentException e) {
+               throw new IOException(file + ":" + lineNo + ": " + e.getMessage());
+            }//end try
+         }//end while
+      }finally {
+         reader.close();
+      }//end try
+      return commands;
+   }//end readScript
+}//end ScriptDriver
@@ -0,0 +1,169 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of PreparedStatement
+ * objects for a single physical connection.  Statements are keyed by their
+ * SQL text, so every call that uses the same parameterized query reuses the
+ * statement (and the server side plan) instead of re-parsing it.
+ *
+ * A cache belongs to exactly one connection and is not meant to be shared
+ * between threads that use the connection at the same time.
+ */
+public class StatementCache {
+
+   // default number of statements kept open per connection
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // the connection the cached statements were prepared on
+   private final Connection _connection;
+
+   // the maximum number of statements kept open
+   private final int _capacity;
+
+   // access ordered map, the eldest entry is the least recently used one
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   // hit and miss counters, read by other threads when reporting
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * Creates a new statement cache for the given connection
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      if (capacity < 1)
+         throw new IllegalArgumentException("capacity must be positive: " + capacity);
+      this._connection = connection;
+      this._capacity = capacity;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Method to look up the prepared statement for a SQL string.  On a miss
+    * the statement is prepared on the connection and, if the cache is full,
+    * the least recently used statement is closed and dropped.
+    *
+    * @param sql the parameterized SQL string
+    * @return an open prepared statement for the SQL string
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null) {
+         this._hits.incrementAndGet();
+         return stmt;
+      }//end if
+
+      this._misses.incrementAndGet();
+      stmt = this._connection.prepareStatement(sql);
+      useServerPrepare(stmt);
+      this._statements.put(sql, stmt);
+      if (this._statements.size() > this._capacity) {
+         Iterator<Map.Entry<String, PreparedStatement>> eldest =
+            this._statements.entrySet().iterator();
+         closeQuietly(eldest.next().getValue());
+         eldest.remove();
+         this._evictions.incrementAndGet();
+      }//end if
+      return stmt;
+   }//end prepare
+
+   /**
+    * Method to drop a statement from the cache, for example after it failed
+    * in a way that may have left it unusable.
+    *
+    * @param sql the SQL string of the statement to drop
+    */
+   public void invalidate(String sql) {
+      PreparedStatement stmt = this._statements.remove(sql);
+      if (stmt != null)
+         closeQuietly(stmt);
+   }//end invalidate
+
+   /**
+    * Method to close every cached statement.
+    */
+   public void clear() {
+      for (PreparedStatement stmt : this._statements.values())
+         closeQuietly(stmt);
+      this._statements.clear();
+   }//end clear
+
+   public int size() {
+      return this._statements.size();
+   }
+
+   public int getCapacity() {
+      return this._capacity;
+   }
+
+   public long getHits() {
+      return this._hits.get();
+   }
+
+   public long getMisses() {
+      return this._misses.get();
+   }
+
+   public long getEvictions() {
+      return this._evictions.get();
+   }
+
+   /**
+    * Method to report the share of lookups that reused a prepared statement
+    *
+    * @return the hit ratio between 0 and 1, or 0 before the first lookup
+    */
+   public double getHitRatio() {
+      long hits = this._hits.get();
+      long total = hits + this._misses.get();
+      return total == 0 ? 0.0 : (double) hits / total;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("statements=%d/%d hits=%d misses=%d evictions=%d hitRatio=%.3f",
+                           size(), this._capacity, getHits(), getMisses(), getEvictions(),
+                           getHitRatio());
+   }
+
+   /*
+    * Asks the driver to prepare the statement on the server on its first
+    * execution.  The bundled 7.3 driver calls this setUseServerPrepare, newer
+    * drivers use a prepare threshold; drivers with neither keep their default.
+    **/
+   private static void useServerPrepare(PreparedStatement stmt) {
+      try{
+         Method m = stmt.getClass().getMethod("setPrepareThreshold", int.class);
+         m.invoke(stmt, 1);
+         return;
+      }catch (Exception e){
+         // not a newer driver, try the 7.3 API below.
+      }//end try
+      try{
+         Method m = stmt.getClass().getMethod("setUseServerPrepare", boolean.class);
+         m.invoke(stmt, Boolean.TRUE);
+      }catch (Exception e){
+         // ignored, the statement is still usable without server prepare.
+      }//end try
+   }//end useServerPrepare
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+}//end StatementCache
@@ -0,0 +1,531 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a live, in-memory view of the open orders (orders of the
+ * last day with an item that is not finished) for the kitchen and counter.
+ *
+ * The view is read once when the board starts.  After that the board
+ * LISTENs on the cafe_orders channel, which the triggers of
+ * create_triggers.sql notify on every change to Orders or ItemStatus, and
+ * re-reads only the orders named in order_events since the last event it
+ * applied.  No query runs while nothing changes, and a lost connection
+ * loses no change: the events are read again from where the board stopped.
+ * Event ids come from a sequence, so a transaction can commit an id below
+ * one already read; ids skipped over are kept as gaps and read again until
+ * they show up or are older than GAP_MILLIS, the longest transaction that
+ * is waited for.  Orders leave the board once they are older than
+ * OPEN_MILLIS, checked on every poll, and events older than a day are
+ * pruned every PRUNE_MILLIS.
+ *
+ * Drivers that can wait for notifications (getNotifications(timeout)) are
+ * used that way; older drivers, such as the bundled 7.3 one, only see
+ * notifications after a statement, so the listener sends an empty query
+ * on its own connection every poll interval instead.
+ */
+public class StatusBoard {
+
+   public static final String CHANNEL = "cafe_orders";
+   public static final String ITEM_STATUS_DONE = "Finished";
+   public static final long DEFAULT_POLL_MILLIS = 250;
+   public static final long GAP_MILLIS = 60 * 1000;
+   public static final long PRUNE_MILLIS = 10 * 60 * 1000;
+   public static final long OPEN_MILLIS = 24L * 60 * 60 * 1000;
+
+   // the most gaps remembered; the oldest are given up beyond this
+   private static final int MAX_GAPS = 1000;
+
+   // orders refreshed per query; id lists are padded to one of these sizes
+   // so the statement cache sees a handful of SQL strings
+   private static final int[] BATCH_SIZES = { 1, 8, 32, 128 };
+
+   private static final String ORDER_COLUMNS =
+      "SELECT o.orderid, o.login, o.paid, o.timeStampRecieved, o.total, i.itemName, i.status"
+      + " FROM Orders o JOIN ItemStatus i ON i.orderid = o.orderid";
+
+   /**
+    * Called after the board changed, on the listener thread.
+    */
+   public interface Listener {
+      void boardChanged (StatusBoard board);
+   }
+
+   /**
+    * An open order and the status of its items.
+    */
+   public static class OpenOrder {
+      private final int _orderid;
+      private final String _login;
+      private final boolean _paid;
+      private final Timestamp _received;
+      private final float _total;
+      private final Map<String, String> _items = new LinkedHashMap<String, String>();
+
+      OpenOrder(int orderid, String login, boolean paid, Timestamp received, float total) {
+         this._orderid = orderid;
+         this._login = login;
+         this._paid = paid;
+         this._received = received;
+         this._total = total;
+      }
+
+      public int getOrderid() {
+         return this._orderid;
+      }
+
+      public String getLogin() {
+         return this._login;
+      }
+
+      public boolean isPaid() {
+         return this._paid;
+      }
+
+      public Timestamp getReceived() {
+         return this._received;
+      }
+
+      public float getTotal() {
+         return this._total;
+      }
+
+      /**
+       * @return the status of every item, by item name
+       */
+      public Map<String, String> getItems() {
+         return Collections.unmodifiableMap(this._items);
+      }
+
+      boolean isFinished() {
+         for (String status : this._items.values())
+            if (!ITEM_STATUS_DONE.equals(status))
+               return false;
+         return true;
+      }
+   }//end OpenOrder
+
+   private final Cafe _esql;
+   private final long _pollMillis;
+   private final ConcurrentHashMap<Integer, OpenOrder> _orders =
+      new ConcurrentHashMap<Integer, OpenOrder>();
+   private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+
+   // the last order_events row applied
+   private long _lastEvent = 0;
+   // event ids below _lastEvent not seen yet, and when they were first missed
+   private TreeMap<Long, Long> _gaps = new TreeMap<Long, Long>();
+   private long _pruned = 0;
+
+   private Connection _listen = null;
+   private Method _waitForNotifications = null;
+   private Method _getNotifications = null;
+   private Thread _thread = null;
+   private volatile boolean _running = false;
+
+   private final AtomicLong _notifications = new AtomicLong();
+   private final AtomicLong _events = new AtomicLong();
+   private final AtomicLong _refreshes = new AtomicLong();
+
+   public StatusBoard(Cafe esql) {
+      this(esql, DEFAULT_POLL_MILLIS);
+   }
+
+   /**
+    * Creates a new board; call start to fill and follow it
+    *
+    * @param esql the database the orders live in
+    * @param pollMillis the longest wait for a notification
+    */
+   public StatusBoard(Cafe esql, long pollMillis) {
+      this._esql = esql;
+      this._pollMillis = pollMillis;
+   }//end StatusBoard
+
+   public void addListener(Listener listener) {
+      this._listeners.add(listener);
+   }
+
+   /**
+    * Method to read the open orders and start following changes.
+    *
+    * @throws java.sql.SQLException when the orders cannot be read or the
+    *         change feed of create_triggers.sql is missing
+    */
+   public synchronized void start() throws SQLException {
+      if (this._running)
+         return;
+      listen();
+      prune();
+      // take the event position first, so changes made while seeding are
+      // applied again rather than missed
+      final long[] last = { 0 };
+      this._esql.executeQueryAndVisit("SELECT max(eventid) FROM order_events",
+                                      new RowVisitor() {
+         public void start(ResultSetMetaData rsmd) {
+         }
+
+         public boolean visit(ResultSet rs) throws SQLException {
+            last[0] = rs.getLong(1);
+            return false;
+         }
+      });
+      this._lastEvent = last[0];
+      this._gaps.clear();
+      seed();
+
+      this._running = true;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            follow();
+         }
+      }, "cafe-status-board");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Method to stop following changes and close the listening connection.
+    */
+   public synchronized void stop() {
+      this._running = false;
+      if (this._thread != null) {
+         this._thread.interrupt();
+         this._thread = null;
+      }//end if
+      closeListen();
+   }//end stop
+
+   /**
+    * Method to copy the open orders.
+    *
+    * @return the open orders, oldest first
+    */
+   public List<OpenOrder> getOpenOrders() {
+      List<OpenOrder> orders = new ArrayList<OpenOrder>(this._orders.values());
+      Collections.sort(orders, new Comparator<OpenOrder>() {
+         public int compare(OpenOrder a, OpenOrder b) {
+            int c = a._received.compareTo(b._received);
+            return c != 0 ? c : a._orderid - b._orderid;
+         }
+      });
+      return orders;
+   }//end getOpenOrders
+
+   /**
+    * Method to write the open orders as a table.
+    *
+    * @param out where to write
+    * @param format the output format
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void print(OutputStream out, TableRenderer.Format format) throws IOException {
+      TableRenderer renderer = new TableRenderer(out, format, TableRenderer.DEFAULT_SAMPLE_ROWS,
+                                                 0, null);
+      renderer.header(new String[] { "orderid", "received", "login", "paid", "total", "items" });
+      for (OpenOrder order : getOpenOrders()) {
+         StringBuilder items = new StringBuilder();
+         for (Map.Entry<String, String> item : order._items.entrySet()) {
+            if (items.length() > 0)
+               items.append(", ");
+            items.append(item.getKey()).append(" [").append(item.getValue()).append(']');
+         }//end for
+         renderer.row(new String[] { String.valueOf(order._orderid),
+                                     String.valueOf(order._received), order._login,
+                                     order._paid ? "yes" : "no",
+                                     String.format("%.2f", order._total), items.toString() });
+      }//end for
+      renderer.finish();
+   }//end print
+
+   public String toString() {
+      return String.format("open=%d notifications=%d events=%d refreshes=%d lastEvent=%d gaps=%d",
+                           this._orders.size(), this._notifications.get(), this._events.get(),
+                           this._refreshes.get(), this._lastEvent, this._gaps.size());
+   }//end toString
+
+   /*
+    * Runs on the listener thread: waits for notifications and applies the
+    * new events, reconnecting when the listening connection fails.
+    **/
+   private void follow() {
+      while (this._running) {
+         try {
+            if (this._listen == null) {
+               listen();
+               applyEvents();  // catch up on what happened while disconnected
+            }//end if
+            if (waitForNotification() || !this._gaps.isEmpty())
+               applyEvents();
+            expire();
+            if (System.currentTimeMillis() - this._pruned >= PRUNE_MILLIS)
+               prune();
+         }catch (SQLException e) {
+            if (!this._running)
+               return;
+            System.err.println("Status board: " + e.getMessage() + ", reconnecting");
+            closeListen();
+            try {
+               Thread.sleep(Math.max(1000, this._pollMillis));
+            }catch (InterruptedException ie) {
+               return;
+            }//end try
+         }//end try
+      }//end while
+   }//end follow
+
+   private synchronized void listen() throws SQLException {
+      this._listen = this._esql.getPool().openDedicated();
+      Statement stmt = this._listen.createStatement();
+      try {
+         stmt.execute("LISTEN " + CHANNEL);
+      }finally {
+         stmt.close();
+      }//end try
+      // the notification API is driver specific, see the class comment
+      try {
+         Class<?> pg = Class.forName("org.postgresql.PGConnection", true,
+                                     this._listen.getClass().getClassLoader());
+         try {
+            this._waitForNotifications = pg.getMethod("getNotifications", int.class);
+         }catch (NoSuchMethodException e) {
+            this._getNotifications = pg.getMethod("getNotifications");
+         }//end try
+      }catch (Exception e) {
+         closeListen();
+         throw new SQLException("The JDBC driver does not support LISTEN/NOTIFY: " + e);
+      }//end try
+   }//end listen
+
+   private synchronized void closeListen() {
+      if (this._listen == null)
+         return;
+      try {
+         this._listen.close();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+      this._listen = null;
+   }//end closeListen
+
+   /*
+    * Returns whether a notification arrived within the poll interval.
+    **/
+   private boolean waitForNotification() throws SQLException {
+      Connection listen = this._listen;
+      Object[] received;
+      try {
+         if (this._waitForNotifications != null) {
+            received = (Object[]) this._waitForNotifications.invoke(listen, (int) this._pollMillis);
+         }else {
+            Thread.sleep(this._pollMillis);
+            // the old protocol only delivers notifications with a response
+            Statement stmt = listen.createStatement();
+            try {
+               stmt.execute(";");
+            }finally {
+               stmt.close();
+            }//end try
+            received = (Object[]) this._getNotifications.invoke(listen);
+         }//end if
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         this._running = false;
+         return false;
+      }catch (InvocationTargetException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException("Cannot read notifications: " + e.getCause());
+      }catch (IllegalAccessException e) {
+         throw new SQLException("Cannot read notifications: " + e);
+      }//end try
+      if (received == null || received.length == 0)
+         return false;
+      this._notifications.addAndGet(received.length);
+      return true;
+   }//end waitForNotification
+
+   /*
+    * Reads the events after the last one applied, and those filling a
+    * gap, and refreshes their orders.  Queries are streamed or visited so
+    * they never hit the result cache, which does not see trigger writes.
+    **/
+   private void applyEvents() throws SQLException {
+      final long now = System.currentTimeMillis();
+      final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>(this._gaps);
+      for (Iterator<Long> it = gaps.values().iterator(); it.hasNext(); )
+         if (now - it.next() > GAP_MILLIS)
+            it.remove();  // rolled back, or committed too late to wait for
+      final Set<Integer> changed = new TreeSet<Integer>();
+      final long[] last = { this._lastEvent };
+      long from = gaps.isEmpty() ? this._lastEvent : Math.min(this._lastEvent, gaps.firstKey() - 1);
+      this._esql.executeQueryStreaming(
+         "SELECT eventid, orderid FROM order_events WHERE eventid > ? ORDER BY eventid",
+         Cafe.DEFAULT_FETCH_SIZE, new RowVisitor() {
+            public void start(ResultSetMetaData rsmd) {
+            }
+
+            public boolean visit(ResultSet rs) throws SQLException {
+               long eventid = rs.getLong(1);
+               if (eventid <= last[0]) {
+                  // applied already, unless it fills a gap
+                  if (gaps.remove(eventid) == null)
+                     return true;
+               }else {
+                  for (long missing = Math.max(last[0] + 1, eventid - MAX_GAPS);
+                       missing < eventid; ++missing)
+                     gaps.put(missing, now);
+                  last[0] = eventid;
+               }//end if
+               changed.add(rs.getInt(2));
+               return true;
+            }
+         }, from);
+      while (gaps.size() > MAX_GAPS)
+         gaps.pollFirstEntry();
+      if (!changed.isEmpty()) {
+         this._events.addAndGet(changed.size());
+         refresh(new ArrayList<Integer>(changed));
+      }//end if
+      this._lastEvent = last[0];
+      this._gaps = gaps;
+      if (changed.isEmpty())
+         return;
+      for (Listener listener : this._listeners)
+         listener.boardChanged(this);
+   }//end applyEvents
+
+   /*
+    * Drops the orders received more than OPEN_MILLIS ago, which no event
+    * would take off the board.
+    **/
+   private void expire() {
+      Timestamp since = openSince();
+      boolean changed = false;
+      for (Iterator<OpenOrder> it = this._orders.values().iterator(); it.hasNext(); ) {
+         if (it.next()._received.before(since)) {
+            it.remove();
+            changed = true;
+         }//end if
+      }//end for
+      if (!changed)
+         return;
+      for (Listener listener : this._listeners)
+         listener.boardChanged(this);
+   }//end expire
+
+   private static Timestamp openSince() {
+      return new Timestamp(System.currentTimeMillis() - OPEN_MILLIS);
+   }
+
+   /*
+    * Deletes the events older than a day, which concern orders that are no
+    * longer shown.
+    **/
+   private void prune() throws SQLException {
+      this._esql.executeUpdate(
+         "DELETE FROM order_events WHERE changedAt < now() - '1 day'::interval");
+      this._pruned = System.currentTimeMillis();
+   }//end prune
+
+   private void seed() throws SQLException {
+      final Map<Integer, OpenOrder> orders = new LinkedHashMap<Integer, OpenOrder>();
+      this._esql.executeQueryStreaming(
+         ORDER_COLUMNS + " WHERE o.timeStampRecieved >= ?"
+         + " AND o.orderid IN (SELECT orderid FROM ItemStatus WHERE status <> ?)",
+         Cafe.DEFAULT_FETCH_SIZE, new OrderReader(orders),
+         openSince(), ITEM_STATUS_DONE);
+      this._orders.clear();
+      for (OpenOrder order : orders.values())
+         if (!order.isFinished())
+            this._orders.put(order._orderid, order);
+   }//end seed
+
+   /*
+    * Reads the given orders again; those that are finished, gone or older
+    * than OPEN_MILLIS leave the board.
+    **/
+   private void refresh(List<Integer> orderids) throws SQLException {
+      int done = 0;
+      while (done < orderids.size()) {
+         int size = BATCH_SIZES[BATCH_SIZES.length - 1];
+         for (int s : BATCH_SIZES) {
+            if (s >= orderids.size() - done) {
+               size = s;
+               break;
+            }//end if
+         }//end for
+         Object[] params = new Object[size + 1];
+         params[0] = openSince();
+         StringBuilder in = new StringBuilder();
+         for (int i = 0; i < size; ++i) {
+            // pad short batches by repeating the last id
+            params[i + 1] = orderids.get(Math.min(done + i, orderids.size() - 1));
+            in.append(i == 0 ? "?" : ",?");
+         }//end for
+         Map<Integer, OpenOrder> orders = new LinkedHashMap<Integer, OpenOrder>();
+         this._esql.executeQueryAndVisit(ORDER_COLUMNS + " WHERE o.timeStampRecieved >= ?"
+                                         + " AND o.orderid IN (" + in + ")",
+                                         new OrderReader(orders), params);
+         this._refreshes.incrementAndGet();
+         int end = Math.min(done + size, orderids.size());
+         for (int i = done; i < end; ++i) {
+            OpenOrder order = orders.get(orderids.get(i));
+            if (order == null || order.isFinished())
+               this._orders.remove(orderids.get(i));
+            else
+               this._orders.put(order._orderid, order);
+         }//end for
+         done = end;
+      }//end while
+   }//end refresh
+
+   /*
+    * Groups the rows of ORDER_COLUMNS, one per item, into orders.
+    **/
+   private static class OrderReader implements RowVisitor {
+      private final Map<Integer, OpenOrder> _orders;
+
+      OrderReader(Map<Integer, OpenOrder> orders) {
+         this._orders = orders;
+      }
+
+      public void start(ResultSetMetaData rsmd) {
+      }
+
+      public boolean visit(ResultSet rs) throws SQLException {
+         int orderid = rs.getInt(1);
+         OpenOrder order = this._orders.get(orderid);
+         if (order == null) {
+            String paid = rs.getString(3);
+            order = new OpenOrder(orderid, TableRenderer.trimPadding(rs.getString(2)),
+                                  paid != null && paid.startsWith("t"), rs.getTimestamp(4),
+                                  rs.getFloat(5));
+            this._orders.put(orderid, order);
+         }//end if
+         order._items.put(TableRenderer.trimPadding(rs.getString(6)),
+                          TableRenderer.trimPadding(rs.getString(7)));
+         return true;
+      }
+   }//end OrderReader
+}//end StatusBoard
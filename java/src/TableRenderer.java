@@ -0,0 +1,282 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class writes query results as text through one large buffer instead
+ * of one console write per cell.
+ *
+ * In TABLE format the column widths are taken from the header and the first
+ * sampleRows rows, which are held back until the sample is complete; later
+ * rows are padded or cut to those widths, so memory stays bounded.  TSV and
+ * CSV formats write rows as they come and are meant to be piped to other
+ * tools.  With a page size set, the pager is asked after every page whether
+ * to go on, but only once a row for the next page has arrived, so a result
+ * that ends on a page boundary does not prompt for a page that is empty.
+ */
+public class TableRenderer {
+
+   public enum Format { TABLE, TSV, CSV }
+
+   /**
+    * Decides whether output continues after a full page.
+    */
+   public interface Pager {
+      /**
+       * @param rowsSoFar the number of rows written so far
+       * @return true to write the next page, false to stop
+       */
+      boolean nextPage (int rowsSoFar);
+   }
+
+   public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+   public static final int DEFAULT_SAMPLE_ROWS = 100;
+
+   // widest column in TABLE format, longer values are cut
+   private static final int MAX_WIDTH = 60;
+   private static final String NULL_TEXT = "null";
+
+   private final Writer _out;
+   private final Format _format;
+   private final int _sampleRows;
+   private final int _pageRows;
+   private final Pager _pager;
+
+   private String[] _header;
+   private int[] _widths;
+   private List<String[]> _sample = new ArrayList<String[]>();
+   private int _rows = 0;
+   private boolean _stopped = false;
+   // a page was completed and the pager has not been asked about the next
+   private boolean _pageFull = false;
+
+   /**
+    * Creates a new renderer writing to a stream, which is flushed but not
+    * closed by finish
+    *
+    * @param out the stream to write to
+    * @param format the output format
+    * @param sampleRows the number of rows used to compute column widths
+    * @param pageRows the number of rows per page, 0 for no paging
+    * @param pager asked after every page, may be null when pageRows is 0
+    */
+   public TableRenderer (OutputStream out, Format format, int sampleRows, int pageRows,
+                         Pager pager) {
+      this._out = new BufferedWriter(new OutputStreamWriter(out), DEFAULT_BUFFER_SIZE);
+      this._format = format;
+      this._sampleRows = Math.max(1, sampleRows);
+      this._pageRows = pager == null ? 0 : Math.max(0, pageRows);
+      this._pager = pager;
+   }//end TableRenderer
+
+   /**
+    * Method to set the column names.  Must be called once before the
+    * first row.
+    *
+    * @param columns the column names
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void header (String[] columns) throws IOException {
+      this._header = columns;
+      if (this._format == Format.TABLE) {
+         this._widths = new int[columns.length];
+         for (int i = 0; i < columns.length; ++i)
+            this._widths[i] = Math.min(MAX_WIDTH, columns[i].length());
+      }else {
+         writeDelimited(columns);
+      }//end if
+   }//end header
+
+   /**
+    * Method to add a row.  Null values are allowed.
+    *
+    * @param values the values of the row, one per column
+    * @return false once the pager asked to stop, true otherwise
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public boolean row (String[] values) throws IOException {
+      if (this._stopped)
+         return false;
+      if (this._pageFull) {
+         this._pageFull = false;
+         if (!this._pager.nextPage(this._rows)) {
+            this._stopped = true;
+            return false;
+         }//end if
+      }//end if
+      ++this._rows;
+      if (this._format != Format.TABLE) {
+         writeDelimited(values);
+      }else if (this._sample != null) {
+         for (int i = 0; i < values.length; ++i)
+            this._widths[i] = Math.max(this._widths[i],
+                                       Math.min(MAX_WIDTH, text(values[i]).length()));
+         this._sample.add(values);
+         if (this._sample.size() < this._sampleRows)
+            return true;
+         flushSample();
+         if (this._stopped)
+            return false;
+      }else {
+         writeTableRow(values);
+      }//end if
+      if (this._pageRows > 0 && this._rows % this._pageRows == 0) {
+         this._out.flush();
+         this._pageFull = true;
+      }//end if
+      return !this._stopped;
+   }//end row
+
+   /**
+    * Method to write out whatever is still buffered.
+    *
+    * @return the number of rows added
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public int finish () throws IOException {
+      if (this._sample != null && this._header != null && this._format == Format.TABLE
+          && !this._sample.isEmpty())
+         flushSample();
+      this._out.flush();
+      return this._rows;
+   }//end finish
+
+   /**
+    * Method to strip the blanks PostgreSQL pads char(n) values with.
+    *
+    * @param value a value, may be null
+    * @return the value without trailing blanks
+    */
+   public static String trimPadding (String value) {
+      if (value == null)
+         return null;
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return end == value.length() ? value : value.substring(0, end);
+   }//end trimPadding
+
+   /**
+    * Method to append a value the way COPY text format with a ';'
+    * delimiter reads it back: backslash, delimiter, newline and carriage
+    * return escaped with a backslash, and NULL as \N.
+    *
+    * @param line where to append
+    * @param value a value, may be null
+    */
+   public static void appendCopyText (StringBuilder line, String value) {
+      if (value == null) {
+         line.append("\\N");
+         return;
+      }//end if
+      for (int i = 0; i < value.length(); ++i) {
+         char ch = value.charAt(i);
+         switch (ch) {
+            case '\\': line.append("\\\\"); break;
+            case ';': line.append("\\;"); break;
+            case '\n': line.append("\\n"); break;
+            case '\r': line.append("\\r"); break;
+            default: line.append(ch); break;
+         }
+      }//end for
+   }//end appendCopyText
+
+   /*
+    * Writes the header and the sampled rows once the widths are known. Rows
+    * of the sample count towards paging like any other row; the pager is
+    * asked here only when more sampled rows follow the page.
+    **/
+   private void flushSample () throws IOException {
+      List<String[]> sample = this._sample;
+      this._sample = null;
+      writeTableRow(this._header);
+      for (int i = 0; i < this._widths.length; ++i) {
+         if (i > 0)
+            this._out.write("-+-");
+         for (int j = 0; j < this._widths[i]; ++j)
+            this._out.write('-');
+      }//end for
+      this._out.write('\n');
+      int written = 0;
+      for (String[] values : sample) {
+         writeTableRow(values);
+         ++written;
+         if (this._pageRows > 0 && written % this._pageRows == 0 && written < sample.size()) {
+            this._out.flush();
+            if (!this._pager.nextPage(written)) {
+               this._stopped = true;
+               return;
+            }//end if
+         }//end if
+      }//end for
+   }//end flushSample
+
+   private void writeTableRow (String[] values) throws IOException {
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._out.write(" | ");
+         String value = text(values[i]);
+         int width = this._widths[i];
+         if (value.length() > width) {
+            this._out.write(value, 0, width - 1);
+            this._out.write('~');
+         }else {
+            this._out.write(value);
+            if (i < values.length - 1)
+               for (int j = value.length(); j < width; ++j)
+                  this._out.write(' ');
+         }//end if
+      }//end for
+      this._out.write('\n');
+   }//end writeTableRow
+
+   private void writeDelimited (String[] values) throws IOException {
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._out.write(this._format == Format.CSV ? ',' : '\t');
+         String value = values[i];
+         if (value == null)
+            continue;
+         if (this._format == Format.CSV)
+            writeCsvField(value);
+         else
+            writeTsvField(value);
+      }//end for
+      this._out.write('\n');
+   }//end writeDelimited
+
+   private void writeCsvField (String value) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; ++i) {
+         char ch = value.charAt(i);
+         quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+      }//end for
+      if (!quote) {
+         this._out.write(value);
+         return;
+      }//end if
+      this._out.write('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char ch = value.charAt(i);
+         if (ch == '"')
+            this._out.write('"');
+         this._out.write(ch);
+      }//end for
+      this._out.write('"');
+   }//end writeCsvField
+
+   private void writeTsvField (String value) throws IOException {
+      for (int i = 0; i < value.length(); ++i) {
+         char ch = value.charAt(i);
+         this._out.write(ch == '\t' || ch == '\n' || ch == '\r' ? ' ' : ch);
+      }//end for
+   }//end writeTsvField
+
+   private static String text (String value) {
+      return value == null ? NULL_TEXT : value;
+   }
+}//end TableRenderer
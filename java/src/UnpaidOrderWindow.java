@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps the unpaid orders of a rolling time window (the last 24
+ * hours by default) in memory, ordered by the time they were received.
+ *
+ * The window is read once with a query on the (paid, timeStampRecieved)
+ * index, counting a NULL paid as unpaid like markOrdersPaid does; after
+ * that Cafe keeps it current from placeOrder and updateOrderPaid, and
+ * orders older than the window are dropped as time passes.  Reads do not
+ * lock and do not touch the database.
+ *
+ * Like MenuCatalog, changes made by other processes are only seen after
+ * the next reload.
+ */
+public class UnpaidOrderWindow {
+
+   public static final long DEFAULT_WINDOW_MILLIS = 24L * 60 * 60 * 1000;
+
+   // column names of the rows returned by print
+   public static final String[] COLUMNS =
+      { "orderid", "login", "paid", "timestamprecieved", "total" };
+
+   private static final String LOAD_QUERY =
+      "SELECT orderid, login, timeStampRecieved, total FROM Orders"
+      + " WHERE (paid = false OR paid IS NULL) AND timeStampRecieved >= ?";
+
+   private static final String ORDER_QUERY =
+      "SELECT orderid, login, timeStampRecieved, total FROM Orders"
+      + " WHERE orderid = ? AND (paid = false OR paid IS NULL)";
+
+   /**
+    * An unpaid order.  Instances are immutable.
+    */
+   public static class UnpaidOrder {
+      private final int _orderid;
+      private final String _login;
+      private final Timestamp _timeStampRecieved;
+      private final long _received;
+      private final float _total;
+
+      public UnpaidOrder(int orderid, String login, Timestamp timeStampRecieved, float total) {
+         this._orderid = orderid;
+         this._login = login;
+         this._timeStampRecieved = timeStampRecieved;
+         this._received = timeStampRecieved.getTime();
+         this._total = total;
+      }
+
+      public int getOrderid() {
+         return this._orderid;
+      }
+
+      public String getLogin() {
+         return this._login;
+      }
+
+      public Timestamp getTimeStampRecieved() {
+         return this._timeStampRecieved;
+      }
+
+      public float getTotal() {
+         return this._total;
+      }
+   }//end UnpaidOrder
+
+   // oldest first, ties broken by order id
+   private static final Comparator<UnpaidOrder> BY_TIME = new Comparator<UnpaidOrder>() {
+      public int compare(UnpaidOrder a, UnpaidOrder b) {
+         if (a._received != b._received)
+            return a._received < b._received ? -1 : 1;
+         return a._orderid < b._orderid ? -1 : (a._orderid == b._orderid ? 0 : 1);
+      }
+   };
+
+   private final Cafe _esql;
+   private final long _windowMillis;
+   private final ConcurrentSkipListSet<UnpaidOrder> _byTime =
+      new ConcurrentSkipListSet<UnpaidOrder>(BY_TIME);
+   private final ConcurrentHashMap<Integer, UnpaidOrder> _byId =
+      new ConcurrentHashMap<Integer, UnpaidOrder>();
+   // serializes changes, held across the queries of load and refresh; a
+   // lock rather than a monitor, so waiting virtual threads do not pin
+   private final ReentrantLock _lock = new ReentrantLock();
+
+   /**
+    * Creates a new, empty window; call load to fill it
+    *
+    * @param esql the database the orders live in
+    * @param windowMillis how far back the window reaches
+    */
+   public UnpaidOrderWindow(Cafe esql, long windowMillis) {
+      if (windowMillis <= 0)
+         throw new IllegalArgumentException("window must be positive: " + windowMillis);
+      this._esql = esql;
+      this._windowMillis = windowMillis;
+   }//end UnpaidOrderWindow
+
+   /**
+    * Method to read the unpaid orders of the window, replacing what the
+    * window held.  Changes reported while loading wait for the load, so
+    * none is lost.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void load() throws SQLException {
+      this._lock.lock();
+      try {
+         final List<UnpaidOrder> orders = new ArrayList<UnpaidOrder>();
+         this._esql.executeQueryStreaming(LOAD_QUERY, Cafe.DEFAULT_FETCH_SIZE, new RowVisitor() {
+            public void start(ResultSetMetaData rsmd) {
+            }
+
+            public boolean visit(ResultSet rs) throws SQLException {
+               orders.add(read(rs));
+               return true;
+            }
+         }, new Timestamp(System.currentTimeMillis() - this._windowMillis));
+         this._byTime.clear();
+         this._byId.clear();
+         for (UnpaidOrder order : orders)
+            put(order);
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end load
+
+   /**
+    * Method to take in a new order, which is ignored if it is paid or
+    * older than the window.
+    *
+    * @param order the order that was placed
+    */
+   public void add(Order order) {
+      this._lock.lock();
+      try {
+         if (order.isPaid())
+            return;
+         put(new UnpaidOrder(order.getOrderid(), order.getLogin(),
+                             order.getTimeStampRecieved(), order.getTotal()));
+         expire();
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end add
+
+   /**
+    * Method to drop an order that was paid or deleted.
+    *
+    * @param orderid the id of the order
+    */
+   public void remove(int orderid) {
+      this._lock.lock();
+      try {
+         UnpaidOrder old = this._byId.remove(orderid);
+         if (old != null)
+            this._byTime.remove(old);
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end remove
+
+   /**
+    * Method to drop the orders of a range of ids, after they were paid.
+    *
+    * @param first the first id of the range
+    * @param last the last id of the range, inclusive
+    */
+   public void removeRange(int first, int last) {
+      this._lock.lock();
+      try {
+         for (UnpaidOrder order : this._byTime)
+            if (order._orderid >= first && order._orderid <= last)
+               remove(order._orderid);
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end removeRange
+
+   /**
+    * Method to drop the orders of a customer received since a given time,
+    * after they were all paid.
+    *
+    * @param login the login of the customer
+    * @param sinceMillis the earliest time an order was received
+    */
+   public void removeAll(String login, long sinceMillis) {
+      this._lock.lock();
+      try {
+         for (UnpaidOrder order : this._byTime)
+            if (order._received >= sinceMillis && order._login.equals(login))
+               remove(order._orderid);
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end removeAll
+
+   /**
+    * Method to read one order again after it changed, e.g. was marked
+    * unpaid, and add or drop it accordingly.
+    *
+    * @param orderid the id of the order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void refresh(int orderid) throws SQLException {
+      this._lock.lock();
+      try {
+         final UnpaidOrder[] found = { null };
+         this._esql.executeQueryAndVisit(ORDER_QUERY, new RowVisitor() {
+            public void start(ResultSetMetaData rsmd) {
+            }
+
+            public boolean visit(ResultSet rs) throws SQLException {
+               found[0] = read(rs);
+               return false;
+            }
+         }, orderid);
+         remove(orderid);
+         if (found[0] != null)
+            put(found[0]);
+         expire();
+      }finally {
+         this._lock.unlock();
+      }//end try
+   }//end refresh
+
+   /**
+    * Method to list the unpaid orders of the window.
+    *
+    * @return the orders, oldest first
+    */
+   public List<UnpaidOrder> getOrders() {
+      long cutoff = System.currentTimeMillis() - this._windowMillis;
+      List<UnpaidOrder> orders = new ArrayList<UnpaidOrder>();
+      for (UnpaidOrder order : this._byTime)
+         if (order._received >= cutoff)
+            orders.add(order);
+      return orders;
+   }//end getOrders
+
+   public int size() {
+      return this._byTime.size();
+   }
+
+   /**
+    * Method to write the unpaid orders of the window as a table.
+    *
+    * @param out where to write
+    * @param format the output format
+    * @return the number of orders written
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public int print(OutputStream out, TableRenderer.Format format) throws IOException {
+      TableRenderer renderer = new TableRenderer(out, format, TableRenderer.DEFAULT_SAMPLE_ROWS,
+                                                 0, null);
+      renderer.header(COLUMNS);
+      for (UnpaidOrder order : getOrders())
+         renderer.row(new String[] { String.valueOf(order._orderid), order._login, "f",
+                                     String.valueOf(order._timeStampRecieved),
+                                     String.valueOf(order._total) });
+      return renderer.finish();
+   }//end print
+
+   private void put(UnpaidOrder order) {
+      UnpaidOrder old = this._byId.put(order._orderid, order);
+      if (old != null)
+         this._byTime.remove(old);
+      this._byTime.add(order);
+   }//end put
+
+   /*
+    * Drops the orders that fell out of the window, oldest first.
+    **/
+   private void expire() {
+      long cutoff = System.currentTimeMillis() - this._windowMillis;
+      while (!this._byTime.isEmpty()) {
+         UnpaidOrder oldest = this._byTime.first();
+         if (oldest._received >= cutoff)
+            break;
+         this._byTime.remove(oldest);
+         this._byId.remove(oldest._orderid);
+      }//end while
+   }//end expire
+
+   private static UnpaidOrder read(ResultSet rs) throws SQLException {
+      return new UnpaidOrder(rs.getInt(1), TableRenderer.trimPadding(rs.getString(2)),
+                             rs.getTimestamp(3), rs.getFloat(4));
+   }//end read
+}//end UnpaidOrderWindow
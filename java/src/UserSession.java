@@ -0,0 +1,83 @@
+import java.util.List;
+
+/**
+ * The user who logged in, with the role and profile fields read by the
+ * login query.  Menu dispatch and permission checks read the role from
+ * here instead of querying the Users table again.
+ */
+public class UserSession {
+
+   public enum Role {
+      CUSTOMER, EMPLOYEE, MANAGER;
+
+      /**
+       * @param type the value of Users.type, padding allowed
+       * @return the matching role, CUSTOMER for unknown types
+       */
+      public static Role fromType(String type) {
+         String t = type == null ? "" : type.trim();
+         if (t.equalsIgnoreCase("Manager"))
+            return MANAGER;
+         if (t.equalsIgnoreCase("Employee"))
+            return EMPLOYEE;
+         return CUSTOMER;
+      }
+   }//end Role
+
+   // columns read into a session, in this order
+   static final String COLUMNS = "login, type, phoneNum, favItems";
+
+   private final String _login;
+   private final Role _role;
+   private final String _phoneNum;
+   private final String _favItems;
+
+   public UserSession(String login, Role role, String phoneNum, String favItems) {
+      this._login = login;
+      this._role = role;
+      this._phoneNum = phoneNum;
+      this._favItems = favItems;
+   }
+
+   /**
+    * Method to build a session from a row holding COLUMNS.
+    *
+    * @param row the column values
+    * @return the session
+    */
+   static UserSession fromRow(List<String> row) {
+      return new UserSession(TableRenderer.trimPadding(row.get(0)),
+                             Role.fromType(row.get(1)),
+                             TableRenderer.trimPadding(row.get(2)),
+                             TableRenderer.trimPadding(row.get(3)));
+   }
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public Role getRole() {
+      return this._role;
+   }
+
+   public String getPhoneNum() {
+      return this._phoneNum;
+   }
+
+   public String getFavItems() {
+      return this._favItems;
+   }
+
+   public boolean isCustomer() {
+      return this._role == Role.CUSTOMER;
+   }
+
+   public boolean isManager() {
+      return this._role == Role.MANAGER;
+   }
+
+   @Override
+   public String toString() {
+      return this._login + " (" + this._role + ")";
+   }
+}//end UserSession
@@ -6,5 +6,8 @@ pg_ctl status
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_triggers.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_rollups.sql
+bash $DIR/../../java/scripts/load_data.sh --data $DIR/../../data
+bash $DIR/../../java/scripts/backfill_rollups.sh
 
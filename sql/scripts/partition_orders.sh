@@ -0,0 +1,6 @@
+#!/bin/bash
+# Partitions Orders by month (see sql/src/partition_orders.sql) and puts the
+# change feed triggers back on the new table.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -v ON_ERROR_STOP=1 -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/partition_orders.sql && \
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_triggers.sql
@@ -13,3 +13,13 @@ ON Users
 CREATE INDEX Menu_Type
 ON Menu
 (Type);
+
+-- seeds Cafe's window of recent unpaid orders (UnpaidOrderWindow)
+CREATE INDEX Orders_paid_time
+ON Orders
+(paid, timeStampRecieved);
+
+-- newest-first order history of a customer (OrderHistory), scanned backwards
+CREATE INDEX Orders_login_time
+ON Orders
+(login, timeStampRecieved, orderid);
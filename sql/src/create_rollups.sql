@@ -0,0 +1,24 @@
+-- Sales rollups for the manager reports (java/src/SalesRollup.java).
+-- sales_rollup holds the orders and revenue of every hour and every day
+-- (grain 'hour' or 'day', bucket the start of it), item_sales_rollup how
+-- often each item was ordered in them.  Cafe updates both in the
+-- transactions that place orders and change their paid flag.
+--
+-- Safe to run on an existing database; fill the rollups of the orders
+-- already there with java/scripts/backfill_rollups.sh.
+
+CREATE TABLE IF NOT EXISTS sales_rollup(
+	grain varchar(4) NOT NULL,
+	bucket timestamp NOT NULL,
+	orders integer NOT NULL,
+	revenue double precision NOT NULL,
+	paidOrders integer NOT NULL,
+	paidRevenue double precision NOT NULL,
+	PRIMARY KEY(grain, bucket));
+
+CREATE TABLE IF NOT EXISTS item_sales_rollup(
+	grain varchar(4) NOT NULL,
+	bucket timestamp NOT NULL,
+	itemName varchar(50) NOT NULL,
+	orders integer NOT NULL,
+	PRIMARY KEY(grain, bucket, itemName));
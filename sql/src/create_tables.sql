@@ -12,69 +12,74 @@ DROP TABLE setsType;
 DROP TABLE orderHistory;
 DROP TABLE views;
 
+-- text columns are varchar/text rather than blank padded char(n); older
+-- databases are converted by java/src/SchemaMigration.java
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(8) NOT NULL,
+	login varchar(50) UNIQUE NOT NULL, 
+	phoneNum varchar(16) UNIQUE, 
+	password varchar(50) NOT NULL,
+	favItems text,
+	type varchar(8) NOT NULL,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
+	itemName varchar(50) UNIQUE NOT NULL,
+	type varchar(20) NOT NULL,
 	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	description text,
+	imageURL text,
 	PRIMARY KEY(itemName));
 
 CREATE TABLE Orders(
 	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	login varchar(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
 	PRIMARY KEY(orderid));
 
+-- Cafe reserves order ids in blocks of 50 (OrderIdAllocator.DEFAULT_BLOCK_SIZE)
+ALTER SEQUENCE orders_orderid_seq INCREMENT BY 50;
+
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50), 
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
+	status varchar(20), 
+	comments varchar(130), 
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
 
 CREATE TABLE placesOrder(
-	orderid integer UNIQUE NOT NULL,
-	itemName char(30) NOT NULL,
+	orderid integer NOT NULL,
+	itemName varchar(50) NOT NULL,
 	PRIMARY KEY(orderid, itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
 
 CREATE TABLE favoriteItem(
-	login char(50) UNIQUE NOT NULL,
-	itemName char(30) NOT NULL,
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
 	PRIMARY KEY(login, itemName),
 	FOREIGN KEY(login) REFERENCES Users(login),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
 
 CREATE TABLE ManagerUser(
-	Managerlogin char(50) UNIQUE NOT NULL,
+	Managerlogin varchar(50) UNIQUE NOT NULL,
 	PRIMARY KEY(Managerlogin),
 	FOREIGN KEY(Managerlogin) REFERENCES Users(login));
 
 CREATE TABLE EmployeeUser(
-	Employeelogin char(50) UNIQUE NOT NULL,
+	Employeelogin varchar(50) UNIQUE NOT NULL,
 	PRIMARY KEY(Employeelogin),
 	FOREIGN KEY(Employeelogin) REFERENCES Users(login));
 
 CREATE TABLE Modifies(
-	Employeelogin char(50),
-	Managerlogin char(50),
+	Employeelogin varchar(50),
+	Managerlogin varchar(50),
 	orderid integer NOT NULL,
-	itemName char(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
 	PRIMARY KEY(orderid, itemName),
 	FOREIGN KEY(Employeelogin) REFERENCES EmployeeUser(Employeelogin),
 	FOREIGN KEY(Managerlogin) REFERENCES ManagerUser(Managerlogin),
@@ -82,29 +87,29 @@ CREATE TABLE Modifies(
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
 
 CREATE TABLE Updates(
-	login char(50),
-	itemName char(30),
+	login varchar(50),
+	itemName varchar(50),
 	PRIMARY KEY(login, itemName),
 	FOREIGN KEY(login) REFERENCES ManagerUser(Managerlogin),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
 
 CREATE TABLE setsType(
-	login char(50),
-	Managerlogin char(50),
+	login varchar(50),
+	Managerlogin varchar(50),
 	PRIMARY KEY(login, Managerlogin),
 	FOREIGN KEY(login) REFERENCES Users(login),
 	FOREIGN KEY(Managerlogin) REFERENCES ManagerUser(Managerlogin));
 
 CREATE TABLE orderHistory(
-	login char(50),
+	login varchar(50),
 	orderid integer,
 	PRIMARY KEY(login, orderid),
 	FOREIGN KEY(login) REFERENCES Users(login),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid));
 
 CREATE TABLE views(
-	login char(50),
-	itemName char(50),
+	login varchar(50),
+	itemName varchar(50),
 	PRIMARY KEY(login, itemName),
 	FOREIGN KEY(login) REFERENCES Users(login),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
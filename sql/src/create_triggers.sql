@@ -0,0 +1,39 @@
+-- Change feed for the order status board (java/src/StatusBoard.java).
+-- Every change to Orders or ItemStatus appends the order id to
+-- order_events and sends a NOTIFY on cafe_orders; listeners read the events
+-- after the last one they saw and refresh only those orders.  NOTIFY is
+-- sent without a payload, so drivers of any age can receive it, and the
+-- notifications of one transaction arrive as one.
+--
+-- BulkLoader disables these triggers while it loads; run other bulk loads
+-- before this script, or they fill order_events as well.
+
+-- The table is kept when the script is run again: a running board reads
+-- events after the last eventid it saw, so the ids must not start over.
+CREATE TABLE IF NOT EXISTS order_events(
+	eventid serial NOT NULL,
+	orderid integer NOT NULL,
+	changedAt timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(eventid));
+
+CREATE OR REPLACE FUNCTION order_changed() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		INSERT INTO order_events (orderid) VALUES (OLD.orderid);
+	ELSE
+		INSERT INTO order_events (orderid) VALUES (NEW.orderid);
+	END IF;
+	NOTIFY cafe_orders;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS orders_changed ON Orders;
+CREATE TRIGGER orders_changed
+AFTER INSERT OR UPDATE OR DELETE ON Orders
+FOR EACH ROW EXECUTE PROCEDURE order_changed();
+
+DROP TRIGGER IF EXISTS itemstatus_changed ON ItemStatus;
+CREATE TRIGGER itemstatus_changed
+AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE order_changed();
@@ -0,0 +1,77 @@
+-- Turns Orders into a table partitioned by month of timeStampRecieved
+-- (needs PostgreSQL 11 or later), so queries over a recent time window
+-- only read the partitions of that window.  Partitions are named
+-- orders_yYYYYmMM; java/src/PartitionMaintenance.java creates the coming
+-- months ahead of time and archives old ones.  Rows outside every
+-- partition land in orders_default.
+--
+-- A unique key of a partitioned table must contain the partition key, so
+-- the primary key becomes (orderid, timeStampRecieved) and the foreign keys
+-- that referenced Orders(orderid) are dropped; Cafe writes an order and its
+-- items in one transaction, and archiving removes them together.
+--
+-- Run create_triggers.sql again afterwards (partition_orders.sh does).
+
+BEGIN;
+
+ALTER TABLE Orders RENAME TO orders_unpartitioned;
+
+-- free the index and constraint names for the new table
+DO $$
+DECLARE
+	r record;
+BEGIN
+	FOR r IN SELECT i.indexrelid::regclass::text AS name FROM pg_index i
+	         WHERE i.indrelid = 'orders_unpartitioned'::regclass LOOP
+		EXECUTE format('ALTER INDEX %I RENAME TO %I', r.name, 'unpartitioned_' || r.name);
+	END LOOP;
+	FOR r IN SELECT conrelid::regclass::text AS tbl, conname FROM pg_constraint
+	         WHERE contype = 'f' AND confrelid = 'orders_unpartitioned'::regclass LOOP
+		EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', r.tbl, r.conname);
+	END LOOP;
+END $$;
+
+CREATE TABLE Orders(
+	LIKE orders_unpartitioned INCLUDING DEFAULTS,
+	PRIMARY KEY(orderid, timeStampRecieved))
+PARTITION BY RANGE (timeStampRecieved);
+
+CREATE TABLE orders_default PARTITION OF Orders DEFAULT;
+
+-- a partition per month, from the oldest order to three months ahead
+DO $$
+DECLARE
+	m date;
+	last date := (date_trunc('month', now()) + interval '3 months')::date;
+BEGIN
+	SELECT date_trunc('month', coalesce(min(timeStampRecieved), now()))::date INTO m
+	FROM orders_unpartitioned;
+	WHILE m <= last LOOP
+		EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+		               'orders_y' || to_char(m, 'YYYY') || 'm' || to_char(m, 'MM'),
+		               m, (m + interval '1 month')::date);
+		m := (m + interval '1 month')::date;
+	END LOOP;
+END $$;
+
+INSERT INTO Orders SELECT * FROM orders_unpartitioned;
+
+-- keep the order id sequence when the old table goes
+ALTER SEQUENCE orders_orderid_seq OWNED BY Orders.orderid;
+DROP TABLE orders_unpartitioned;
+
+CREATE INDEX index1
+ON Orders
+(timeStampRecieved);
+
+CREATE INDEX Orders_paid_time
+ON Orders
+(paid, timeStampRecieved);
+
+CREATE INDEX Orders_login_time
+ON Orders
+(login, timeStampRecieved, orderid);
+
+COMMIT;
+
+ANALYZE Orders;